@@ -0,0 +1,74 @@
+package com.surfapi.bench;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.surfapi.db.DB;
+import com.surfapi.db.DBImpl;
+import com.surfapi.db.DBLoader;
+import com.surfapi.db.post.CustomIndex;
+import com.surfapi.log.Log;
+
+/**
+ * The DB that the benchmarks run against: a DBImpl loaded via DBLoader from the
+ * fixture JSON files, with all the custom indexes built.
+ *
+ * The fixture files are configured via system property com.surfapi.bench.data, a 
+ * comma-separated list of *.json files and/or dirs (default: the com.surfapi test fixtures).
+ */
+public class BenchmarkDB {
+
+    /**
+     * The fixture *.json files and/or dirs, comma-separated.
+     */
+    public static final String DataPropertyName = "com.surfapi.bench.data";
+
+    /**
+     * Default fixtures.
+     */
+    public static final String DefaultData = "src/test/resources/com.surfapi_0.9.json,src/test/resources/com.surfapi_1.0.json";
+
+    /**
+     * The libraryId of the fixture library most benchmarks query against.
+     */
+    public static final String LibraryId = "/java/com.surfapi/1.0";
+
+    /**
+     * Loaded once per benchmark JVM.
+     */
+    private static DB db;
+
+    /**
+     * @return the benchmark DB, loading it on first call.
+     */
+    public static synchronized DB getDb() {
+        if (db == null) {
+            db = load( System.getProperty(DataPropertyName, DefaultData).split(",") );
+        }
+        return db;
+    }
+
+    /**
+     * @return a new DBImpl loaded from the given files/dirs, with all custom indexes built.
+     */
+    protected static DB load(String[] fileNames) {
+
+        long startTime = System.currentTimeMillis();
+
+        DB retMe = new DBImpl();
+
+        for (String fileName : fileNames) {
+            new DBLoader().inject( retMe ).loadUnchecked( new File( fileName.trim() ) );
+        }
+
+        for (CustomIndex<?> customIndex : CustomIndex.getAllIndexes()) {
+            customIndex.inject( retMe ).buildIndex();
+        }
+
+        Log.info("BenchmarkDB.load: loaded " + Arrays.asList(fileNames) + " in "
+                 + (System.currentTimeMillis() - startTime) + " ms");
+
+        return retMe;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.surfapi.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.surfapi.bench.BenchmarkDB;
+import com.surfapi.coll.MapBuilder;
+
+/**
+ * DBImpl.find and read, against the fixture library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBImplBenchmark {
+
+    private DB db;
+
+    private Map classFilter = new MapBuilder().append( "metaType", "class" );
+
+    private Map nameFilter = new MapBuilder().append( "metaType", "method" ).append( "name", "parse" );
+
+    @Setup
+    public void setup() {
+        db = BenchmarkDB.getDb();
+    }
+
+    @Benchmark
+    public List<Map> findByMetaType() {
+        return db.find( BenchmarkDB.LibraryId, classFilter );
+    }
+
+    @Benchmark
+    public List<Map> findByMetaTypeAndName() {
+        return db.find( BenchmarkDB.LibraryId, nameFilter );
+    }
+
+    @Benchmark
+    public List<Map> findWithLimit() {
+        return db.find( BenchmarkDB.LibraryId, classFilter, 5 );
+    }
+
+    @Benchmark
+    public Map read() {
+        return db.read( BenchmarkDB.LibraryId + "/com.surfapi.test.DemoJavadoc" );
+    }
+
+}
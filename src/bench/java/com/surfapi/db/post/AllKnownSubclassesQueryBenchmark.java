@@ -0,0 +1,47 @@
+package com.surfapi.db.post;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.surfapi.bench.BenchmarkDB;
+
+/**
+ * AllKnownSubclassesQuery.query, for a class with subclasses and one without.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllKnownSubclassesQueryBenchmark {
+
+    @Param({ "com.surfapi.test.DemoJavadoc", "com.surfapi.test.DemoJavadocSubClass2" })
+    public String superclassName;
+
+    private AllKnownSubclassesQuery allKnownSubclassesQuery;
+
+    @Setup
+    public void setup() {
+        allKnownSubclassesQuery = new AllKnownSubclassesQuery().inject( BenchmarkDB.getDb() );
+    }
+
+    @Benchmark
+    public List<Map> query() {
+        return allKnownSubclassesQuery.query( superclassName );
+    }
+
+}
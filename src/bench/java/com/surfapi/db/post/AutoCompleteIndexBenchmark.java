@@ -0,0 +1,51 @@
+package com.surfapi.db.post;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.surfapi.bench.BenchmarkDB;
+
+/**
+ * AutoCompleteIndex.query, against the "java" index, for each query mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutoCompleteIndexBenchmark {
+
+    @Param({ AutoCompleteIndex.PrefixMode, AutoCompleteIndex.CamelMode, AutoCompleteIndex.FuzzyMode })
+    public String mode;
+
+    @Param({ "d", "demoj", "dj", "demojavdoc" })
+    public String text;
+
+    private AutoCompleteIndex autoCompleteIndex;
+
+    @Setup
+    public void setup() {
+        autoCompleteIndex = new AutoCompleteIndex().inject( BenchmarkDB.getDb() );
+        autoCompleteIndex.loadIndex("java");
+    }
+
+    @Benchmark
+    public List<Map> query() {
+        return autoCompleteIndex.query( "java", text, AutoCompleteIndex.TopK, mode );
+    }
+
+}
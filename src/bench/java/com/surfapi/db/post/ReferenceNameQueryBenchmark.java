@@ -0,0 +1,52 @@
+package com.surfapi.db.post;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.surfapi.bench.BenchmarkDB;
+
+/**
+ * ReferenceNameQuery.query and queryOne, for a class and a method reference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReferenceNameQueryBenchmark {
+
+    @Param({ "com.surfapi.test.DemoJavadoc", "com.surfapi.test.DemoJavadoc+DemoJavadoc" })
+    public String referenceName;
+
+    private ReferenceNameQuery referenceNameQuery;
+
+    @Setup
+    public void setup() {
+        referenceNameQuery = new ReferenceNameQuery().inject( BenchmarkDB.getDb() );
+    }
+
+    @Benchmark
+    public List<Map> query() {
+        return referenceNameQuery.query( referenceName );
+    }
+
+    @Benchmark
+    public Map queryOne() {
+        return referenceNameQuery.queryOne( referenceName, BenchmarkDB.LibraryId );
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.surfapi.web.rest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.surfapi.bench.BenchmarkDB;
+import com.surfapi.db.DB;
+import com.surfapi.db.post.CompressedDocIndex;
+
+/**
+ * The serialization paths behind DbRest.getDoc: streaming the doc (with and without gzip),
+ * a ResponseCache miss (serialize + ETag), and looking up the precompressed doc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbRestBenchmark {
+
+    @Param({ "com.surfapi.test.DemoJavadoc", "com.surfapi.test" })
+    public String docName;
+
+    private DB db;
+
+    private String id;
+
+    private Map doc;
+
+    @Setup
+    public void setup() {
+        db = BenchmarkDB.getDb();
+        id = BenchmarkDB.LibraryId + "/" + docName;
+        doc = db.read( BenchmarkDB.LibraryId, id );
+    }
+
+    @Benchmark
+    public void streamJson() throws IOException {
+        new JsonStreamingOutput( doc, false ).write( new NullOutputStream() );
+    }
+
+    @Benchmark
+    public void streamJsonGzip() throws IOException {
+        new JsonStreamingOutput( doc, true ).write( new NullOutputStream() );
+    }
+
+    @Benchmark
+    public ResponseCache.Entry buildCacheEntry() {
+        return new ResponseCache.Entry( JSONValue.toJSONString( doc ) );
+    }
+
+    @Benchmark
+    public Map readCompressedDoc() {
+        return new CompressedDocIndex().inject( db ).query( BenchmarkDB.LibraryId, id );
+    }
+
+}
@@ -10,6 +10,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -81,8 +83,20 @@ public class Cawls {
      * @return a subset of elements from the collection that match the given filter.
      */
     public static List<Map> findAll(Collection<Map> collection, Map filter) {
+        return findFirstN(collection, filter, 0);
+    }
+    
+    /**
+     * Stops iterating as soon as it's found limit matches.
+     * 
+     * @return the first limit elements from the given iterable that match the given filter.
+     *         A limit of 0 (or less) means no limit (same as mongo).
+     */
+    public static List<Map> findFirstN(Iterable<Map> iterable, Map filter, int limit) {
         List<Map> retMe = new ArrayList<Map>();
-        for (Map model : safeIterable(collection)) {
+        
+        for (Iterator<Map> iter = safeIterable(iterable).iterator(); iter.hasNext() && (limit <= 0 || retMe.size() < limit); ) {
+            Map model = iter.next();
             if ( containsAll(model, filter ) ) {
                 retMe.add(model);
             }
@@ -97,26 +111,131 @@ public class Cawls {
      *
      * TODO: test
      *
+     * A subset value of the form { "$regex": "...", "$options": "..." } is evaluated as mongo
+     * does: it matches a String value that contains a match for the regex (or a List value 
+     * with such an element).  The supported options are i, m, s, and x.
+     * 
+     * Subset keys may be dotted paths into nested maps (see {@link #getField}).
+     *
      * @return true if the given map contains all the entries from the given "subset" map.
      */
     public static boolean containsAll(Map map, Map subset) {
         for (Map.Entry subsetEntry : (Set<Map.Entry>)subset.entrySet() ) {
-            Object subsetVal = subsetEntry.getValue();
-            Object mapVal = map.get(subsetEntry.getKey());
+            if ( ! matches( getField( map, subsetEntry.getKey() ), subsetEntry.getValue() ) ) {
+                return false;
+            }
+        }
 
-            if ( ! ObjectUtils.equals( subsetVal, mapVal ) ) {
-                // Check if they're both Maps -- if so do an extra check of each entry.
-                if ((mapVal instanceof Map) 
-                        && (subsetVal instanceof Map) 
-                        && Cawls.mapEquals( (Map) mapVal, (Map) subsetVal ) )  {
-                    // they're equal.
-                } else {
-                    return false;
+        return true;
+    }
+    
+    /**
+     * @return true if the given value matches the given filter value, i.e. they're equal, or 
+     *         the filter value is a $regex criteria that matches, or they're equal Maps.
+     */
+    public static boolean matches(Object value, Object filterVal) {
+        if ( ObjectUtils.equals( filterVal, value ) ) {
+            return true;
+        } else if (isRegex(filterVal)) {
+            return regexMatches( (Map) filterVal, value );
+        } else {
+            // Check if they're both Maps -- if so do an extra check of each entry.
+            return (value instanceof Map) 
+                    && (filterVal instanceof Map) 
+                    && Cawls.mapEquals( (Map) value, (Map) filterVal );
+        }
+    }
+    
+    /**
+     * A dotted field name (e.g. "_library._id") is a path into nested maps, as in mongo 
+     * queries.  A key that's actually in the map (dots and all) takes precedence.
+     * 
+     * @return the value of the given field in the given map, or null.
+     */
+    public static Object getField(Map map, Object field) {
+        Object retMe = map.get(field);
+        
+        if (retMe == null && field instanceof String && ((String) field).indexOf('.') > 0 && !map.containsKey(field)) {
+            Object value = map;
+            for (String name : StringUtils.split( (String) field, '.' )) {
+                if ( ! (value instanceof Map) ) {
+                    return null;
                 }
+                value = ((Map) value).get(name);
             }
+            retMe = value;
         }
+        
+        return retMe;
+    }
 
-        return true;
+    /**
+     * @return true if the given filter value is a $regex criteria, i.e. { "$regex": "..." }, 
+     *         optionally with "$options".
+     */
+    public static boolean isRegex(Object filterVal) {
+        if (filterVal instanceof Map) {
+            Map criteria = (Map) filterVal;
+            return criteria.get("$regex") instanceof String
+                    && criteria.size() == (criteria.containsKey("$options") ? 2 : 1);
+        }
+        return false;
+    }
+    
+    /**
+     * @return true if the given value matches the given $regex criteria.
+     */
+    protected static boolean regexMatches(Map regexCriteria, Object value) {
+        if (value instanceof String) {
+            return compileRegex( (String) regexCriteria.get("$regex"), (String) regexCriteria.get("$options") ).matcher( (String) value ).find();
+        } else if (value instanceof List) {
+            for (Object elem : (List) value) {
+                if (regexMatches(regexCriteria, elem)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Cache of compiled $regex patterns, keyed by "options/regex".  A filter is evaluated
+     * against every doc in a scan, so compile each regex once.
+     */
+    private static final Map<String, Pattern> regexCache = new ConcurrentHashMap<String, Pattern>();
+    
+    /**
+     * Max size of the regex cache before it's cleared.
+     */
+    private static final int RegexCacheSize = 1000;
+    
+    /**
+     * @return the compiled regex, with the given mongo $options (i, m, s, x).
+     */
+    public static Pattern compileRegex(String regex, String options) {
+        String key = StringUtils.defaultString(options) + "/" + regex;
+        
+        Pattern retMe = regexCache.get(key);
+        if (retMe == null) {
+            int flags = 0;
+            for (char option : StringUtils.defaultString(options).toCharArray()) {
+                switch (option) {
+                    case 'i': flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE; break;
+                    case 'm': flags |= Pattern.MULTILINE; break;
+                    case 's': flags |= Pattern.DOTALL; break;
+                    case 'x': flags |= Pattern.COMMENTS; break;
+                    default: throw new IllegalArgumentException("Unsupported $options: " + options);
+                }
+            }
+            
+            retMe = Pattern.compile(regex, flags);
+            
+            if (regexCache.size() >= RegexCacheSize) {
+                regexCache.clear();
+            }
+            regexCache.put(key, retMe);
+        }
+        return retMe;
     }
 
     /**
@@ -0,0 +1,50 @@
+package com.surfapi.coll;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A compact, immutable List backed by an exactly-sized array.
+ *
+ * CompactLists are built by a {@link Compactor}.  All mutators throw UnsupportedOperationException.
+ */
+public class CompactList extends AbstractList<Object> implements RandomAccess {
+
+    private final Object[] values;
+
+    /**
+     * Cached hashCode (0 means not computed yet).
+     */
+    private int hash;
+
+    /**
+     * CTOR.
+     */
+    public CompactList(Object[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public Object get(int index) {
+        return values[index];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Cached, since CompactLists are immutable (and are hashed when they're interned).
+     */
+    @Override
+    public int hashCode() {
+        int retMe = hash;
+        if (retMe == 0) {
+            retMe = super.hashCode();
+            hash = retMe;
+        }
+        return retMe;
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.surfapi.coll;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact, immutable Map of String keys to values.
+ *
+ * The keys live in a {@link Keys} dictionary that's shared by every CompactMap with the same
+ * set of keys, so each map holds just a values array (plus a cached hashCode), rather than
+ * a HashMap's table and an entry object per key.
+ *
+ * CompactMaps are built by a {@link Compactor}.  All mutators throw UnsupportedOperationException.
+ */
+public class CompactMap extends AbstractMap<String, Object> {
+
+    /**
+     * A shared, sorted set of keys.  Maps with more than a few keys also get a key -> index
+     * lookup table; smaller ones are searched linearly.
+     */
+    public static class Keys {
+
+        /**
+         * Maps with more keys than this get a lookup table.
+         */
+        private static final int MaxLinearSearch = 8;
+
+        private final String[] keys;
+
+        private final Map<String, Integer> indexes;
+
+        /**
+         * CTOR.
+         *
+         * @param keys the keys, sorted.
+         */
+        public Keys(String[] keys) {
+            this.keys = keys;
+
+            if (keys.length > MaxLinearSearch) {
+                indexes = new HashMap<String, Integer>( keys.length * 2 );
+                for (int i = 0; i < keys.length; ++i) {
+                    indexes.put( keys[i], i );
+                }
+            } else {
+                indexes = null;
+            }
+        }
+
+        /**
+         * @return the index of the given key, or -1 if it's not one of these keys.
+         */
+        public int indexOf(Object key) {
+            if (indexes != null) {
+                Integer retMe = indexes.get(key);
+                return (retMe != null) ? retMe : -1;
+            }
+
+            // Keys are usually interned, so try identity first.
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public String get(int index) {
+            return keys[index];
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof Keys) && Arrays.equals( keys, ((Keys) obj).keys );
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(keys);
+        }
+    }
+
+    private final Keys keys;
+
+    private final Object[] values;
+
+    /**
+     * Cached hashCode (0 means not computed yet).
+     */
+    private int hash;
+
+    /**
+     * CTOR.
+     *
+     * @param keys the (shared) keys
+     * @param values the values, in the same order as the keys.
+     */
+    public CompactMap(Keys keys, Object[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = keys.indexOf(key);
+        return (index >= 0) ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return keys.indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Object> retMe = new AbstractMap.SimpleImmutableEntry<String, Object>( keys.get(next), values[next] );
+                        ++next;
+                        return retMe;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * Cached, since CompactMaps are immutable (and are hashed when they're interned).
+     */
+    @Override
+    public int hashCode() {
+        int retMe = hash;
+        if (retMe == 0) {
+            retMe = super.hashCode();
+            hash = retMe;
+        }
+        return retMe;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.surfapi.coll;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Converts JSON documents (trees of Maps, Lists, Strings, numbers, etc) into compact, immutable
+ * {@link CompactMap} / {@link CompactList} trees.
+ *
+ * A Compactor keeps intern tables, so the docs it compacts share:
+ *  1. key dictionaries: every map with the same set of keys shares one {@link CompactMap.Keys}
+ *  2. Strings: equal keys and String values are the same instance (e.g. "metaType", "method")
+ *  3. nested maps and lists: equal sub-documents (e.g. the type stub for java.lang.String, or
+ *     an empty list) are the same instance.
+ *
+ * The intern tables live as long as the Compactor, so use one Compactor per DB.
+ * Compactors are thread-safe.
+ */
+public class Compactor {
+
+    private final ConcurrentHashMap<Object, Object> strings = new ConcurrentHashMap<Object, Object>();
+
+    private final ConcurrentHashMap<List<String>, CompactMap.Keys> keyDictionaries = new ConcurrentHashMap<List<String>, CompactMap.Keys>();
+
+    private final ConcurrentHashMap<Object, Object> subDocs = new ConcurrentHashMap<Object, Object>();
+
+    /**
+     * Compact the given top-level document.  The document itself isn't interned (docs are
+     * unique by _id anyway), but its keys, values and sub-documents are.
+     *
+     * @return a CompactMap with the same contents as the given doc.
+     */
+    public CompactMap compact(Map doc) {
+        return (doc instanceof CompactMap) ? (CompactMap) doc : compactMap(doc);
+    }
+
+    /**
+     * @return the compacted (and interned) form of the given value.
+     */
+    protected Object compactValue(Object value) {
+        if (value instanceof String) {
+            return intern( strings, value );
+        } else if (value instanceof CompactMap || value instanceof CompactList) {
+            return intern( subDocs, value );
+        } else if (value instanceof Map) {
+            return intern( subDocs, compactMap( (Map) value ) );
+        } else if (value instanceof List) {
+            List list = (List) value;
+            Object[] values = new Object[ list.size() ];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = compactValue( list.get(i) );
+            }
+            return intern( subDocs, new CompactList(values) );
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * @return a CompactMap (not interned) with the same contents as the given map.
+     */
+    protected CompactMap compactMap(Map map) {
+        String[] keys = new String[ map.size() ];
+        int i = 0;
+        for (Object key : map.keySet()) {
+            keys[i++] = (String) intern( strings, key );
+        }
+        Arrays.sort(keys);
+
+        CompactMap.Keys dictionary = keyDictionaries.get( Arrays.asList(keys) );
+        if (dictionary == null) {
+            dictionary = new CompactMap.Keys(keys);
+            CompactMap.Keys existing = keyDictionaries.putIfAbsent( Arrays.asList(keys), dictionary );
+            dictionary = (existing != null) ? existing : dictionary;
+        }
+
+        Object[] values = new Object[ keys.length ];
+        for (i = 0; i < keys.length; ++i) {
+            values[i] = compactValue( map.get( keys[i] ) );
+        }
+
+        return new CompactMap(dictionary, values);
+    }
+
+    /**
+     * @return the interned instance of the given value.
+     */
+    protected static Object intern(ConcurrentHashMap<Object, Object> table, Object value) {
+        Object existing = table.putIfAbsent(value, value);
+        return (existing != null) ? existing : value;
+    }
+
+    /**
+     * @return the number of distinct Strings, key dictionaries, and sub-documents interned so far.
+     */
+    public String getStats() {
+        return "strings: " + strings.size() + ", key dictionaries: " + keyDictionaries.size() + ", sub-documents: " + subDocs.size();
+    }
+
+    /**
+     * @return a mutable (JSONObject / JSONArray) deep copy of the given value, for code that
+     *         needs to modify a document read from the DB.
+     */
+    public static Object toMutable(Object value) {
+        if (value instanceof Map) {
+            JSONObject retMe = new JSONObject();
+            for (Map.Entry entry : (Set<Map.Entry>) ((Map) value).entrySet()) {
+                retMe.put( entry.getKey(), toMutable( entry.getValue() ) );
+            }
+            return retMe;
+        } else if (value instanceof List) {
+            JSONArray retMe = new JSONArray();
+            for (Object elem : (List) value) {
+                retMe.add( toMutable(elem) );
+            }
+            return retMe;
+        } else {
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,463 @@
+package com.surfapi.coll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact, in-memory character trie mapping String keys to values.
+ *
+ * Each node keeps its children in a pair of parallel arrays (sorted chars + child nodes)
+ * rather than a HashMap, so the per-node overhead is small and a depth-first walk
+ * visits keys in lexicographic order.
+ *
+ * The trie can optionally be "ranked" via {@link #rank}, which precomputes, for every node,
+ * the top-K values in the node's subtree.  Ranked prefix queries ({@link #findTopByPrefix})
+ * are then a single node lookup with no sorting at query time.
+ *
+ * {@link #findFuzzyByPrefix} does an approximate prefix search, walking the trie with the
+ * rows of a bounded (optimal string alignment) edit-distance matrix and pruning any branch
+ * whose row minimum exceeds the allowed number of edits.
+ *
+ * The trie is not thread-safe for writes.  The intended usage is to build (and rank) it
+ * completely on one thread and then publish it (e.g. via a volatile/concurrent ref)
+ * for read-only use by many threads.
+ */
+public class PrefixTrie<T> {
+
+    /**
+     * The root node (corresponds to the empty string).
+     */
+    private final Node<T> root = new Node<T>();
+
+    /**
+     * The number of values in the trie.
+     */
+    private int size = 0;
+
+    /**
+     * The number of values precomputed per node by {@link #rank}, or 0 if the trie isn't ranked.
+     */
+    private int topK = 0;
+
+    /**
+     * Add the given value under the given key.  Multiple values may be added under the same key.
+     *
+     * @return this
+     */
+    public PrefixTrie<T> put(String key, T value) {
+        if (topK > 0) {
+            throw new IllegalStateException("Cannot add to a PrefixTrie after it's been ranked");
+        }
+
+        Node<T> node = root;
+
+        for (int i=0; i < key.length(); ++i) {
+            node = node.getOrAddChild( key.charAt(i) );
+        }
+
+        node.addValue(value);
+        ++size;
+
+        return this;
+    }
+
+    /**
+     * @return the values stored under exactly the given key (never null).
+     */
+    public List<T> get(String key) {
+        Node<T> node = findNode(key);
+        return (node != null) ? node.getValues() : Collections.<T>emptyList();
+    }
+
+    /**
+     * @return up to limit values whose keys start with the given prefix, in lexicographic key order.
+     */
+    public List<T> findByPrefix(String prefix, int limit) {
+        List<T> retMe = new ArrayList<T>( Math.min(limit, 32) );
+
+        Node<T> node = findNode(prefix);
+        if (node != null) {
+            collect(node, retMe, limit);
+        }
+
+        return retMe;
+    }
+
+    /**
+     * Precompute the top-K values (according to the given comparator) for every node.
+     * Values stored at the same node are also sorted.  Ties are broken by key order.
+     *
+     * No more values may be added to the trie after it's been ranked.
+     *
+     * @param k the number of values to keep per node
+     * @param comparator orders values by rank (highest-ranked first)
+     *
+     * @return this
+     */
+    public PrefixTrie<T> rank(int k, Comparator<? super T> comparator) {
+        this.topK = k;
+        rank(root, k, comparator);
+        return this;
+    }
+
+    /**
+     * Ranked prefix query.  Values stored under exactly the given prefix are returned first 
+     * (in rank order), followed by the highest-ranked values from the rest of the subtree.
+     *
+     * If the trie hasn't been ranked, or the limit exceeds the ranked K, this is equivalent to 
+     * {@link #findByPrefix}.
+     *
+     * @return up to limit values whose keys start with the given prefix.
+     */
+    public List<T> findTopByPrefix(String prefix, int limit) {
+
+        if (topK == 0 || limit > topK) {
+            return findByPrefix(prefix, limit);
+        }
+
+        List<T> retMe = new ArrayList<T>( limit );
+
+        Node<T> node = findNode(prefix);
+        if (node == null) {
+            return retMe;
+        }
+
+        List<T> exactValues = node.getValues();
+
+        for (T value : exactValues) {
+            if (retMe.size() >= limit) {
+                return retMe;
+            }
+            retMe.add(value);
+        }
+
+        for (T value : node.getTopValues()) {
+            if (retMe.size() >= limit) {
+                break;
+            }
+            if (!containsIdentical(exactValues, value)) {
+                retMe.add(value);
+            }
+        }
+
+        return retMe;
+    }
+
+    /**
+     * Approximate prefix query.  Returns values whose keys start with a string within maxEdits 
+     * edits (insertions, deletions, substitutions, adjacent transpositions) of the given prefix.
+     * 
+     * Closer matches are returned first.  Within the same distance, values are returned in rank
+     * order if the trie is ranked, otherwise in key order.
+     *
+     * @return up to limit values whose keys approximately start with the given prefix.
+     */
+    public List<T> findFuzzyByPrefix(String prefix, int maxEdits, int limit) {
+
+        // Matching nodes, bucketed by edit distance.
+        List<List<Node<T>>> matches = new ArrayList<List<Node<T>>>( maxEdits + 1 );
+        for (int i=0; i <= maxEdits; ++i) {
+            matches.add( new ArrayList<Node<T>>() );
+        }
+
+        int[] row = new int[ prefix.length() + 1 ];
+        for (int i=0; i < row.length; ++i) {
+            row[i] = i;
+        }
+
+        if (row[prefix.length()] <= maxEdits) {
+            matches.get( row[prefix.length()] ).add(root);
+        }
+
+        for (int i=0; i < root.getChildCount(); ++i) {
+            fuzzyMatch( root.getChildAt(i), root.getCharAt(i), (char) 0, prefix, row, null, maxEdits, matches );
+        }
+
+        // A node's subtree may also contain matching nodes, so filter out duplicates.
+        List<T> retMe = new ArrayList<T>( Math.min(limit, 32) );
+        Set<T> seen = Collections.newSetFromMap( new IdentityHashMap<T, Boolean>() );
+
+        for (List<Node<T>> nodes : matches) {
+            for (Node<T> node : nodes) {
+                for (T value : getTopValues(node, limit)) {
+                    if (retMe.size() >= limit) {
+                        return retMe;
+                    }
+                    if (seen.add(value)) {
+                        retMe.add(value);
+                    }
+                }
+            }
+        }
+
+        return retMe;
+    }
+
+    /**
+     * @return the number of values in the trie.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the root node.
+     */
+    protected Node<T> getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the node for the given key, or null if no such node exists.
+     */
+    protected Node<T> findNode(String key) {
+        Node<T> node = root;
+
+        for (int i=0; i < key.length() && node != null; ++i) {
+            node = node.getChild( key.charAt(i) );
+        }
+
+        return node;
+    }
+
+    /**
+     * Depth-first collect values from the given node and its descendants, in key order.
+     *
+     * @return true if the limit was reached.
+     */
+    protected boolean collect(Node<T> node, List<T> results, int limit) {
+
+        for (T value : node.getValues()) {
+            if (results.size() >= limit) {
+                return true;
+            }
+            results.add(value);
+        }
+
+        for (int i=0; i < node.getChildCount(); ++i) {
+            if (collect( node.getChildAt(i), results, limit )) {
+                return true;
+            }
+        }
+
+        return results.size() >= limit;
+    }
+
+    /**
+     * @return up to limit values from the given node's subtree, highest-ranked first if the trie
+     *         is ranked, otherwise in key order.
+     */
+    protected List<T> getTopValues(Node<T> node, int limit) {
+        List<T> retMe = new ArrayList<T>( Math.min(limit, 32) );
+
+        if (topK == 0 || limit > topK) {
+            collect(node, retMe, limit);
+        } else {
+            retMe.addAll( node.getValues() );
+            retMe.addAll( node.getTopValues() );
+        }
+
+        return retMe;
+    }
+
+    /**
+     * Compute the edit-distance row for the given node and recurse into its children, so long as
+     * the row minimum is within maxEdits.  Nodes whose key is within maxEdits of the full prefix
+     * are added to the matches, bucketed by distance.
+     *
+     * @param node the node
+     * @param c the char leading to the node
+     * @param prevChar the char leading to the node's parent (0 for the root)
+     * @param prefix the query prefix
+     * @param prevRow the parent node's row
+     * @param prevPrevRow the grandparent node's row (null for the root)
+     */
+    protected void fuzzyMatch(Node<T> node, 
+                              char c, 
+                              char prevChar, 
+                              String prefix, 
+                              int[] prevRow, 
+                              int[] prevPrevRow, 
+                              int maxEdits, 
+                              List<List<Node<T>>> matches) {
+
+        int[] row = new int[ prevRow.length ];
+        row[0] = prevRow[0] + 1;
+        int rowMin = row[0];
+
+        for (int i=1; i < row.length; ++i) {
+            int cost = (prefix.charAt(i-1) == c) ? 0 : 1;
+
+            row[i] = Math.min( Math.min( row[i-1] + 1, prevRow[i] + 1 ), prevRow[i-1] + cost );
+
+            // Adjacent transposition
+            if (prevPrevRow != null && i > 1 && prefix.charAt(i-1) == prevChar && prefix.charAt(i-2) == c) {
+                row[i] = Math.min( row[i], prevPrevRow[i-2] + 1 );
+            }
+
+            rowMin = Math.min( rowMin, row[i] );
+        }
+
+        int distance = row[ row.length - 1 ];
+        if (distance <= maxEdits) {
+            matches.get(distance).add(node);
+        }
+
+        if (rowMin > maxEdits) {
+            return;
+        }
+
+        for (int i=0; i < node.getChildCount(); ++i) {
+            fuzzyMatch( node.getChildAt(i), node.getCharAt(i), c, prefix, row, prevRow, maxEdits, matches );
+        }
+    }
+
+    /**
+     * Compute and set the top-k values for the given node and its descendants.
+     *
+     * Nodes with a single child and no values of their own share the child's list.
+     *
+     * @return the top-k values for the given node.
+     */
+    protected List<T> rank(Node<T> node, int k, Comparator<? super T> comparator) {
+
+        if (node.values != null) {
+            Collections.sort(node.values, comparator);
+        }
+
+        if (node.values == null && node.getChildCount() == 1) {
+            node.topValues = rank(node.getChildAt(0), k, comparator);
+            return node.topValues;
+        }
+
+        // Values are added in key order (own values first, then children in char order) 
+        // and the sort is stable, so ties are broken by key order.
+        List<T> merged = new ArrayList<T>( node.getValues() );
+
+        for (int i=0; i < node.getChildCount(); ++i) {
+            merged.addAll( rank(node.getChildAt(i), k, comparator) );
+        }
+
+        Collections.sort(merged, comparator);
+
+        node.topValues = new ArrayList<T>( merged.subList(0, Math.min( merged.size(), k ) ) );
+
+        return node.topValues;
+    }
+
+    /**
+     * @return true if the given list contains the given value (by identity).
+     */
+    protected boolean containsIdentical(List<T> list, T value) {
+        for (T elem : list) {
+            if (elem == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A single trie node.
+     */
+    protected static class Node<T> {
+
+        private static final char[] NoChars = new char[0];
+
+        private static final Node[] NoNodes = new Node[0];
+
+        /**
+         * Sorted child chars.  childNodes[i] is the child for childChars[i].
+         */
+        private char[] childChars = NoChars;
+
+        private Node[] childNodes = NoNodes;
+
+        /**
+         * Values stored at this node (lazily created).
+         */
+        private List<T> values;
+
+        /**
+         * The top-ranked values in this node's subtree (set by {@link PrefixTrie#rank}).
+         */
+        private List<T> topValues;
+
+        /**
+         * @return the child for the given char, or null.
+         */
+        public Node<T> getChild(char c) {
+            int idx = Arrays.binarySearch(childChars, c);
+            return (idx >= 0) ? childNodes[idx] : null;
+        }
+
+        /**
+         * @return the child for the given char, adding it if it doesn't already exist.
+         */
+        public Node<T> getOrAddChild(char c) {
+            int idx = Arrays.binarySearch(childChars, c);
+
+            if (idx >= 0) {
+                return childNodes[idx];
+            }
+
+            // Insert at the insertion point, keeping the arrays sorted.
+            int ins = -(idx + 1);
+
+            char[] newChars = new char[childChars.length + 1];
+            Node[] newNodes = new Node[childNodes.length + 1];
+
+            System.arraycopy(childChars, 0, newChars, 0, ins);
+            System.arraycopy(childNodes, 0, newNodes, 0, ins);
+            System.arraycopy(childChars, ins, newChars, ins + 1, childChars.length - ins);
+            System.arraycopy(childNodes, ins, newNodes, ins + 1, childNodes.length - ins);
+
+            Node<T> child = new Node<T>();
+            newChars[ins] = c;
+            newNodes[ins] = child;
+
+            childChars = newChars;
+            childNodes = newNodes;
+
+            return child;
+        }
+
+        public int getChildCount() {
+            return childChars.length;
+        }
+
+        public char getCharAt(int i) {
+            return childChars[i];
+        }
+
+        public Node<T> getChildAt(int i) {
+            return childNodes[i];
+        }
+
+        public void addValue(T value) {
+            if (values == null) {
+                values = new ArrayList<T>(1);
+            }
+            values.add(value);
+        }
+
+        /**
+         * @return the values stored at this node (never null).
+         */
+        public List<T> getValues() {
+            return (values != null) ? values : Collections.<T>emptyList();
+        }
+
+        /**
+         * @return the top-ranked values in this node's subtree (never null).
+         */
+        public List<T> getTopValues() {
+            return (topValues != null) ? topValues : Collections.<T>emptyList();
+        }
+    }
+}
@@ -1,7 +1,23 @@
 package com.surfapi.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BulkWriteOperation;
@@ -12,15 +28,59 @@ import com.surfapi.log.Log;
 
 /**
  * Manages bulk-writes to the db.
+ * 
+ * For MongoDBImpl, writes are batched into an unordered bulk upsert.  For other DB 
+ * impls (e.g. the in-memory DBImpl), writes are batched, merged with the existing docs the 
+ * same way mongo would (see {@link #insert(Map)}, {@link #insertAddToSet(Map, String)}), 
+ * and saved via {@link DB#save(String, java.util.Collection)}.
+ * 
+ * A batch is written when it reaches flushCount operations or (if set) flushBytes estimated
+ * bytes.  By default the batch is written synchronously, on the caller's thread.
+ * 
+ * In pipelined mode (see {@link #setPipelined(int)}), full batches are handed to a background 
+ * flusher thread and the caller carries on filling the next batch.  Batches are written in 
+ * order, one at a time.  At most maxInFlightBatches batches are handed off at once; after that 
+ * the caller blocks until one completes (backpressure).  An error writing a background batch 
+ * is rethrown to the caller on its next hand-off, or on {@link #flush()}/{@link #close()}, 
+ * which also wait for all in-flight batches to complete.
  */
-public class BulkWriter {
+public class BulkWriter implements AutoCloseable {
 
-    private MongoDBImpl db;
+    private DB db;
     
     private String collection;
     
     private BulkWriteOperation bulkWriteOperation;
     
+    /**
+     * Pending docs, for non-Mongo DBs.
+     */
+    private List<Map> pendingDocs = new ArrayList<Map>();
+    
+    /**
+     * The $addToSet field for each pending doc, for non-Mongo DBs.  null for docs that replace
+     * the existing doc ({@link #save(Map)}); {@link #SetFields} for docs that are merged into 
+     * the existing doc ({@link #insert(Map)}).
+     */
+    private List<String> pendingAddToSetFields = new ArrayList<String>();
+    
+    /**
+     * Marks a pending doc whose fields are merged into the existing doc, with no $addToSet field.
+     */
+    private static final String SetFields = "$set";
+    
+    /**
+     * Lock stripes for merging pending docs into existing docs, for non-Mongo DBs.  A doc's
+     * stripe is picked by its _id, so BulkWriters merging into different docs (e.g. on other 
+     * threads of a parallel forAll) rarely contend.
+     */
+    private static final ReentrantLock[] MergeLocks = new ReentrantLock[64];
+    static {
+        for (int i = 0; i < MergeLocks.length; ++i) {
+            MergeLocks[i] = new ReentrantLock();
+        }
+    }
+    
     /**
      * The number of inserts made since the last flush.
      */
@@ -31,25 +91,69 @@ public class BulkWriter {
      */
     private int flushCount = 1000;
     
+    /**
+     * The estimated size, in bytes, of the pending operations at which a flush should occur.
+     * 0 means no byte threshold.
+     */
+    private long flushBytes = 0;
+    
+    /**
+     * The estimated size, in bytes, of the operations made since the last flush (only 
+     * tracked if flushBytes is set).
+     */
+    private long pendingBytes = 0;
+    
+    /**
+     * The max number of batches handed off to the background flusher at once.  
+     * 0 means not pipelined.
+     */
+    private int maxInFlightBatches = 0;
+    
+    /**
+     * Permits for in-flight batches, in pipelined mode.
+     */
+    private Semaphore inFlightBatches;
+    
+    /**
+     * Writes batches in the background, in pipelined mode.  Created on the first hand-off 
+     * and shut down when the pipeline is drained (by flush).
+     */
+    private ExecutorService flusher;
+    
+    /**
+     * The first error raised by a background batch, not yet rethrown to the caller.
+     */
+    private final AtomicReference<RuntimeException> flushError = new AtomicReference<RuntimeException>();
+    
     /**
      * 
      */
     private WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
     
+    /**
+     * The elapsed time, in millis, of each batch written by {@link #flush()}.
+     */
+    private List<Long> batchMillis = Collections.synchronizedList( new ArrayList<Long>() );
+    
     /**
      * CTOR.
      */
-    public BulkWriter(MongoDBImpl db, String collection) {
+    public BulkWriter(DB db, String collection) {
         this.db = db;
         this.collection = collection;
-        
-        this.bulkWriteOperation = db.getMongoDB().getCollection( getCollectionName() ).initializeUnorderedBulkOperation();
     }
     
-    public MongoDBImpl getDb() {
+    public DB getDb() {
         return db;
     }
     
+    /**
+     * @return true if writes go thru a mongo BulkWriteOperation.
+     */
+    protected boolean isMongo() {
+        return getDb() instanceof MongoDBImpl;
+    }
+    
     public String getCollectionName() {
         return collection;
     }
@@ -61,20 +165,156 @@ public class BulkWriter {
         return bulkWriteOperation;
     }
     
+    /**
+     * Upsert the given doc.  Its fields are merged into the existing doc (if any), via $set.
+     * 
+     * Note: the given doc is not modified.
+     */
     public BulkWriter insert( Map doc ) {
-        getDb().validateSave( getCollectionName(), doc );
+        
+        if (!isMongo()) {
+            pendingDocs.add(doc);
+            pendingAddToSetFields.add(SetFields);
+            return increment(doc);
+        }
+        
+        ((MongoDBImpl) getDb()).validateSave( getCollectionName(), doc );
         
         // getBulkWriteOperation().insert( new BasicDBObject( doc ) );
-        // The following 'upsert' should work whether or not the _id already exists
+        // The following 'upsert' should work whether or not the _id already exists.
+        // $set a copy of the doc (minus the _id), so the caller's doc keeps its _id.
         getBulkWriteOperation().find( new BasicDBObject( new MapBuilder().append("_id", doc.get("_id") ) ) )
                                .upsert()
-                               .update( new BasicDBObject( new MapBuilder().append( "$set", JavadocMapUtils.removeId(doc) ) ) );
+                               .update( new BasicDBObject( new MapBuilder().append( "$set", JavadocMapUtils.removeId( new HashMap(doc) ) ) ) );
                                
-        return increment();
+        return increment(doc);
+    }
+    
+    /**
+     * Save the given doc, replacing the existing doc (if any) entirely, like {@link DB#save(String, Map)}.
+     * Docs without an _id are inserted (mongo assigns the _id).
+     * 
+     * Note: the given doc is not modified.
+     */
+    public BulkWriter save( Map doc ) {
+        
+        if (!isMongo()) {
+            pendingDocs.add(doc);
+            pendingAddToSetFields.add(null);
+            return increment(doc);
+        }
+        
+        ((MongoDBImpl) getDb()).validateSave( getCollectionName(), doc );
+        
+        if (doc.get("_id") == null) {
+            getBulkWriteOperation().insert( new BasicDBObject( doc ) );
+        } else {
+            getBulkWriteOperation().find( new BasicDBObject( new MapBuilder().append("_id", doc.get("_id") ) ) )
+                                   .upsert()
+                                   .replaceOne( new BasicDBObject( doc ) );
+        }
+        
+        return increment(doc);
+    }
+    
+    /**
+     * @see #save(Map)
+     */
+    public BulkWriter save( Collection<Map> docs ) {
+        for (Map doc : docs) {
+            save(doc);
+        }
+        return this;
+    }
+    
+    /**
+     * Upsert the given doc.  The addToSetField (a List) is merged into the existing doc's
+     * set of values (via $addToSet), rather than replacing it.  All other fields are $set.
+     * 
+     * This saves the caller from reading the existing doc in order to merge the set itself.
+     * 
+     * Note: the given doc is not modified.
+     */
+    public BulkWriter insertAddToSet( Map doc, String addToSetField ) {
+        
+        if (!isMongo()) {
+            pendingDocs.add(doc);
+            pendingAddToSetFields.add(addToSetField);
+            return increment(doc);
+        }
+        
+        ((MongoDBImpl) getDb()).validateSave( getCollectionName(), doc );
+        
+        Map setFields = new HashMap(doc);
+        setFields.remove("_id");
+        List values = (List) setFields.remove(addToSetField);
+        
+        Map update = new MapBuilder().append( "$addToSet", new MapBuilder().append( addToSetField, 
+                                                                                    new MapBuilder().append( "$each", values ) ) );
+        if (!setFields.isEmpty()) {
+            update.put( "$set", setFields );
+        }
+        
+        getBulkWriteOperation().find( new BasicDBObject( new MapBuilder().append("_id", doc.get("_id") ) ) )
+                               .upsert()
+                               .update( new BasicDBObject( update ) );
+        
+        return increment(doc);
+    }
+    
+    /**
+     * @see #insertAddToSet(Map, String)
+     */
+    public BulkWriter insertAddToSet( Collection<Map> docs, String addToSetField ) {
+        for (Map doc : docs) {
+            insertAddToSet(doc, addToSetField);
+        }
+        return this;
     }
     
     public BulkWriter increment() {
-        return (++operationCount >= flushCount) ? flush() : this;
+        return (++operationCount >= flushCount) ? flushBatch() : this;
+    }
+    
+    /**
+     * Count the given doc's operation, and its estimated size if there's a byte threshold.
+     * Writes the batch if it's full.
+     */
+    protected BulkWriter increment( Map doc ) {
+        if (flushBytes > 0) {
+            pendingBytes += estimateSize(doc);
+            if (pendingBytes >= flushBytes) {
+                ++operationCount;
+                return flushBatch();
+            }
+        }
+        return increment();
+    }
+    
+    /**
+     * @return a rough estimate of the given value's encoded size, in bytes (string lengths plus
+     *         a fixed overhead per element), cheap enough to compute for every doc.
+     */
+    protected static long estimateSize( Object value ) {
+        if (value instanceof String) {
+            return ((String) value).length() + 5;
+        } else if (value instanceof Map) {
+            long size = 5;
+            for (Map.Entry entry : ((Map<?,?>) value).entrySet()) {
+                size += String.valueOf(entry.getKey()).length() + 2 + estimateSize(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = 5;
+            for (Object item : (Collection) value) {
+                size += 4 + estimateSize(item);
+            }
+            return size;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length + 5;
+        } else {
+            return 8;
+        }
     }
     
     public BulkWriter insert( List<Map> docs ) {
@@ -100,20 +340,258 @@ public class BulkWriter {
         return this;
     }
 
+    /**
+     * Write the current batch and, in pipelined mode, wait for all in-flight batches to complete.
+     * 
+     * @throws RuntimeException if writing any batch failed (and hasn't already been rethrown).
+     */
     public BulkWriter flush() {
+        try {
+            flushBatch();
+        } finally {
+            awaitInFlightBatches();
+        }
+        checkFlushError();
+        return this;
+    }
+    
+    /**
+     * Same as {@link #flush()}.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+    
+    /**
+     * Write the current batch.  In pipelined mode the batch is handed to the background flusher, 
+     * blocking only if maxInFlightBatches are already in flight.
+     * 
+     * @throws RuntimeException if writing a previous background batch failed.
+     */
+    protected BulkWriter flushBatch() {
+        checkFlushError();
+        
         if (operationCount > 0) {
-            getBulkWriteOperation().execute( getWriteConcern() );
+            final BulkWriteOperation batchWriteOperation = (isMongo()) ? getBulkWriteOperation() : null;
+            final List<Map> batchDocs = pendingDocs;
+            final List<String> batchAddToSetFields = pendingAddToSetFields;
+            
+            operationCount = 0;
+            pendingBytes = 0;
+            bulkWriteOperation = null;
+            pendingDocs = new ArrayList<Map>();
+            pendingAddToSetFields = new ArrayList<String>();
+            
+            Runnable batch = new Runnable() {
+                public void run() {
+                    writeBatch( batchWriteOperation, batchDocs, batchAddToSetFields );
+                }
+            };
+            
+            if (maxInFlightBatches > 0) {
+                handOff( batch );
+            } else {
+                batch.run();
+            }
         }
-        operationCount = 0;
-        bulkWriteOperation = null;
+        
         return this;
     }
+    
+    /**
+     * Write the given batch, recording the elapsed time.
+     */
+    protected void writeBatch( BulkWriteOperation batchWriteOperation, List<Map> batchDocs, List<String> batchAddToSetFields ) {
+        long startTime = System.currentTimeMillis();
+        
+        if (batchWriteOperation != null) {
+            batchWriteOperation.execute( getWriteConcern() );
+        } else {
+            flushPendingDocs( batchDocs, batchAddToSetFields );
+        }
+        
+        batchMillis.add( System.currentTimeMillis() - startTime );
+    }
+    
+    /**
+     * Hand the given batch to the background flusher, waiting for an in-flight batch to 
+     * complete if there are already maxInFlightBatches.
+     */
+    protected void handOff( final Runnable batch ) {
+        
+        inFlightBatches.acquireUninterruptibly();
+        
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BulkWriter-" + getCollectionName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        flusher.execute( new Runnable() {
+            public void run() {
+                try {
+                    batch.run();
+                } catch (RuntimeException e) {
+                    Log.error(BulkWriter.this, "handOff: caught exception writing batch to " + getCollectionName(), e);
+                    flushError.compareAndSet(null, e);
+                } finally {
+                    inFlightBatches.release();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Wait for all in-flight batches to complete, then shut down the flusher.
+     */
+    protected void awaitInFlightBatches() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for in-flight batches to " + getCollectionName(), e);
+            }
+            flusher = null;
+        }
+    }
+    
+    /**
+     * Rethrow (once) the error raised by a background batch, if any.
+     */
+    protected void checkFlushError() {
+        RuntimeException e = flushError.getAndSet(null);
+        if (e != null) {
+            throw e;
+        }
+    }
 
+    /**
+     * Save the pending docs to a non-Mongo DB.  Merged docs (inserts and $addToSet docs) are 
+     * merged with the existing doc (if any) -- or with an earlier pending doc with the same _id 
+     * -- so that multiple pending updates to the same doc all take effect.
+     * 
+     * If there are merged docs, the merge (read + save) holds the lock stripes of the docs' _ids 
+     * (see {@link #MergeLocks}), since other BulkWriters (e.g. on other threads of a parallel forAll) 
+     * may be merging into the same doc.
+     */
+    protected void flushPendingDocs( List<Map> pendingDocs, List<String> pendingAddToSetFields ) {
+        
+        if (Collections.frequency(pendingAddToSetFields, null) == pendingAddToSetFields.size()) {
+            // All replacements, nothing to merge.
+            getDb().save( getCollectionName(), pendingDocs );
+            return;
+        }
+        
+        // Lock the stripes in index order, so concurrent flushes can't deadlock.
+        SortedSet<Integer> stripes = new TreeSet<Integer>();
+        for (Map doc : pendingDocs) {
+            if (doc.get("_id") != null) {
+                stripes.add( getMergeStripe( doc.get("_id") ) );
+            }
+        }
+        
+        for (int stripe : stripes) {
+            MergeLocks[stripe].lock();
+        }
+        
+        try {
+            List<Map> docs = new ArrayList<Map>();
+            Map<Object, Map> docsById = new LinkedHashMap<Object, Map>();
+            
+            for (int i = 0; i < pendingDocs.size(); ++i) {
+                Map doc = pendingDocs.get(i);
+                String addToSetField = pendingAddToSetFields.get(i);
+                
+                if (doc.get("_id") == null) {
+                    docs.add(doc);
+                } else if (addToSetField == null) {
+                    docsById.put( doc.get("_id"), doc );
+                } else {
+                    Map existingDoc = docsById.containsKey( doc.get("_id") ) 
+                                            ? docsById.get( doc.get("_id") )
+                                            : getDb().read( getCollectionName(), (String) doc.get("_id") );
+                    docsById.put( doc.get("_id"), merge( existingDoc, doc, addToSetField ) );
+                }
+            }
+            
+            docs.addAll( docsById.values() );
+            getDb().save( getCollectionName(), docs );
+            
+        } finally {
+            for (int stripe : stripes) {
+                MergeLocks[stripe].unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return the index of the lock stripe for merging into the doc with the given _id.
+     */
+    protected static int getMergeStripe( Object _id ) {
+        return (_id.hashCode() & Integer.MAX_VALUE) % MergeLocks.length;
+    }
+    
+    /**
+     * @param existingDoc the existing doc (may be null)
+     * @param addToSetField the field whose values are merged with the existing doc's set of values,
+     *        or {@link #SetFields} if there is none.
+     * 
+     * @return a copy of the existing doc, with the given doc's fields merged in (i.e. $set), and 
+     *         its addToSetField merged with the existing doc's (i.e. $addToSet).
+     */
+    protected Map merge( Map existingDoc, Map doc, String addToSetField ) {
+        
+        Map retMe = (existingDoc != null) ? new HashMap(existingDoc) : new HashMap();
+        
+        if (addToSetField == SetFields) {
+            retMe.putAll(doc);
+            return retMe;
+        }
+        
+        Set values = new LinkedHashSet();
+        if (existingDoc != null && existingDoc.get(addToSetField) != null) {
+            values.addAll( (List) existingDoc.get(addToSetField) );
+        }
+        values.addAll( (List) doc.get(addToSetField) );
+        
+        retMe.putAll(doc);
+        retMe.put( addToSetField, new ArrayList(values) );
+        return retMe;
+    }
+    
     public BulkWriter setFlushCount(int flushCount) {
         this.flushCount = flushCount;
         return this;
     }
     
+    /**
+     * @param flushBytes the estimated size, in bytes, of pending operations at which a flush 
+     *        should occur (in addition to flushCount).  0 means no byte threshold.
+     */
+    public BulkWriter setFlushBytes(long flushBytes) {
+        this.flushBytes = flushBytes;
+        return this;
+    }
+    
+    /**
+     * Turn on pipelined mode.  See class doc.
+     * 
+     * @param maxInFlightBatches the max number of batches handed off to the background flusher 
+     *        at once (e.g. 1 for double-buffering).  0 turns off pipelined mode.
+     */
+    public BulkWriter setPipelined(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.inFlightBatches = new Semaphore( Math.max(maxInFlightBatches, 1) );
+        return this;
+    }
+    
     public BulkWriter setWriteConcern(WriteConcern writeConcern) {
         this.writeConcern = writeConcern;
         return this;
@@ -122,4 +600,11 @@ public class BulkWriter {
     public WriteConcern getWriteConcern() {
         return writeConcern;
     }
+    
+    /**
+     * @return the elapsed time, in millis, of each batch written so far.
+     */
+    public List<Long> getBatchMillis() {
+        return batchMillis;
+    }
 }
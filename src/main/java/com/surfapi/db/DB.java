@@ -34,6 +34,20 @@ public interface DB  {
         void before(DB db, String collection);
     }
     
+    /**
+     * A forAll callback that reads only a subset of each document's fields.  forAll
+     * fetches just the union of the fields needed by the callbacks in the pass (plus _id),
+     * provided every callback in the pass declares its fields.  See {@link ForAllProjection}.
+     * 
+     * Callbacks receive the projected document, so must not save it back to the db.
+     */
+    public static interface ProjectedForAll extends ForAll {
+        /**
+         * @return the fields read by this callback, or null if it needs the whole document.
+         */
+        public Collection<String> getFields();
+    }
+    
     /**
      * Run given forAll callback against every document in the given set of collections.
      */
@@ -48,6 +62,12 @@ public interface DB  {
      * Run given forAll callbacks against every document in the given collection.
      */
     public void forAll( String collection, Collection<ForAll> callbacks );
+    
+    /**
+     * Run given forAll callbacks against every document in the given set of collections,
+     * processing up to parallelism collections concurrently.  See {@link ParallelForAll}.
+     */
+    public void forAll( Collection<String> collections, Collection<ForAll> callbacks, int parallelism );
 
     /**
      * @return the obj in the given collection at the given key.
@@ -4,24 +4,74 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.json.simple.JSONArray;
 
 import com.surfapi.coll.Cawls;
+import com.surfapi.coll.CompactMap;
+import com.surfapi.coll.Compactor;
 import com.surfapi.coll.MapBuilder;
+import com.surfapi.log.Log;
 
 /**
  * A simple DB implementation for unit testing purposes.
  * 
  * DBImpl itself is a Map of collection names to collections.  Each collection
  * is itself a map of item _ids to items.  So DBIml is a Map of Maps of Maps.
+ * 
+ * Collections are ConcurrentHashMaps, so multiple threads can save to the same 
+ * collection (e.g. a parallel forAll writing to a shared index collection).
+ * 
+ * {@link #createIndex} builds a {@link SecondaryIndex} on a collection field.  The index is 
+ * maintained on save and drop, and find uses it when the filter matches the indexed field
+ * by value or by anchored $regex (sorted indexes only).  Otherwise find scans the collection.
+ * 
+ * remove and update take mongo-style filters; update supports $set, $unset, $pull and 
+ * $addToSet (see {@link #applyUpdate}).
+ * 
+ * If compact mode is on (see {@link #setCompact}), docs are converted to immutable 
+ * {@link CompactMap}s on save, sharing key dictionaries, strings and sub-documents (see 
+ * {@link Compactor}).  Callers that modify docs read from the DB must copy them first 
+ * (e.g. via {@link Compactor#toMutable}).
  */
 public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implements DB {
     
+    /**
+     * Collection name -> field -> index.  Index updates for a collection are synchronized 
+     * on the collection's field->index map.
+     */
+    private final ConcurrentMap<String, Map<String, SecondaryIndex>> indexes = new ConcurrentHashMap<String, Map<String, SecondaryIndex>>();
+    
+    /**
+     * Compacts docs on save.  Null if compact mode is off.
+     */
+    private volatile Compactor compactor;
+    
+    /**
+     * Turn compact mode on/off.  Only affects docs saved from now on.
+     * 
+     * @return this
+     */
+    public DBImpl setCompact(boolean compact) {
+        compactor = (compact) ? new Compactor() : null;
+        return this;
+    }
+    
+    /**
+     * @return the compactor, or null if compact mode is off.
+     */
+    public Compactor getCompactor() {
+        return compactor;
+    }
+    
     /**
      * @return the given collection
      */
@@ -29,11 +79,19 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
     public Map get(Object collection) {
         Map retMe = super.get(collection);
         if (retMe == null) {
-            super.putIfAbsent((String)collection, new HashMap<String, Map>());
+            super.putIfAbsent((String)collection, newCollection((String)collection));
             retMe = super.get(collection);
         }
         return retMe;
     }
+    
+    /**
+     * @return a new, empty collection.  Subclasses override this to store collections elsewhere
+     *         (see {@link OffHeapDB}).
+     */
+    protected Map<String, Map> newCollection(String collection) {
+        return new ConcurrentHashMap<String, Map>();
+    }
 
     /**
      * @throws a RuntimeException if the collection is null, the obj is null, or the obj
@@ -51,7 +109,49 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
     @Override
     public void save(String collection, Map obj) {
         validateSave(collection,obj);
-        get(collection).put( (String) obj.get("_id"), obj );
+        
+        Compactor compactor = this.compactor;
+        if (compactor != null) {
+            obj = compactor.compact(obj);
+        }
+        
+        String _id = (String) obj.get("_id");
+        
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collection);
+        if (collectionIndexes != null) {
+            // Put and re-index under the index lock, so concurrent saves of the same _id 
+            // can't leave the index pointing at the losing doc.
+            synchronized (collectionIndexes) {
+                Map old = (Map) get(collection).put( _id, obj );
+                for (SecondaryIndex index : collectionIndexes.values()) {
+                    if (old != null) {
+                        index.remove(old);
+                    }
+                    index.add(obj);
+                }
+            }
+            return;
+        }
+        
+        Map old = (Map) get(collection).put( _id, obj );
+        
+        // Check for indexes again AFTER the put, so a concurrent createIndex either sees the doc 
+        // in its scan or is seen here.  If it's seen here, index whichever doc won the put.
+        collectionIndexes = indexes.get(collection);
+        if (collectionIndexes != null) {
+            synchronized (collectionIndexes) {
+                Map current = (Map) get(collection).get(_id);
+                for (SecondaryIndex index : collectionIndexes.values()) {
+                    if (old != null) {
+                        index.remove(old);
+                    }
+                    index.remove(obj);
+                    if (current != null) {
+                        index.add(current);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -70,6 +170,18 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
         forAll(collectionName, Arrays.asList(callback));
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forAll(Collection<String> collections, Collection<ForAll> callbacks, int parallelism) {
+        ParallelForAll.forAll(this, collections, callbacks, parallelism);
+    }
+    
+    /**
+     * Note: the documents are projected as they would be by mongo (see {@link ForAllProjection}),
+     * so that callbacks which don't declare all the fields they need fail here too.
+     */
     @Override
     public void forAll(String collectionName, Collection<ForAll> callbacks) {
         
@@ -77,10 +189,13 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
             callback.before(this, collectionName);
         }
         
+        Map<String, Integer> projection = ForAllProjection.union(callbacks);
+        
         Map<String, Map> collection = get(collectionName);
         for (Map obj : collection.values()) {
+            Map projectedObj = ForAllProjection.project(obj, projection);
             for (ForAll callback : callbacks) {
-                callback.call(this, collectionName, obj);
+                callback.call(this, collectionName, projectedObj);
             }
         }
         
@@ -156,14 +271,69 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
      */
     @Override
     public List<Map> find(String collection, Map filter) {
-        return Cawls.findAll( get(collection).values(), filter);
+        return find(collection, filter, 0);
     }
     
-
+    /**
+     * Stops scanning as soon as it's found limit matches.
+     * 
+     * @param limit the max number of docs to return.  0 means no limit (same as mongo).
+     */
     @Override
     public List<Map> find(String collection, Map filter, int limit) {
-        List<Map> results = find(collection, filter);
-        return results.subList(0, Math.min( results.size(), limit ) );
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collection);
+        
+        return (collectionIndexes != null && filter != null) 
+                    ? findIndexed( get(collection), collectionIndexes, filter, limit )
+                    : Cawls.findFirstN( get(collection).values(), filter, limit );
+    }
+    
+    /**
+     * Find using an index on one of the filter's fields, if there is one.  Exact-match 
+     * lookups are preferred over anchored $regex lookups.
+     * 
+     * @return the first limit docs in the given collection that match the given filter.
+     */
+    protected List<Map> findIndexed(Map<String, Map> docs, Map<String, SecondaryIndex> collectionIndexes, Map filter, int limit) {
+        
+        Iterator<String> candidateIds = null;
+        
+        for (Map.Entry entry : (Collection<Map.Entry>) filter.entrySet()) {
+            SecondaryIndex index = collectionIndexes.get( entry.getKey() );
+            
+            if (index == null) {
+                continue;
+            } else if (!(entry.getValue() instanceof Map)) {
+                candidateIds = index.lookup( entry.getValue() ).iterator();
+                break;
+            } else if (candidateIds == null && index.isSorted() && isPrefixRegex( (Map) entry.getValue() )) {
+                candidateIds = index.lookupPrefix( SecondaryIndex.parseAnchoredPrefix( (String) ((Map) entry.getValue()).get("$regex") ) );
+            }
+        }
+        
+        if (candidateIds == null) {
+            return Cawls.findFirstN( docs.values(), filter, limit );
+        }
+        
+        // The candidates still have to match the whole filter (including the regex, if any).
+        List<Map> retMe = new ArrayList<Map>();
+        while (candidateIds.hasNext() && (limit <= 0 || retMe.size() < limit)) {
+            Map doc = docs.get( candidateIds.next() );
+            if (doc != null && Cawls.containsAll( doc, filter ) ) {
+                retMe.add(doc);
+            }
+        }
+        return retMe;
+    }
+    
+    /**
+     * @return true if the given filter criteria is an anchored $regex with no $options 
+     *         (i.e. it can be served by a prefix lookup on a sorted index).
+     */
+    protected boolean isPrefixRegex(Map criteria) {
+        return Cawls.isRegex(criteria) 
+                && !criteria.containsKey("$options")
+                && SecondaryIndex.parseAnchoredPrefix( (String) criteria.get("$regex") ) != null;
     }
 
 
@@ -188,18 +358,64 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
     }
 
     /**
+     * Build an index on each of the given keys.  A key value of "hashed" builds a hashed index; 
+     * anything else (e.g. 1 or -1) builds a sorted index.  Fields that are already indexed are 
+     * skipped.
      * 
+     * Note: a compound key (e.g. { _superclass: 1, qualifiedName: 1 }) gets one index per field, 
+     * since the keys usually come in a MapBuilder (a HashMap), which doesn't keep their order.
      */
     @Override
     public void createIndex(String collection, Map keys) {
-        // NO-OP. throw new IllegalArgumentException("DBImpl.createIndex is not implemented");
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        
+        indexes.putIfAbsent( collection, new ConcurrentHashMap<String, SecondaryIndex>() );
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collection);
+        
+        synchronized (collectionIndexes) {
+            for (Map.Entry key : (Collection<Map.Entry>) keys.entrySet()) {
+                String field = (String) key.getKey();
+                
+                if (collectionIndexes.containsKey(field)) {
+                    continue;
+                }
+                
+                long startTime = System.currentTimeMillis();
+                
+                // Publish the index before scanning, so a concurrent save either is seen by the 
+                // scan or sees the index (see save).
+                SecondaryIndex index = new SecondaryIndex( field, !"hashed".equals( key.getValue() ) );
+                collectionIndexes.put( field, index );
+                
+                Map<String, Map> docs = get(collection);
+                for (Map doc : docs.values()) {
+                    index.add(doc);
+                }
+                
+                Log.info(this, "createIndex: " + collection + ": " + index + " over " + docs.size() + " docs in " 
+                               + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        }
+    }
+    
+    /**
+     * @return the indexes on the given collection.
+     */
+    public Collection<SecondaryIndex> getIndexes(String collection) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collection);
+        return (collectionIndexes != null) 
+                    ? new ArrayList<SecondaryIndex>( collectionIndexes.values() ) 
+                    : new ArrayList<SecondaryIndex>();
     }
 
     /**
-     * Delete the given collection from the DB.
+     * Delete the given collection (and its indexes) from the DB.
      */
     @Override
     public void drop(String collection) {
+        indexes.remove(collection);
         super.remove(collection);
     }
 
@@ -208,18 +424,48 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
      */
     @Override
     public void drop() {
+        indexes.clear();
         super.clear();
     }
 
     /**
+     * Remove all docs that match the given filter (e.g. by _id, or by $regex).
      * 
+     * @return the number of docs removed.
      */
     @Override
     public Object remove(String collection, Map filter) {
+        int count = 0;
         for (Map doc : find(collection, filter)) {
-            // TODO
+            if (removeDoc( collection, (String) doc.get("_id") ) != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Remove the doc with the given _id (and its index entries).
+     * 
+     * @return the removed doc, or null.
+     */
+    protected Map removeDoc(String collection, String _id) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collection);
+        if (collectionIndexes == null) {
+            return (Map) get(collection).remove(_id);
+        }
+        
+        // Remove under the index lock, so a concurrent save of the same _id can't have its
+        // index entry removed along with this doc's (see save).
+        synchronized (collectionIndexes) {
+            Map old = (Map) get(collection).remove(_id);
+            if (old != null) {
+                for (SecondaryIndex index : collectionIndexes.values()) {
+                    index.remove(old);
+                }
+            }
+            return old;
         }
-        return null;
     }
 
     @Override
@@ -235,9 +481,101 @@ public class DBImpl extends ConcurrentHashMap<String, Map<String, Map>> implemen
         return "Map-based-db-for-testing";
     }
 
+    /**
+     * Update all docs that match the given query (like MongoDBImpl, but without upsert).
+     * Each matching doc is copied, updated, and saved.  Note: the read-update-save isn't 
+     * atomic with respect to other writes to the same doc.
+     * 
+     * @param fields either a replacement doc (which keeps the _id), or update operators (see 
+     *        {@link #applyUpdate}).
+     */
     @Override
     public void update(String collectionName, Map query, Map fields) {
-        throw new RuntimeException("not implemented");
+        for (Map doc : find(collectionName, query)) {
+            save( collectionName, applyUpdate(doc, fields) );
+        }
+    }
+    
+    /**
+     * Supported update operators:
+     * 
+     *   $set: { field: value, ... }
+     *   $unset: { field: "", ... }
+     *   $pull: { field: value, ... } - remove the matching elements (by value or $regex) from a list field 
+     *   $addToSet: { field: value, ... } - add the value (or each of { "$each": [ values ] }) to a list 
+     *               field, unless it's already there.
+     * 
+     * Fields are top-level (no dotted paths).
+     * 
+     * @return an updated (mutable) copy of the given doc.
+     */
+    protected static Map applyUpdate(Map doc, Map update) {
+        
+        if ( ! isUpdateOperators(update) ) {
+            Map retMe = (Map) Compactor.toMutable(update);
+            retMe.put("_id", doc.get("_id"));
+            return retMe;
+        }
+        
+        Map retMe = (Map) Compactor.toMutable(doc);
+        
+        for (Map.Entry op : (Set<Map.Entry>) update.entrySet()) {
+            for (Map.Entry field : (Set<Map.Entry>) ((Map) op.getValue()).entrySet()) {
+                Object name = field.getKey();
+                Object value = field.getValue();
+                
+                if ("_id".equals(name)) {
+                    throw new IllegalArgumentException("Cannot update the _id field: " + update);
+                    
+                } else if ("$set".equals(op.getKey())) {
+                    retMe.put( name, Compactor.toMutable(value) );
+                    
+                } else if ("$unset".equals(op.getKey())) {
+                    retMe.remove( name );
+                    
+                } else if ("$pull".equals(op.getKey())) {
+                    if (retMe.get(name) instanceof List) {
+                        for (Iterator iter = ((List) retMe.get(name)).iterator(); iter.hasNext(); ) {
+                            if (Cawls.matches( iter.next(), value )) {
+                                iter.remove();
+                            }
+                        }
+                    }
+                    
+                } else if ("$addToSet".equals(op.getKey())) {
+                    List values = (List) retMe.get(name);
+                    if (values == null) {
+                        values = new JSONArray();
+                        retMe.put( name, values );
+                    }
+                    
+                    boolean each = (value instanceof Map) && ((Map) value).containsKey("$each");
+                    for (Object elem : (each) ? (List) ((Map) value).get("$each") : Arrays.asList(value)) {
+                        if ( ! values.contains(elem) ) {
+                            values.add( Compactor.toMutable(elem) );
+                        }
+                    }
+                    
+                } else {
+                    throw new IllegalArgumentException("Unsupported update operator: " + op.getKey());
+                }
+            }
+        }
+        
+        return retMe;
+    }
+    
+    /**
+     * @return true if the given update is made of update operators (e.g. $set), rather than
+     *         being a replacement doc.
+     */
+    protected static boolean isUpdateOperators(Map update) {
+        for (Object key : update.keySet()) {
+            if (((String) key).startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
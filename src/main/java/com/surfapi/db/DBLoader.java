@@ -1,13 +1,21 @@
 package com.surfapi.db;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -21,6 +29,7 @@ import com.surfapi.coll.MapBuilder;
 import com.surfapi.db.post.AutoCompleteIndex;
 import com.surfapi.db.post.JavadocPostProcessor;
 import com.surfapi.db.post.ReferenceNameQuery;
+import com.surfapi.json.JSONArrayStreamer;
 import com.surfapi.log.Log;
 
 /**
@@ -37,14 +46,49 @@ import com.surfapi.log.Log;
  * e.g. _id and _library.
  * 
  * The DBLoader instance is injected with the DB reference via {@link #inject(DB)};
+ * 
+ * Files are streamed: documents are parsed one at a time and saved in batches of batchSize
+ * docs, so the loader holds at most one batch in memory rather than the whole library.
+ * A batchSize of 0 parses each file whole, then saves it.
+ * 
+ * The files in a directory are loaded in parallel (each file is an independent library 
+ * collection), up to parallelism files at a time.
  */
 public class DBLoader {
     
+    /**
+     * System property for the number of docs per save when loading a file (default 1000).
+     * 0 means parse the whole file, then save it.
+     */
+    public static final String BatchSizePropertyName = "com.surfapi.dbLoader.batchSize";
+    
+    /**
+     * System property for the number of files loaded concurrently by {@link #loadDir} 
+     * (default: the number of available processors).
+     */
+    public static final String ParallelismPropertyName = "com.surfapi.dbLoader.parallelism";
+    
+    /**
+     * Library overview field: when the library was uploaded (millis).  Identifies the
+     * library's "generation", so caches keyed on it go stale when the library is re-uploaded.
+     */
+    public static final String UploadedAtFieldName = "_uploadedAt";
+    
     /**
      * Ref to the DB.
      */
     private DB db;
     
+    /**
+     * The number of docs per save.  0 means parse the whole file, then save it.
+     */
+    private int batchSize = Integer.getInteger(BatchSizePropertyName, 1000);
+    
+    /**
+     * The number of files loaded concurrently by {@link #loadDir}.
+     */
+    private int parallelism = Integer.getInteger(ParallelismPropertyName, Runtime.getRuntime().availableProcessors());
+    
     /**
      * Inject DB.
      * 
@@ -77,12 +121,84 @@ public class DBLoader {
      */
     public DBLoader loadDir( File dataDir ) throws IOException, ParseException {
         
+        long startTime = System.currentTimeMillis();
+        
         Collection<File> jsonFileList = FileUtils.listFiles(dataDir, new String[] { "json"}, true);
         
-        for (File jsonFile : jsonFileList) {
-            loadFile( jsonFile );
+        if (parallelism <= 1 || jsonFileList.size() <= 1) {
+            for (File jsonFile : jsonFileList) {
+                loadFile( jsonFile );
+            }
+        } else {
+            loadFilesParallel( jsonFileList );
         }
         
+        Log.info(this, "loadDir: loaded " + jsonFileList.size() + " files from " + dataDir + " in " 
+                       + (System.currentTimeMillis() - startTime) + " ms, with parallelism " + parallelism);
+        
+        return this;
+    }
+    
+    /**
+     * Load the given files concurrently, up to parallelism at a time.
+     * 
+     * @throws the first failure (after all files have been attempted).
+     */
+    protected void loadFilesParallel( final Collection<File> jsonFiles ) throws IOException, ParseException {
+        
+        final AtomicInteger loadedCount = new AtomicInteger();
+        
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min(parallelism, jsonFiles.size()) );
+        
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            
+            for (final File jsonFile : jsonFiles) {
+                futures.add( executor.submit( new Callable<Void>() {
+                    public Void call() throws Exception {
+                        long fileStartTime = System.currentTimeMillis();
+                        loadFile( jsonFile );
+                        Log.info(DBLoader.this, "loadFilesParallel: loaded " + loadedCount.incrementAndGet() + "/" + jsonFiles.size()
+                                                + ": " + jsonFile.getName() + " in " + (System.currentTimeMillis() - fileStartTime) + " ms");
+                        return null;
+                    }
+                }));
+            }
+            
+            Throwable failure = null;
+            
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Log.error(this, "loadFilesParallel: caught exception: " + e.getCause());
+                    failure = (failure != null) ? failure : e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted loading " + jsonFiles.size() + " files", e);
+                }
+            }
+            
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof ParseException) {
+                throw (ParseException) failure;
+            } else if (failure != null) {
+                throw new RuntimeException("Failed to load files", failure);
+            }
+            
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * @param parallelism the number of files loaded concurrently by {@link #loadDir}.
+     * 
+     * @return this
+     */
+    public DBLoader setParallelism(int parallelism) {
+        this.parallelism = parallelism;
         return this;
     }
     
@@ -94,12 +210,26 @@ public class DBLoader {
         
         String libraryId = parseLibraryId( jsonFile.getName() );
         
-        popDB( libraryId, loadJsonFile( jsonFile ) );
-
+        if (batchSize > 0) {
+            streamDB( libraryId, jsonFile );
+        } else {
+            popDB( libraryId, loadJsonFile( jsonFile ), jsonFile.lastModified() );
+        }
         
         return this;
     }
     
+    /**
+     * @param batchSize the number of docs per save when loading a file.  0 means parse the 
+     *        whole file, then save it.
+     * 
+     * @return this
+     */
+    public DBLoader setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+    
     /**
      * The given fileName must be in the format {@literal "<libraryName>_<libraryVersion>.json"}.
      *
@@ -143,14 +273,60 @@ public class DBLoader {
      * {@link DB#LibraryCollectionName} collection.
      */
     public DBLoader popDB( String libraryId, List<Map> docs ) {
+        return popDB( libraryId, docs, System.currentTimeMillis() );
+    }
+    
+    /**
+     * @see #popDB(String, List)
+     * 
+     * @param uploadedAt the library's upload time (see {@link #UploadedAtFieldName}).
+     */
+    public DBLoader popDB( String libraryId, List<Map> docs, long uploadedAt ) {
         
         // Add all the json doc data
+        List<Map> builtDocs = new ArrayList<Map>( docs.size() );
         for (Map doc : docs ) {
-            db.save( libraryId, buildDocument( libraryId, doc ));
+            builtDocs.add( buildDocument( libraryId, doc ) );
+        }
+        db.save( libraryId, builtDocs );
+        
+        // Create an overview for the library (e.g. a package list for a java library).
+        db.save(DB.LibraryCollectionName, createLibraryOverview(libraryId, uploadedAt));
+        
+        return this;
+    }
+    
+    /**
+     * Stream the documents in the given json file into the DB for the given libraryID, 
+     * saving batchSize docs at a time.  Same as {@link #popDB}, except only one batch 
+     * of docs is in memory at a time.
+     */
+    public DBLoader streamDB( final String libraryId, File jsonFile ) throws IOException, ParseException {
+        
+        final List<Map> batch = new ArrayList<Map>( batchSize );
+        
+        Reader reader = new BufferedReader( new FileReader( jsonFile ) );
+        try {
+            JSONArrayStreamer.stream( reader, new JSONArrayStreamer.Handler() {
+                public void onElement(Object doc) {
+                    batch.add( buildDocument( libraryId, (Map) doc ) );
+                    if (batch.size() >= batchSize) {
+                        db.save( libraryId, batch );
+                        batch.clear();
+                    }
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        
+        if (!batch.isEmpty()) {
+            db.save( libraryId, batch );
         }
         
         // Create an overview for the library (e.g. a package list for a java library).
-        db.save(DB.LibraryCollectionName, createLibraryOverview(libraryId));
+        // The json file was written when the library was uploaded.
+        db.save(DB.LibraryCollectionName, createLibraryOverview(libraryId, jsonFile.lastModified()));
         
         return this;
     }
@@ -176,9 +352,18 @@ public class DBLoader {
     }
 
     /**
-     * @return an overview for the given library (e.g. a package list for a java library).
+     * @return an overview for the given library, uploaded now.
      */
     public Map createLibraryOverview(String libraryId) {
+        return createLibraryOverview(libraryId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param uploadedAt the library's upload time (see {@link #UploadedAtFieldName}).
+     * 
+     * @return an overview for the given library (e.g. a package list for a java library).
+     */
+    public Map createLibraryOverview(String libraryId, long uploadedAt) {
         
         List<Map> packageStubs = new ArrayList<Map>();
  
@@ -190,6 +375,7 @@ public class DBLoader {
         Map retMe =  JavadocMapUtils.mapLibraryId(libraryId);
         retMe.put("packages", packageStubs);
         retMe.put("metaType", "library");
+        retMe.put(UploadedAtFieldName, uploadedAt);
         return retMe;
     }
     
@@ -1,32 +1,216 @@
 package com.surfapi.db;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+
+import com.surfapi.log.Log;
 
 /**
- *
+ * Holds the DB instance.  Unless one is injected via {@link #setDb}, the DB is loaded 
+ * from the data files on first use.
+ * 
+ * Loading is single-flight: however many threads ask for the DB at once, it's loaded only 
+ * once.  The first caller runs the load (or it's started in the background by {@link #startLoading()}), 
+ * and the other callers wait for it.  {@link #isReady()} reports whether the DB is loaded,
+ * without waiting.
  */
 public class DBService {
     
     /**
      * In need of Dependency injection.
      */
-    private static DB staticInstance;
+    private static volatile DB staticInstance;
+    
+    /**
+     * The in-progress (or failed) load, if any.
+     */
+    private static final AtomicReference<FutureTask<DB>> loadTask = new AtomicReference<FutureTask<DB>>();
     
     /**
      * The dir containing all the raw data files.
      */
     public static File dataDir = new File( System.getProperty("DATA_DIR", "data") );
+    
+    /**
+     * Whether the loaded DB stores docs in compact form (see {@link DBImpl#setCompact}).
+     */
+    public static boolean compactDocs = Boolean.parseBoolean( System.getProperty("COMPACT_DOCS", "true") );
+    
+    /**
+     * The DB snapshot file (see {@link DBSnapshot}), if any.  If the snapshot is newer than all 
+     * the data files, the DB is restored from it; otherwise the DB is loaded from the data files 
+     * and the snapshot is (re)written.
+     */
+    public static File snapshotFile = (System.getProperty("SNAPSHOT_FILE") != null) 
+                                            ? new File( System.getProperty("SNAPSHOT_FILE") ) 
+                                            : null;
 
     /**
-     * @return the DB instance.  first call will load the DB from the HFS.
+     * @return the DB instance.  If it's not loaded yet, the calling thread loads it (or waits
+     *         for the load already in progress).
+     * 
+     * @throws RuntimeException if the load failed.  The next call retries it.
      */
     public static DB getDb() {
-        if (staticInstance == null) {
-            DB db = new DBImpl();
-            new DBLoader().inject( db ).loadUnchecked(dataDir);  // TODO: not thread safe i don't think (even with synchronized)
-            setDb(db);
+        DB db = staticInstance;
+        return (db != null) ? db : awaitLoad();
+    }
+    
+    /**
+     * @return true if the DB is loaded (or was injected).
+     */
+    public static boolean isReady() {
+        return staticInstance != null;
+    }
+    
+    /**
+     * Start loading the DB on a background thread, unless it's already loaded or loading.  
+     * Returns immediately.
+     */
+    public static void startLoading() {
+        if (isReady()) {
+            return;
+        }
+        
+        // Retry a failed load.  Note: a load may have succeeded since the isReady check above.
+        FutureTask<DB> current = loadTask.get();
+        if (current != null && current.isDone()) {
+            try {
+                current.get();
+                return;     // succeeded
+            } catch (ExecutionException e) {
+                loadTask.compareAndSet(current, null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();     // not possible, the task is done.
+                return;
+            }
+        }
+        
+        FutureTask<DB> task = newLoadTask();
+        
+        if (loadTask.compareAndSet(null, task)) {
+            Thread thread = new Thread(task, "DBService-load");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Run the load on the calling thread, or wait for the load already in progress.
+     * 
+     * @return the loaded DB
+     */
+    protected static DB awaitLoad() {
+        while (true) {
+            FutureTask<DB> task = loadTask.get();
+            
+            if (task == null) {
+                FutureTask<DB> newTask = newLoadTask();
+                if (!loadTask.compareAndSet(null, newTask)) {
+                    continue;   // another thread started a load first.
+                }
+                newTask.run();
+                task = newTask;
+            }
+            
+            try {
+                return task.get();
+                
+            } catch (ExecutionException e) {
+                // Let the next caller retry.
+                loadTask.compareAndSet(task, null);
+                throw new RuntimeException("Failed to load DB", e.getCause());
+                
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for the DB to load", e);
+            }
         }
-        return staticInstance;
+    }
+    
+    /**
+     * @return a task that loads the DB and sets it as the staticInstance (unless a DB was 
+     *         injected via setDb in the meantime, in which case that one is kept).
+     */
+    protected static FutureTask<DB> newLoadTask() {
+        return new FutureTask<DB>( new Callable<DB>() {
+            public DB call() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    DB db = load();
+                    
+                    synchronized (DBService.class) {
+                        if (staticInstance == null) {
+                            staticInstance = db;
+                        }
+                    }
+                    
+                    Log.info("DBService: DB loaded in " + (System.currentTimeMillis() - startTime) + " ms");
+                    return staticInstance;
+                    
+                } catch (RuntimeException e) {
+                    Log.error("DBService: failed to load DB: " + e);
+                    throw e;
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return a new DBImpl, restored from the snapshot file if it's up to date; otherwise
+     *         loaded from the data dir.
+     */
+    protected static DB load() {
+        if (isSnapshotCurrent()) {
+            try {
+                return DBSnapshot.read(snapshotFile);
+            } catch (Exception e) {
+                // e.g. a snapshot written by an older version, or a corrupt one.  Reload and rewrite it.
+                Log.info("DBService.load: failed to read snapshot " + snapshotFile + ": " + e + "; reloading from " + dataDir);
+            }
+        }
+        
+        DBImpl db = new DBImpl().setCompact( compactDocs );
+        new DBLoader().inject( db ).loadUnchecked(dataDir);
+        
+        if (snapshotFile != null) {
+            try {
+                DBSnapshot.write(db, snapshotFile);
+            } catch (Exception e) {
+                // Not fatal; the DB is loaded.  The snapshot is rewritten on the next load.
+                Log.error("DBService.load: failed to write snapshot " + snapshotFile + ": " + e);
+            }
+        }
+        return db;
+    }
+    
+    /**
+     * @return true if the snapshot file exists and is newer than all the data files.
+     */
+    protected static boolean isSnapshotCurrent() {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return false;
+        }
+        
+        if (dataDir.exists()) {
+            Collection<File> jsonFiles = (dataDir.isDirectory()) 
+                                            ? FileUtils.listFiles(dataDir, new String[] { "json"}, true)
+                                            : Arrays.asList(dataDir);
+            for (File jsonFile : jsonFiles) {
+                if (jsonFile.lastModified() > snapshotFile.lastModified()) {
+                    Log.info("DBService.isSnapshotCurrent: snapshot " + snapshotFile + " is older than " + jsonFile);
+                    return false;
+                }
+            }
+        }
+        return true;
     }
     
     /**
@@ -37,4 +221,12 @@ public class DBService {
         return DBService.staticInstance;
     }
     
-}
\ No newline at end of file
+    /**
+     * Forget the DB (and any load), so the next getDb loads it again.  For tests.
+     */
+    public static synchronized void reset() {
+        staticInstance = null;
+        loadTask.set(null);
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,497 @@
+package com.surfapi.db;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.log.Log;
+
+/**
+ * Writes a DBImpl to a compact binary snapshot file, and restores a DBImpl from one.
+ *
+ * Restoring a snapshot is much faster than re-loading the raw JSON with DBLoader: there's
+ * no JSON parsing and no recomputing _id/_library.  The file is memory-mapped and each document
+ * is decoded lazily, on first access, so documents that are never read never take up heap.
+ *
+ * Format (all counts, lengths and string references are unsigned varints):
+ *
+ *   magic, version                                     (4-byte ints)
+ *   stringCount, { length, UTF-8 bytes } ...           (the string table)
+ *   collectionCount, { nameRef, docCount, { keyRef, docLength, doc } ...,
+ *                      indexCount, { fieldRef, sorted (1 byte) } ... } ...
+ *
+ * Every string (map keys and string values) is stored once in the string table and referenced
+ * by index.  The table is read eagerly on restore, so all docs share the same String instances.
+ *
+ * Docs are encoded as tagged values: maps and lists are count-prefixed; longs/ints are zigzag
+ * varints; doubles are 8 bytes; byte arrays are length-prefixed.  Decoded maps and lists are
+ * JSONObjects and JSONArrays, same as DBLoader produces.
+ *
+ * Only the index definitions are stored; the indexes are rebuilt on restore (which decodes
+ * the docs in the indexed collections).
+ */
+public class DBSnapshot {
+
+    /**
+     * "SAPI"
+     */
+    private static final int Magic = 0x53415049;
+
+    private static final int Version = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Value tags.
+     */
+    private static final byte NullTag = 0;
+    private static final byte StringTag = 1;
+    private static final byte LongTag = 2;
+    private static final byte IntegerTag = 3;
+    private static final byte DoubleTag = 4;
+    private static final byte TrueTag = 5;
+    private static final byte FalseTag = 6;
+    private static final byte MapTag = 7;
+    private static final byte ListTag = 8;
+    private static final byte BytesTag = 9;
+
+    /**
+     * Write the given db to the given snapshot file.  The snapshot is written to a temp file
+     * which is then renamed over the snapshot file, so a crash mid-write doesn't leave a 
+     * truncated snapshot behind.
+     */
+    public static void write(DBImpl db, File file) throws IOException {
+
+        long startTime = System.currentTimeMillis();
+
+        // First pass: build the string table.
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+
+        for (Map.Entry<String, Map<String, Map>> collection : db.entrySet()) {
+            addString( strings, collection.getKey() );
+            for (SecondaryIndex index : db.getIndexes( collection.getKey() )) {
+                addString( strings, index.getField() );
+            }
+            for (Map.Entry<String, Map> doc : collection.getValue().entrySet()) {
+                addString( strings, doc.getKey() );
+                addStrings( strings, doc.getValue() );
+            }
+        }
+
+        // Second pass: write it all out.
+        File tempFile = new File( file.getPath() + ".tmp" );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(tempFile), 64 * 1024 ) );
+        boolean written = false;
+        try {
+            out.writeInt(Magic);
+            out.writeInt(Version);
+
+            writeVarInt( out, strings.size() );
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(UTF8);
+                writeVarInt( out, bytes.length );
+                out.write( bytes );
+            }
+
+            ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+
+            writeVarInt( out, db.size() );
+            for (Map.Entry<String, Map<String, Map>> collection : db.entrySet()) {
+
+                // Snapshot the docs, since the collection may be modified concurrently.
+                Map<String, Map> docs = new LinkedHashMap<String, Map>( collection.getValue() );
+
+                writeVarInt( out, strings.get( collection.getKey() ) );
+                writeVarInt( out, docs.size() );
+
+                for (Map.Entry<String, Map> doc : docs.entrySet()) {
+                    docBytes.reset();
+                    writeValue( docBytes, strings, doc.getValue() );
+
+                    writeVarInt( out, strings.get( doc.getKey() ) );
+                    writeVarInt( out, docBytes.size() );
+                    docBytes.writeTo( out );
+                }
+
+                Collection<SecondaryIndex> indexes = db.getIndexes( collection.getKey() );
+                writeVarInt( out, indexes.size() );
+                for (SecondaryIndex index : indexes) {
+                    writeVarInt( out, strings.get( index.getField() ) );
+                    out.writeByte( index.isSorted() ? 1 : 0 );
+                }
+            }
+            
+            out.close();
+            
+            // renameTo won't replace an existing file on some platforms.
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            written = true;
+            
+        } finally {
+            out.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+
+        Log.info("DBSnapshot.write: wrote " + db.size() + " collections, " + strings.size() + " strings, "
+                 + file.length() + " bytes to " + file + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @return a new DBImpl restored from the given snapshot file.  Docs are decoded lazily.
+     */
+    public static DBImpl read(File file) throws IOException {
+        return read( file, new DBImpl() );
+    }
+
+    /**
+     * Restore the given snapshot file into the given DBImpl.
+     *
+     * @return db
+     */
+    public static DBImpl read(File file, DBImpl db) throws IOException {
+
+        long startTime = System.currentTimeMillis();
+
+        ByteBuffer buffer = map(file);
+
+        if (buffer.getInt() != Magic || buffer.getInt() != Version) {
+            throw new IOException("Not a DB snapshot file (or an unsupported version): " + file);
+        }
+
+        String[] strings = new String[ readVarInt(buffer) ];
+        byte[] stringBytes = new byte[256];
+
+        for (int i = 0; i < strings.length; ++i) {
+            int length = readVarInt(buffer);
+            if (length > stringBytes.length) {
+                stringBytes = new byte[ Math.max(length, stringBytes.length * 2) ];
+            }
+            buffer.get(stringBytes, 0, length);
+            strings[i] = new String(stringBytes, 0, length, UTF8);
+        }
+
+        int docCount = 0;
+
+        for (int collectionCount = readVarInt(buffer); collectionCount > 0; --collectionCount) {
+
+            String collectionName = strings[ readVarInt(buffer) ];
+            Map<String, Map> collection = db.get( collectionName );
+
+            for (int i = readVarInt(buffer); i > 0; --i) {
+                String key = strings[ readVarInt(buffer) ];
+                int length = readVarInt(buffer);
+
+                collection.put( key, new LazyDoc( buffer, buffer.position(), strings ) );
+
+                buffer.position( buffer.position() + length );
+                ++docCount;
+            }
+
+            for (int i = readVarInt(buffer); i > 0; --i) {
+                String field = strings[ readVarInt(buffer) ];
+                db.createIndex( collectionName, new MapBuilder().append( field, (buffer.get() == 1) ? 1 : "hashed" ) );
+            }
+        }
+
+        Log.info("DBSnapshot.read: restored " + db.size() + " collections, " + docCount + " docs, "
+                 + strings.length + " strings from " + file + " in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        return db;
+    }
+
+    /**
+     * @return the given file, memory-mapped (read-only).
+     */
+    protected static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file too large to map (" + channel.size() + " bytes): " + file);
+            }
+            MappedByteBuffer retMe = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            return retMe;
+        } finally {
+            // The mapping remains valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * A document in a restored snapshot.  The doc is decoded from the mapped file the first
+     * time it's accessed (into a JSONObject, which all subsequent calls, including updates,
+     * go thru).
+     */
+    protected static class LazyDoc extends AbstractMap {
+
+        private final ByteBuffer buffer;
+
+        private final int position;
+
+        private final String[] strings;
+
+        private Map doc;
+
+        protected LazyDoc(ByteBuffer buffer, int position, String[] strings) {
+            this.buffer = buffer;
+            this.position = position;
+            this.strings = strings;
+        }
+
+        /**
+         * @return the decoded doc
+         */
+        protected synchronized Map getDoc() {
+            if (doc == null) {
+                ByteBuffer docBuffer = buffer.duplicate();
+                docBuffer.position(position);
+                doc = (Map) readValue( docBuffer, strings );
+            }
+            return doc;
+        }
+
+        @Override
+        public Set entrySet() {
+            return getDoc().entrySet();
+        }
+
+        @Override
+        public Object get(Object key) {
+            return getDoc().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getDoc().containsKey(key);
+        }
+
+        @Override
+        public Object put(Object key, Object value) {
+            return getDoc().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return getDoc().remove(key);
+        }
+
+        @Override
+        public int size() {
+            return getDoc().size();
+        }
+    }
+
+    /**
+     * Add the given string to the string table, if it's not already there.
+     */
+    protected static void addString(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put( s, strings.size() );
+        }
+    }
+
+    /**
+     * Add all strings in the given value (map keys and string values, recursively) to the string table.
+     */
+    protected static void addStrings(Map<String, Integer> strings, Object value) {
+        if (value instanceof String) {
+            addString( strings, (String) value );
+        } else if (value instanceof Map) {
+            for (Map.Entry entry : ((Map<?,?>) value).entrySet()) {
+                addString( strings, (String) entry.getKey() );
+                addStrings( strings, entry.getValue() );
+            }
+        } else if (value instanceof Collection) {
+            for (Object item : (Collection) value) {
+                addStrings( strings, item );
+            }
+        }
+    }
+
+    /**
+     * Write the given value, tagged.
+     *
+     * @param strings the string table, or null to write strings inline (e.g. for a
+     *        self-contained record; see {@link OffHeapSegment}).
+     */
+    protected static void writeValue(OutputStream out, Map<String, Integer> strings, Object value) throws IOException {
+        if (value == null) {
+            out.write(NullTag);
+        } else if (value instanceof String) {
+            out.write(StringTag);
+            writeString( out, strings, (String) value );
+        } else if (value instanceof Long) {
+            out.write(LongTag);
+            writeVarLong( out, zigzag( (Long) value ) );
+        } else if (value instanceof Integer) {
+            out.write(IntegerTag);
+            writeVarLong( out, zigzag( (Integer) value ) );
+        } else if (value instanceof Double) {
+            out.write(DoubleTag);
+            long bits = Double.doubleToLongBits( (Double) value );
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write( (int) (bits >>> shift) );
+            }
+        } else if (value instanceof Boolean) {
+            out.write( ((Boolean) value) ? TrueTag : FalseTag );
+        } else if (value instanceof Map) {
+            Map<?,?> map = (Map<?,?>) value;
+            out.write(MapTag);
+            writeVarInt( out, map.size() );
+            for (Map.Entry entry : map.entrySet()) {
+                writeString( out, strings, (String) entry.getKey() );
+                writeValue( out, strings, entry.getValue() );
+            }
+        } else if (value instanceof Collection) {
+            Collection list = (Collection) value;
+            out.write(ListTag);
+            writeVarInt( out, list.size() );
+            for (Object item : list) {
+                writeValue( out, strings, item );
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(BytesTag);
+            writeVarInt( out, bytes.length );
+            out.write( bytes );
+        } else {
+            throw new IllegalArgumentException("Cannot snapshot value of type " + value.getClass().getName() + ": " + value);
+        }
+    }
+
+    /**
+     * Write the given string's table ref, or the string itself (length-prefixed UTF-8) if
+     * strings is null.
+     */
+    protected static void writeString(OutputStream out, Map<String, Integer> strings, String s) throws IOException {
+        if (strings != null) {
+            writeVarInt( out, strings.get(s) );
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarInt( out, bytes.length );
+            out.write( bytes );
+        }
+    }
+
+    /**
+     * @return the string at the buffer's position, from the string table, or inline if strings is null.
+     */
+    protected static String readString(ByteBuffer buffer, String[] strings) {
+        if (strings != null) {
+            return strings[ readVarInt(buffer) ];
+        }
+
+        byte[] bytes = new byte[ readVarInt(buffer) ];
+        buffer.get(bytes);
+        return new String( bytes, UTF8 );
+    }
+
+    /**
+     * @param strings the string table, or null if strings are inline.
+     *
+     * @return the tagged value at the buffer's position.
+     */
+    protected static Object readValue(ByteBuffer buffer, String[] strings) {
+        byte tag = buffer.get();
+
+        switch (tag) {
+            case NullTag:
+                return null;
+            case StringTag:
+                return readString( buffer, strings );
+            case LongTag:
+                return unzigzag( readVarLong(buffer) );
+            case IntegerTag:
+                return (int) unzigzag( readVarLong(buffer) );
+            case DoubleTag:
+                return buffer.getDouble();
+            case TrueTag:
+                return Boolean.TRUE;
+            case FalseTag:
+                return Boolean.FALSE;
+            case MapTag: {
+                int size = readVarInt(buffer);
+                JSONObject map = new JSONObject();
+                for (int i = 0; i < size; ++i) {
+                    String key = readString( buffer, strings );
+                    map.put( key, readValue(buffer, strings) );
+                }
+                return map;
+            }
+            case ListTag: {
+                int size = readVarInt(buffer);
+                List list = new JSONArray();
+                for (int i = 0; i < size; ++i) {
+                    list.add( readValue(buffer, strings) );
+                }
+                return list;
+            }
+            case BytesTag: {
+                byte[] bytes = new byte[ readVarInt(buffer) ];
+                buffer.get(bytes);
+                return bytes;
+            }
+            default:
+                throw new IllegalStateException("Corrupt snapshot: unknown value tag " + tag + " at position " + (buffer.position() - 1));
+        }
+    }
+
+    protected static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    protected static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    protected static void writeVarInt(OutputStream out, int n) throws IOException {
+        writeVarLong( out, n & 0xFFFFFFFFL );
+    }
+
+    protected static void writeVarLong(OutputStream out, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            out.write( (int) ((n & 0x7F) | 0x80) );
+            n >>>= 7;
+        }
+        out.write( (int) n );
+    }
+
+    protected static int readVarInt(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    protected static long readVarLong(ByteBuffer buffer) {
+        long retMe = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            retMe |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return retMe;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.surfapi.db;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Field projections for DB.forAll passes.
+ *
+ * Callbacks that implement {@link DB.ProjectedForAll} declare the fields they read.
+ * A forAll pass fetches the union of those fields (plus _id) rather than the whole
+ * document, so long as EVERY callback in the pass declares its fields.  If any callback
+ * doesn't (or declares null), the pass fetches whole documents.
+ */
+public class ForAllProjection {
+
+    /**
+     * @return the union of the given callbacks' fields, as a projection (field -> 1)
+     *         suitable for mongo; or null if any of the callbacks needs the whole document.
+     */
+    public static Map<String, Integer> union(Collection<DB.ForAll> callbacks) {
+
+        Map<String, Integer> retMe = new LinkedHashMap<String, Integer>();
+        retMe.put("_id", 1);
+
+        for (DB.ForAll callback : callbacks) {
+            Collection<String> fields = (callback instanceof DB.ProjectedForAll)
+                                            ? ((DB.ProjectedForAll) callback).getFields()
+                                            : null;
+            if (fields == null) {
+                return null;
+            }
+
+            for (String field : fields) {
+                retMe.put(field, 1);
+            }
+        }
+
+        return retMe;
+    }
+
+    /**
+     * @return a new Map containing only the projected fields of the given doc, or the doc
+     *         itself if projection is null.
+     */
+    public static Map project(Map doc, Map<String, Integer> projection) {
+        if (projection == null) {
+            return doc;
+        }
+
+        Map retMe = new LinkedHashMap();
+        for (String field : projection.keySet()) {
+            if (doc.containsKey(field)) {
+                retMe.put( field, doc.get(field) );
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the size of the given doc, encoded as BSON (i.e. as sent over the wire by mongo).
+     */
+    public static int bsonSize(Map doc) {
+        return new BasicBSONEncoder().encode( new BasicDBObject(doc) ).length;
+    }
+
+    /**
+     * A forAll callback that measures the bytes a projection would save, by comparing
+     * the BSON size of each whole document against the size of its projection.
+     *
+     * Counters are thread-safe, so a Stats can be used by a parallel forAll.
+     */
+    public static class Stats implements DB.ForAll {
+
+        private final String name;
+
+        private final Map<String, Integer> projection;
+
+        private final AtomicLong docCount = new AtomicLong();
+
+        private final AtomicLong fullBytes = new AtomicLong();
+
+        private final AtomicLong projectedBytes = new AtomicLong();
+
+        /**
+         * CTOR.
+         *
+         * @param name for reporting
+         * @param projection the projection to measure (null means no projection)
+         */
+        public Stats(String name, Map<String, Integer> projection) {
+            this.name = name;
+            this.projection = projection;
+        }
+
+        @Override
+        public void before(DB db, String collection) { }
+
+        @Override
+        public void call(DB db, String collection, Map doc) {
+            int fullSize = bsonSize(doc);
+
+            docCount.incrementAndGet();
+            fullBytes.addAndGet( fullSize );
+            projectedBytes.addAndGet( (projection != null) ? bsonSize( project(doc, projection) ) : fullSize );
+        }
+
+        @Override
+        public void after(DB db, String collection) { }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDocCount() {
+            return docCount.get();
+        }
+
+        public long getFullBytes() {
+            return fullBytes.get();
+        }
+
+        public long getProjectedBytes() {
+            return projectedBytes.get();
+        }
+
+        /**
+         * @return the percentage of bytes saved by the projection.
+         */
+        public long getPercentSaved() {
+            return (getFullBytes() > 0) ? (getFullBytes() - getProjectedBytes()) * 100 / getFullBytes() : 0;
+        }
+
+        /**
+         * @return e.g. "ReferenceNameQuery: 12000 docs, 48000000 bytes, 3000000 bytes projected (93% saved)"
+         */
+        @Override
+        public String toString() {
+            return getName() + ": " + getDocCount() + " docs, " + getFullBytes() + " bytes, "
+                             + getProjectedBytes() + " bytes projected (" + getPercentSaved() + "% saved)";
+        }
+    }
+
+}
@@ -16,20 +16,58 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.surfapi.coll.Cawls;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.log.Log;
 
 /**
  * 
+ * Connection pool settings can be configured via system properties (see below).  Settings
+ * specified as options on the MONGOLAB_URI take precedence over the system properties.
+ * 
+ * The *Async read methods run the (synchronous) driver call on a dedicated thread pool, 
+ * sized to the connection pool, and deliver the result to a callback.  This lets the REST
+ * layer release its request thread while the query is in flight.
  */
 public class MongoDBImpl implements DB {
     
+    /**
+     * Connection pool system properties.  Unset properties use the driver defaults.
+     */
+    public static final String ConnectionsPerHostPropertyName = "com.surfapi.mongo.connectionsPerHost";
+    public static final String MinConnectionsPerHostPropertyName = "com.surfapi.mongo.minConnectionsPerHost";
+    public static final String MaxWaitTimeMillisPropertyName = "com.surfapi.mongo.maxWaitTimeMillis";
+    public static final String ConnectTimeoutMillisPropertyName = "com.surfapi.mongo.connectTimeoutMillis";
+    public static final String SocketTimeoutMillisPropertyName = "com.surfapi.mongo.socketTimeoutMillis";
+    public static final String ServerSelectionTimeoutMillisPropertyName = "com.surfapi.mongo.serverSelectionTimeoutMillis";
+    public static final String ThreadsAllowedToBlockPropertyName = "com.surfapi.mongo.threadsAllowedToBlockForConnectionMultiplier";
+    
+    /**
+     * System properties for {@link #save(String, Collection)}: the number of docs per bulk write
+     * (default 1000), and the write concern (a WriteConcern constant name, e.g. "UNACKNOWLEDGED"; 
+     * default "ACKNOWLEDGED").
+     */
+    public static final String SaveBatchSizePropertyName = "com.surfapi.mongo.saveBatchSize";
+    public static final String SaveWriteConcernPropertyName = "com.surfapi.mongo.saveWriteConcern";
+    
     private com.mongodb.DB mongoDB;
     
     private String dbUri;
     
+    /**
+     * The number of docs per bulk write, for {@link #save(String, Collection)}.
+     */
+    private int saveBatchSize = getIntProperty(SaveBatchSizePropertyName, 1000);
+    
+    /**
+     * The write concern for {@link #save(String, Collection)}.
+     */
+    private WriteConcern saveWriteConcern = parseWriteConcern( System.getProperty(SaveWriteConcernPropertyName) );
+    
     
     /**
      * CTOR.
@@ -63,10 +101,67 @@ public class MongoDBImpl implements DB {
         dbUri = getMongoUri(dbName);
         Log.info(this, "connect: URI: " + dbUri);
             
-        MongoClientURI mongoUri  = new MongoClientURI(dbUri); 
+        MongoClientURI mongoUri  = new MongoClientURI(dbUri, buildClientOptions()); 
+        
+        Log.info(this, "connect: options: " + mongoUri.getOptions());
+        
         return new MongoClient(mongoUri).getDB(mongoUri.getDatabase());
     }
     
+    /**
+     * @return the client options, configured from system properties.
+     */
+    protected MongoClientOptions.Builder buildClientOptions() {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+        
+        if (System.getProperty(ConnectionsPerHostPropertyName) != null) {
+            builder.connectionsPerHost( getIntProperty(ConnectionsPerHostPropertyName) );
+        }
+        if (System.getProperty(MinConnectionsPerHostPropertyName) != null) {
+            builder.minConnectionsPerHost( getIntProperty(MinConnectionsPerHostPropertyName) );
+        }
+        if (System.getProperty(MaxWaitTimeMillisPropertyName) != null) {
+            builder.maxWaitTime( getIntProperty(MaxWaitTimeMillisPropertyName) );
+        }
+        if (System.getProperty(ConnectTimeoutMillisPropertyName) != null) {
+            builder.connectTimeout( getIntProperty(ConnectTimeoutMillisPropertyName) );
+        }
+        if (System.getProperty(SocketTimeoutMillisPropertyName) != null) {
+            builder.socketTimeout( getIntProperty(SocketTimeoutMillisPropertyName) );
+        }
+        if (System.getProperty(ServerSelectionTimeoutMillisPropertyName) != null) {
+            builder.serverSelectionTimeout( getIntProperty(ServerSelectionTimeoutMillisPropertyName) );
+        }
+        if (System.getProperty(ThreadsAllowedToBlockPropertyName) != null) {
+            builder.threadsAllowedToBlockForConnectionMultiplier( getIntProperty(ThreadsAllowedToBlockPropertyName) );
+        }
+        
+        return builder;
+    }
+    
+    /**
+     * @return the given system property, parsed as an int.
+     * 
+     * @throws IllegalArgumentException if the property isn't a valid int.
+     */
+    protected static int getIntProperty(String name) {
+        String value = System.getProperty(name);
+        try {
+            return Integer.parseInt( value.trim() );
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for system property " + name + ": " + value, e);
+        }
+    }
+    
+    /**
+     * @return the given system property, parsed as an int, or defaultValue if it isn't set.
+     * 
+     * @throws IllegalArgumentException if the property isn't a valid int.
+     */
+    protected static int getIntProperty(String name, int defaultValue) {
+        return (System.getProperty(name) != null) ? getIntProperty(name) : defaultValue;
+    }
+    
     /**
      * @return the mongoDB client
      */
@@ -110,13 +205,62 @@ public class MongoDBImpl implements DB {
     }
     
     /**
-     * 
+     * Save the given docs via unordered bulk writes.  See {@link #saveBulk}.
      */
     @Override
     public void save(String collection, Collection<Map> docs) {
-       for (Map doc : docs) {
-           save(collection, doc);
-       }
+        saveBulk(collection, docs);
+    }
+    
+    /**
+     * Save the given docs via unordered bulk writes (rather than one round trip per doc),
+     * in batches of {@link #saveBatchSize} docs, with write concern {@link #saveWriteConcern}.
+     * Existing docs are replaced, as with {@link #save(String, Map)}.
+     * 
+     * @return the elapsed time, in millis, of each batch.
+     */
+    public List<Long> saveBulk(String collection, Collection<Map> docs) {
+        
+        BulkWriter bulkWriter = new BulkWriter(this, collection).setFlushCount( saveBatchSize )
+                                                                .setWriteConcern( saveWriteConcern );
+        try {
+            bulkWriter.save(docs).flush();
+        } catch (MongoException e) {
+            throw new RuntimeException("Exception saving " + docs.size() + " objects to " + collection + ": " + e.getMessage(), e);
+        }
+        
+        Log.trace(this, "saveBulk: collection: " + collection + "; docs: " + docs.size() 
+                        + "; batch millis: " + bulkWriter.getBatchMillis());
+        
+        return bulkWriter.getBatchMillis();
+    }
+    
+    /**
+     * @return the WriteConcern with the given name (e.g. "UNACKNOWLEDGED"), or ACKNOWLEDGED if
+     *         the name is null.
+     *         
+     * @throws IllegalArgumentException if the name isn't a WriteConcern constant.
+     */
+    protected static WriteConcern parseWriteConcern(String name) {
+        if (name == null) {
+            return WriteConcern.ACKNOWLEDGED;
+        }
+        
+        WriteConcern retMe = WriteConcern.valueOf( name.trim() );
+        if (retMe == null) {
+            throw new IllegalArgumentException("Invalid value for system property " + SaveWriteConcernPropertyName + ": " + name);
+        }
+        return retMe;
+    }
+    
+    public MongoDBImpl setSaveBatchSize(int saveBatchSize) {
+        this.saveBatchSize = saveBatchSize;
+        return this;
+    }
+    
+    public MongoDBImpl setSaveWriteConcern(WriteConcern saveWriteConcern) {
+        this.saveWriteConcern = saveWriteConcern;
+        return this;
     }
     
     
@@ -138,6 +282,14 @@ public class MongoDBImpl implements DB {
         }
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forAll(Collection<String> collections, Collection<ForAll> callbacks, int parallelism) {
+        ParallelForAll.forAll(this, collections, callbacks, parallelism);
+    }
+    
     /**
      * Run callback against all documents in the given collection.
      */
@@ -152,13 +304,18 @@ public class MongoDBImpl implements DB {
     @Override
     public void forAll(String collectionName, Collection<ForAll> callbacks) {
         
-        Log.info(this, "forAll: collection: " + collectionName);
+        Map<String, Integer> projection = ForAllProjection.union(callbacks);
+        
+        Log.info(this, "forAll: collection: " + collectionName 
+                       + "; fields: " + ((projection != null) ? projection.keySet() : "all"));
         
         for (ForAll callback : callbacks) {
             callback.before(this, collectionName);
         }
         
-        DBCursor dbCursor = mongoDB.getCollection(collectionName).find();
+        DBCursor dbCursor = (projection != null)
+                                ? mongoDB.getCollection(collectionName).find( new BasicDBObject(), new BasicDBObject(projection) )
+                                : mongoDB.getCollection(collectionName).find();
         
         for (DBObject dbobj : dbCursor) {
             for (ForAll callback : callbacks) {
@@ -315,6 +472,7 @@ public class MongoDBImpl implements DB {
     }
 
 
+
     /**
      * @return a list of library documents that match the given lang and libraryName 
      *         (i.e. returns all versions of the given library).
@@ -0,0 +1,284 @@
+package com.surfapi.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.log.Log;
+
+/**
+ * A DB that keeps its docs off the java heap, in memory-mapped segment files (one per
+ * collection, see {@link OffHeapSegment}).  Docs are serialized on save and decoded on read,
+ * so the heap holds only the docs currently in use (plus the secondary indexes).
+ *
+ * The segment files live in the given directory and persist across restarts: a new OffHeapDB
+ * on the same directory reopens the collections (and rebuilds their indexes).  So OffHeapDB
+ * also serves as an embedded store for running without mongo (see {@link OffHeapDBService}).
+ * Only one OffHeapDB may have a directory open at a time: it holds a lock on the directory's
+ * lock file until it's closed.
+ *
+ * Everything else (find, remove, update, indexes, forAll, etc) is inherited from {@link DBImpl}.
+ */
+public class OffHeapDB extends DBImpl implements Closeable {
+
+    public static final String SegmentFileSuffix = ".seg";
+
+    /**
+     * Index definitions (collection -> keys, as passed to createIndex), so they can be rebuilt
+     * when the DB is reopened.
+     */
+    public static final String IndexesFileName = "indexes.json";
+
+    public static final String LockFileName = "lock";
+
+    /**
+     * Marks the initial load of the DB as complete (see {@link #setLoadComplete}).
+     */
+    public static final String LoadCompleteFileName = "load.complete";
+
+    private final File dir;
+
+    private final JSONObject indexDefs = new JSONObject();
+
+    /**
+     * The lock file, held open (and locked) until the DB is closed.
+     */
+    private RandomAccessFile lockFile;
+
+    private FileLock lock;
+
+    /**
+     * CTOR.  Opens the segment files in the given directory (creating it if necessary).
+     * 
+     * @throws IOException if the directory is already open (in this or another process).
+     */
+    public OffHeapDB(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+
+        lock();
+
+        try {
+            open();
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        } catch (RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Lock the directory.
+     * 
+     * @throws IOException if it's already locked.
+     */
+    protected void lock() throws IOException {
+        lockFile = new RandomAccessFile( new File(dir, LockFileName), "rw" );
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;    // Locked by this JVM.
+        }
+
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("OffHeapDB directory " + dir + " is already in use");
+        }
+    }
+
+    /**
+     * Release the directory lock.
+     */
+    protected void unlock() throws IOException {
+        if (lockFile != null) {
+            lockFile.close();   // releases the lock
+            lockFile = null;
+            lock = null;
+        }
+    }
+
+    /**
+     * Open the segment files and rebuild the indexes.
+     */
+    protected void open() throws IOException {
+        File[] segmentFiles = dir.listFiles( new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SegmentFileSuffix);
+            }
+        });
+
+        for (File segmentFile : segmentFiles) {
+            String name = segmentFile.getName();
+            String collection = URLDecoder.decode( name.substring(0, name.length() - SegmentFileSuffix.length()), "UTF-8" );
+            super.put( collection, new OffHeapSegment(segmentFile).open() );
+        }
+
+        File indexesFile = new File(dir, IndexesFileName);
+        if (indexesFile.exists()) {
+            Map<String, Map> defs = (Map<String, Map>) JSONValue.parse( FileUtils.readFileToString(indexesFile, "UTF-8") );
+            for (Map.Entry<String, Map> entry : defs.entrySet()) {
+                createIndex( entry.getKey(), entry.getValue() );
+            }
+        }
+
+        Log.info(this, "open: " + dir + ": opened " + segmentFiles.length + " collections");
+    }
+
+    /**
+     * @return a new segment for the given collection.  The segment file isn't created until
+     *         the first doc is saved.
+     */
+    @Override
+    protected Map<String, Map> newCollection(String collection) {
+        try {
+            return new OffHeapSegment( new File(dir, URLEncoder.encode(collection, "UTF-8") + SegmentFileSuffix) );
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);  // Not possible with UTF-8.
+        }
+    }
+
+    /**
+     * Build the index and save its definition.
+     */
+    @Override
+    public void createIndex(String collection, Map keys) {
+        super.createIndex(collection, keys);
+
+        if (keys != null && !keys.isEmpty()) {
+            synchronized (indexDefs) {
+                Map collectionDefs = (Map) indexDefs.get(collection);
+                if (collectionDefs == null) {
+                    collectionDefs = new JSONObject();
+                    indexDefs.put(collection, collectionDefs);
+                }
+                collectionDefs.putAll(keys);
+                writeIndexDefs();
+            }
+        }
+    }
+
+    /**
+     * Delete the given collection, its segment file and its indexes.
+     */
+    @Override
+    public void drop(String collection) {
+        OffHeapSegment segment = (OffHeapSegment) get(collection);
+        super.drop(collection);
+
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        synchronized (indexDefs) {
+            if (indexDefs.remove(collection) != null) {
+                writeIndexDefs();
+            }
+        }
+    }
+
+    /**
+     * Delete the entire DB.
+     */
+    @Override
+    public void drop() {
+        new File(dir, LoadCompleteFileName).delete();
+
+        // Note: cast to Map, so keySet binds to Map.keySet rather than JDK 8's 
+        // ConcurrentHashMap.keySet (which returns a KeySetView, not in Java 7).
+        for (String collection : new ArrayList<String>( ((Map<String, ?>) this).keySet() )) {
+            drop(collection);
+        }
+        super.drop();
+    }
+
+    /**
+     * @return true if the initial load of the DB completed (see {@link #setLoadComplete}).
+     */
+    public boolean isLoadComplete() {
+        return new File(dir, LoadCompleteFileName).exists();
+    }
+
+    /**
+     * Flush all segment files to disk, then mark the initial load of the DB as complete.
+     * A load that's interrupted before this is called can be detected (and redone) on the
+     * next start.
+     */
+    public void setLoadComplete() throws IOException {
+        flush();
+        FileUtils.touch( new File(dir, LoadCompleteFileName) );
+    }
+
+    /**
+     * Flush all segment files to disk.
+     */
+    public void flush() {
+        for (Map collection : values()) {
+            ((OffHeapSegment) collection).flush();
+        }
+    }
+
+    /**
+     * Flush and close all segment files, and release the directory lock.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Map collection : values()) {
+                ((OffHeapSegment) collection).close();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Write the index definitions to the indexes file.  Caller must sync on indexDefs.
+     */
+    protected void writeIndexDefs() {
+        try {
+            FileUtils.writeStringToFile( new File(dir, IndexesFileName), indexDefs.toJSONString(), "UTF-8" );
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of collections, docs, and segment file bytes.
+     */
+    @Override
+    public Map getStats() {
+        long docs = 0;
+        long bytes = 0;
+        for (Map collection : values()) {
+            docs += collection.size();
+            bytes += ((OffHeapSegment) collection).getBytes();
+        }
+        return new MapBuilder().append("collections", size())
+                               .append("docs", docs)
+                               .append("bytes", bytes);
+    }
+
+    @Override
+    public String getName() {
+        return "off-heap-db:" + dir;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.surfapi.db;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.surfapi.log.Log;
+
+/**
+ * Wrapper around static singleton OffHeapDB instance, the embedded (no mongod required) 
+ * alternative to {@link MongoDBService}.
+ * 
+ * The DB lives in -DOFFHEAP_DIR.  Setting the property is what enables it (see {@link #isEnabled}).
+ */
+public class OffHeapDBService {
+
+    /**
+     * In need of Dependency injection.
+     */
+    private static OffHeapDB staticInstance;
+
+    /**
+     * @return true if -DOFFHEAP_DIR is set, i.e. the embedded DB should be used instead of mongo.
+     */
+    public static boolean isEnabled() {
+        return System.getProperty("OFFHEAP_DIR") != null;
+    }
+    
+    /**
+     * @return the DB dir (pulled from the config)
+     */
+    public static File getDir() {
+        return new File( System.getProperty("OFFHEAP_DIR", "offheap") );
+    }
+
+    /**
+     * @return the DB instance.  The DB is opened on first use and closed (flushed) at JVM shutdown.
+     */
+    public static synchronized OffHeapDB getDb() {
+        if (staticInstance == null) {
+            try {
+                setDb( new OffHeapDB( getDir() ) );
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open off-heap DB in " + getDir(), e);
+            }
+            
+            Runtime.getRuntime().addShutdownHook( new Thread() {
+                public void run() {
+                    close();
+                }
+            });
+        }
+        return staticInstance;
+    }
+    
+    /**
+     * Inject the given DB ref into the staticInstance.
+     */
+    public static synchronized OffHeapDB setDb(OffHeapDB db) {
+        staticInstance = db;
+
+        DBService.setDb( staticInstance );
+
+        return staticInstance;
+    }
+    
+    /**
+     * Close the DB (if it's open).
+     */
+    public static synchronized void close() {
+        if (staticInstance != null) {
+            try {
+                staticInstance.close();
+            } catch (IOException e) {
+                Log.info("OffHeapDBService.close: " + e);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,605 @@
+package com.surfapi.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.surfapi.log.Log;
+
+/**
+ * One collection of an {@link OffHeapDB}: the collection's docs, serialized into an append-only,
+ * memory-mapped segment file, plus an off-heap _id -> record offset hash table.
+ *
+ * Record format:
+ *
+ *   length (4-byte int, of the record body), checksum (4-byte CRC32 of the record body),
+ *   body: flags (1 byte: 0 = doc, 1 = removed), _id (varint length + UTF-8), 
+ *         doc (a tagged value, see {@link DBSnapshot}, with inline strings)
+ *
+ * A length of 0 marks the end of the records (the file is grown in chunks, zero-filled).
+ * A record is appended body first; its length is written last, so the record isn't visible
+ * until it's complete.  Since the OS may write the pages of the file back in any order, a 
+ * crash can still leave a partial record behind; on open, the scan stops at the first record 
+ * whose checksum doesn't match (and the next append overwrites it).
+ * Saving a doc under an existing _id appends a new record and repoints the _id's slot; the old
+ * record is left in place as garbage.
+ *
+ * The hash table lives in a direct ByteBuffer: open addressing with linear probing, 8 bytes per
+ * slot (the _id's hash, and the record offset + 1; 0 means empty, -1 means deleted).  Hash hits
+ * are confirmed by comparing against the _id in the record.
+ *
+ * Docs are decoded on read (into JSONObjects), so the segment never holds them on the heap, and
+ * callers may modify what they get back (it doesn't change the stored doc).
+ *
+ * Writes are exclusive; reads run concurrently (read/write lock on the hash table).
+ */
+public class OffHeapSegment extends AbstractMap<String, Map> implements Closeable {
+
+    private static final int InitialFileSize = 1024 * 1024;
+
+    private static final int InitialTableSlots = 1024;
+
+    private static final int SlotSize = 8;
+
+    /**
+     * The record header: length + checksum.
+     */
+    private static final int HeaderSize = 8;
+
+    private static final int EmptySlot = 0;
+
+    private static final int DeletedSlot = -1;
+
+    private static final byte DocFlag = 0;
+
+    private static final byte RemovedFlag = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    /**
+     * The mapped segment file.  Replaced (by a bigger mapping) when the file grows; readers
+     * holding the old mapping can still read all the records in it.
+     */
+    private volatile MappedByteBuffer buffer;
+
+    /**
+     * The offset of the end of the records.
+     */
+    private int end;
+
+    /**
+     * The off-heap hash table.
+     */
+    private ByteBuffer table = newTable(InitialTableSlots);
+
+    private int tableSlots = InitialTableSlots;
+
+    /**
+     * The number of live docs.
+     */
+    private volatile int size;
+
+    /**
+     * The number of live + deleted slots.
+     */
+    private int usedSlots;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * CTOR.  The file isn't created until the first doc is saved.
+     */
+    public OffHeapSegment(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the existing segment file and index its records.
+     *
+     * @return this
+     */
+    public OffHeapSegment open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            map( (int) Math.min( Math.max( file.length(), InitialFileSize ), Integer.MAX_VALUE ) );
+
+            int pos = 0;
+            while (pos + HeaderSize <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length <= 0) {
+                    break;
+                } else if ((long) pos + HeaderSize + length > buffer.capacity()) {
+                    Log.info(this, "open: " + file + ": truncated record at offset " + pos + "; ignoring it and all after it");
+                    break;
+                } else if (buffer.getInt(pos + 4) != checksum(pos, length)) {
+                    Log.info(this, "open: " + file + ": bad checksum for record at offset " + pos + "; ignoring it and all after it");
+                    break;
+                }
+
+                ByteBuffer record = recordBuffer(pos);
+                byte flags = record.get();
+                String _id = DBSnapshot.readString( record, null );
+
+                if (flags == RemovedFlag) {
+                    tableRemove(_id);
+                } else {
+                    tablePut(_id, pos);
+                }
+                pos += HeaderSize + length;
+            }
+            end = pos;
+
+            Log.info(this, "open: " + file + ": " + size + " docs, " + end + " bytes");
+
+            return this;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Save the given doc under the given _id.
+     *
+     * @return the previous doc with the given _id (decoded lazily), or null.
+     */
+    @Override
+    public Map put(String _id, Map doc) {
+        byte[] record = encode( DocFlag, _id, doc );
+
+        lock.writeLock().lock();
+        try {
+            int offset = append(record);
+            int oldOffset = tablePut(_id, offset);
+            return (oldOffset >= 0) ? lazyDoc(oldOffset) : null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the doc with the given _id (by appending a "removed" record).
+     *
+     * @return the removed doc (decoded lazily), or null.
+     */
+    @Override
+    public Map remove(Object _id) {
+        if (!(_id instanceof String)) {
+            return null;
+        }
+
+        byte[] record = encode( RemovedFlag, (String) _id, null );
+
+        lock.writeLock().lock();
+        try {
+            int oldOffset = tableRemove( (String) _id );
+            if (oldOffset < 0) {
+                return null;
+            }
+            append(record);
+            return lazyDoc(oldOffset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the doc with the given _id, decoded into a new JSONObject; or null.
+     */
+    @Override
+    public Map get(Object _id) {
+        int offset = lookup(_id);
+        return (offset >= 0) ? (Map) DBSnapshot.readValue( docBuffer(offset), null ) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object _id) {
+        return lookup(_id) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the docs that were in the segment when iteration started.  Docs are
+     * decoded lazily, on first access.
+     */
+    @Override
+    public Set<Map.Entry<String, Map>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Map>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Map>> iterator() {
+                final int[] offsets = liveOffsets();
+
+                return new Iterator<Map.Entry<String, Map>>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < offsets.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Map> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int offset = offsets[next++];
+                        ByteBuffer record = recordBuffer(offset);
+                        record.get();
+                        return new AbstractMap.SimpleImmutableEntry<String, Map>( DBSnapshot.readString( record, null ), lazyDoc(offset) );
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes of records in the segment file (including garbage).
+     */
+    public int getBytes() {
+        return end;
+    }
+
+    /**
+     * Flush the segment file to disk.
+     */
+    public void flush() {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flush and close the segment file.  Docs read before the close remain readable.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flush();
+            if (raf != null) {
+                raf.close();
+                raf = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close and delete the segment file.
+     */
+    public void delete() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete segment file " + file);
+        }
+    }
+
+    /**
+     * @return the given record, serialized.
+     */
+    protected static byte[] encode(byte flags, String _id, Map doc) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write( flags );
+            DBSnapshot.writeString( out, null, _id );
+            DBSnapshot.writeValue( out, null, doc );
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Not possible with a ByteArrayOutputStream.
+        }
+    }
+
+    /**
+     * Append the given record to the segment file, growing it if necessary.
+     *
+     * The record's body and checksum are written first, then the 0 that marks the (new) end of
+     * the records, and finally the record's length, which "publishes" the record.
+     *
+     * @return the record's offset
+     */
+    protected int append(byte[] record) {
+        // Leave room for the 0 that marks the end of the records.
+        long needed = (long) end + HeaderSize + record.length + 4;
+
+        if (buffer == null || needed > buffer.capacity()) {
+            grow(needed);
+        }
+
+        int offset = end;
+
+        ByteBuffer out = buffer.duplicate();
+        out.position( offset + HeaderSize );
+        out.put( record );
+
+        CRC32 crc = new CRC32();
+        crc.update( record, 0, record.length );
+        buffer.putInt( offset + 4, (int) crc.getValue() );
+
+        buffer.putInt( offset + HeaderSize + record.length, 0 );
+        buffer.putInt( offset, record.length );
+
+        end += HeaderSize + record.length;
+        return offset;
+    }
+
+    /**
+     * @return the CRC32 of the body of the record at the given offset, with the given length.
+     */
+    protected int checksum(int offset, int length) {
+        byte[] body = new byte[length];
+        recordBuffer(offset).get(body);
+
+        CRC32 crc = new CRC32();
+        crc.update( body, 0, length );
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Grow (remap) the segment file so it can hold at least the given number of bytes.
+     */
+    protected void grow(long needed) {
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Segment file is full (2GB): " + file);
+        }
+
+        long capacity = (buffer != null) ? buffer.capacity() : InitialFileSize;
+        while (capacity < needed) {
+            capacity = Math.min( capacity * 2, Integer.MAX_VALUE );
+        }
+
+        try {
+            map( (int) capacity );
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to grow segment file " + file + " to " + capacity + " bytes", e);
+        }
+    }
+
+    /**
+     * Map the segment file, extending it (zero-filled) to the given capacity if necessary.
+     */
+    protected void map(int capacity) throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+        }
+        if (raf.length() < capacity) {
+            raf.setLength(capacity);
+        }
+        buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+    }
+
+    /**
+     * @return a buffer over the record at the given offset, positioned at the record's flags.
+     */
+    protected ByteBuffer recordBuffer(int offset) {
+        ByteBuffer retMe = buffer.duplicate();
+        retMe.position( offset + HeaderSize );
+        return retMe;
+    }
+
+    /**
+     * @return a buffer over the record at the given offset, positioned at the doc.
+     */
+    protected ByteBuffer docBuffer(int offset) {
+        ByteBuffer retMe = recordBuffer(offset);
+        retMe.get();
+        int idLength = DBSnapshot.readVarInt(retMe);
+        retMe.position( retMe.position() + idLength );
+        return retMe;
+    }
+
+    /**
+     * @return the doc at the given offset, decoded on first access.
+     */
+    protected Map lazyDoc(int offset) {
+        ByteBuffer docBuffer = docBuffer(offset);
+        return new DBSnapshot.LazyDoc( docBuffer, docBuffer.position(), null );
+    }
+
+    /**
+     * @return the offset of the doc with the given _id, or -1.
+     */
+    protected int lookup(Object _id) {
+        if (!(_id instanceof String)) {
+            return -1;
+        }
+
+        lock.readLock().lock();
+        try {
+            int slot = findSlot( (String) _id );
+            return (slot >= 0) ? table.getInt( slot * SlotSize + 4 ) - 1 : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the offsets of all live docs.
+     */
+    protected int[] liveOffsets() {
+        lock.readLock().lock();
+        try {
+            int[] retMe = new int[size];
+            int i = 0;
+            for (int slot = 0; slot < tableSlots; ++slot) {
+                int offset = table.getInt( slot * SlotSize + 4 );
+                if (offset != EmptySlot && offset != DeletedSlot) {
+                    retMe[i++] = offset - 1;
+                }
+            }
+            return retMe;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a zero-filled (i.e. all empty) hash table.
+     */
+    protected static ByteBuffer newTable(int slots) {
+        return ByteBuffer.allocateDirect( slots * SlotSize );
+    }
+
+    protected static int hash(String _id) {
+        int h = _id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot for the given _id, or -1 if it's not in the table.
+     */
+    protected int findSlot(String _id) {
+        int hash = hash(_id);
+        byte[] idBytes = null;
+
+        int mask = tableSlots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int offset = table.getInt( slot * SlotSize + 4 );
+
+            if (offset == EmptySlot) {
+                return -1;
+            } else if (offset != DeletedSlot && table.getInt( slot * SlotSize ) == hash) {
+                idBytes = (idBytes != null) ? idBytes : _id.getBytes(UTF8);
+                if (idMatches( offset - 1, idBytes )) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the record at the given offset has the given _id.
+     */
+    protected boolean idMatches(int offset, byte[] idBytes) {
+        ByteBuffer record = recordBuffer(offset);
+        record.get();
+
+        if (DBSnapshot.readVarInt(record) != idBytes.length) {
+            return false;
+        }
+        for (byte b : idBytes) {
+            if (record.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Point the given _id at the given record offset.
+     *
+     * @return the _id's previous offset, or -1.
+     */
+    protected int tablePut(String _id, int offset) {
+        int slot = findSlot(_id);
+        if (slot >= 0) {
+            int oldOffset = table.getInt( slot * SlotSize + 4 ) - 1;
+            table.putInt( slot * SlotSize + 4, offset + 1 );
+            return oldOffset;
+        }
+
+        // Keep the load (including deleted slots) under 70%.
+        if ((usedSlots + 1) * 10L > tableSlots * 7L) {
+            rehash( (size + 1) * 10L > tableSlots * 3L ? tableSlots * 2 : tableSlots );
+        }
+
+        int hash = hash(_id);
+        int mask = tableSlots - 1;
+        slot = hash & mask;
+        while (table.getInt( slot * SlotSize + 4 ) != EmptySlot && table.getInt( slot * SlotSize + 4 ) != DeletedSlot) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (table.getInt( slot * SlotSize + 4 ) == EmptySlot) {
+            ++usedSlots;
+        }
+        table.putInt( slot * SlotSize, hash );
+        table.putInt( slot * SlotSize + 4, offset + 1 );
+        ++size;
+        return -1;
+    }
+
+    /**
+     * Remove the given _id from the table.
+     *
+     * @return the _id's offset, or -1.
+     */
+    protected int tableRemove(String _id) {
+        int slot = findSlot(_id);
+        if (slot < 0) {
+            return -1;
+        }
+
+        int oldOffset = table.getInt( slot * SlotSize + 4 ) - 1;
+        table.putInt( slot * SlotSize + 4, DeletedSlot );
+        --size;
+        return oldOffset;
+    }
+
+    /**
+     * Rebuild the table with the given number of slots (dropping deleted slots).
+     */
+    protected void rehash(int newSlots) {
+        ByteBuffer newTable = newTable(newSlots);
+        int mask = newSlots - 1;
+
+        for (int slot = 0; slot < tableSlots; ++slot) {
+            int offset = table.getInt( slot * SlotSize + 4 );
+            if (offset == EmptySlot || offset == DeletedSlot) {
+                continue;
+            }
+
+            int hash = table.getInt( slot * SlotSize );
+            int newSlot = hash & mask;
+            while (newTable.getInt( newSlot * SlotSize + 4 ) != EmptySlot) {
+                newSlot = (newSlot + 1) & mask;
+            }
+            newTable.putInt( newSlot * SlotSize, hash );
+            newTable.putInt( newSlot * SlotSize + 4, offset );
+        }
+
+        table = newTable;
+        tableSlots = newSlots;
+        usedSlots = size;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapSegment[" + file + ", " + size + " docs, " + end + " bytes]";
+    }
+}
@@ -0,0 +1,119 @@
+package com.surfapi.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.surfapi.log.Log;
+
+/**
+ * Runs DB.forAll over a set of collections concurrently, on a ForkJoinPool with the given 
+ * parallelism.  There's one task per library name: the versions of a library (e.g. 
+ * /java/guava/17.0 and /java/guava/18.0) are processed one after the other, on the same task.
+ * Builders write index entries with version-less _ids that are shared by all versions of a 
+ * library (e.g. AllKnownSubclassesQuery); processing the versions concurrently would race on 
+ * those entries (e.g. concurrent mongo upserts of the same new _id fail with a duplicate key).
+ *
+ * Each collection is processed entirely on one thread: the callbacks' before, call
+ * (for every doc), and after methods for a given collection all run on the same thread.
+ * Callbacks that keep per-collection state (e.g. a BulkWriter opened in before and
+ * flushed in after) must keep it per-thread, since a single callback instance sees
+ * several collections at once.
+ */
+public class ParallelForAll {
+
+    /**
+     * Run the given callbacks against every document in the given collections, processing
+     * up to parallelism collections at a time.  A parallelism of 1 (or less) processes
+     * the collections sequentially on the caller's thread.
+     *
+     * @throws RuntimeException if processing any collection failed (after all collections
+     *         have been processed).
+     */
+    public static void forAll(final DB db,
+                              Collection<String> collections,
+                              final Collection<DB.ForAll> callbacks,
+                              int parallelism) {
+
+        if (parallelism <= 1) {
+            for (String collection : collections) {
+                db.forAll(collection, callbacks);
+            }
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+            for (final List<String> group : groupByLibraryName(collections)) {
+                tasks.add( pool.submit( new Runnable() {
+                    public void run() {
+                        for (String collection : group) {
+                            long collectionStartTime = System.currentTimeMillis();
+                            db.forAll(collection, callbacks);
+                            Log.info("ParallelForAll.forAll: " + collection + ": done in "
+                                     + (System.currentTimeMillis() - collectionStartTime) + " ms");
+                        }
+                    }
+                }));
+            }
+
+            RuntimeException failure = null;
+
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    Log.error("ParallelForAll.forAll: caught exception: " + e.getCause());
+                    failure = (failure != null) ? failure : new RuntimeException("Parallel forAll failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Parallel forAll interrupted", e);
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+        } finally {
+            pool.shutdown();
+        }
+
+        Log.info("ParallelForAll.forAll: processed " + collections.size() + " collections in "
+                 + (System.currentTimeMillis() - startTime) + " ms, with parallelism " + parallelism);
+    }
+
+    /**
+     * @return the given collections, grouped by library name (i.e. the libraryId minus the 
+     *         version, e.g. "/java/guava" for "/java/guava/17.0").  Collections that aren't 
+     *         libraryIds are in groups by themselves.
+     */
+    protected static Collection<List<String>> groupByLibraryName(Collection<String> collections) {
+        Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+
+        for (String collection : collections) {
+            int lastSlash = collection.lastIndexOf('/');
+            String libraryName = (lastSlash > 0) ? collection.substring(0, lastSlash) : collection;
+
+            List<String> group = groups.get(libraryName);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(libraryName, group);
+            }
+            group.add(collection);
+        }
+
+        return groups.values();
+    }
+
+}
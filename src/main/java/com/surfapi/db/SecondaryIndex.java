@@ -0,0 +1,213 @@
+package com.surfapi.db;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.surfapi.coll.Cawls;
+
+/**
+ * A secondary index on one field of a {@link DBImpl} collection.  Maps field values to the
+ * _ids of the docs that have them.
+ *
+ * A hashed index supports exact-match lookups.  A sorted index additionally keeps the String
+ * values in order, so it can also answer anchored $regex lookups, e.g. { "$regex": "^java.util.*" },
+ * by scanning the range of values that start with the regex's literal prefix.
+ *
+ * Docs that don't have the field are indexed under null, since Cawls.containsAll treats a
+ * missing field as null.
+ *
+ * Lookups return candidates: the caller must still match the docs against the filter.
+ * Updates must be serialized by the caller (DBImpl does so per collection); lookups may run
+ * concurrently with updates.
+ */
+public class SecondaryIndex {
+
+    /**
+     * Stands in for null values (ConcurrentHashMap doesn't allow null keys).
+     */
+    private static final Object NullValue = new Object();
+
+    /**
+     * The regex metacharacters. The literal prefix of a regex ends at the first one of these.
+     */
+    private static final String RegexMetaChars = "\\.[]{}()*+?^$|";
+
+    /**
+     * The indexed field (may be a dotted path, see Cawls.getField).
+     */
+    private final String field;
+
+    /**
+     * Field value -> _ids of the docs with that value.
+     */
+    private final Map<Object, Set<String>> byValue = new ConcurrentHashMap<Object, Set<String>>();
+
+    /**
+     * String field value -> _ids, in order.  Null for hashed indexes.
+     */
+    private final ConcurrentSkipListMap<String, Set<String>> byString;
+
+    /**
+     * CTOR.
+     *
+     * @param field the indexed field
+     * @param sorted true for a sorted index; false for hashed.
+     */
+    public SecondaryIndex(String field, boolean sorted) {
+        this.field = field;
+        this.byString = (sorted) ? new ConcurrentSkipListMap<String, Set<String>>() : null;
+    }
+
+    /**
+     * @return the indexed field
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return true if this is a sorted index (i.e. it supports prefix lookups).
+     */
+    public boolean isSorted() {
+        return byString != null;
+    }
+
+    /**
+     * Add the given doc to the index.
+     */
+    public void add(Map doc) {
+        String _id = (String) doc.get("_id");
+        Object value = Cawls.getField(doc, field);
+
+        getIds( byValue, (value != null) ? value : NullValue ).add( _id );
+
+        if (isSorted() && value instanceof String) {
+            getIds( byString, (String) value ).add( _id );
+        }
+    }
+
+    /**
+     * Remove the given doc from the index.
+     */
+    public void remove(Map doc) {
+        String _id = (String) doc.get("_id");
+        Object value = Cawls.getField(doc, field);
+
+        removeId( byValue, (value != null) ? value : NullValue, _id );
+
+        if (isSorted() && value instanceof String) {
+            removeId( byString, (String) value, _id );
+        }
+    }
+
+    /**
+     * @return the _ids of the docs whose field equals the given value.
+     */
+    public Collection<String> lookup(Object value) {
+        Set<String> retMe = byValue.get( (value != null) ? value : NullValue );
+        return (retMe != null) ? retMe : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return the _ids of the docs whose (String) field starts with the given prefix, in order
+     *         of field value.  The _ids are read lazily, as the iterator advances, so callers 
+     *         that stop early (e.g. at a limit) don't pay for the rest of the prefix range.
+     *
+     * @throws IllegalStateException if this isn't a sorted index.
+     */
+    public Iterator<String> lookupPrefix(final String prefix) {
+        if (!isSorted()) {
+            throw new IllegalStateException("Prefix lookups require a sorted index: " + field);
+        }
+
+        final Iterator<Map.Entry<String, Set<String>>> entries = byString.tailMap(prefix, true).entrySet().iterator();
+
+        return new Iterator<String>() {
+            private Iterator<String> ids = Collections.<String>emptySet().iterator();
+
+            public boolean hasNext() {
+                while (!ids.hasNext()) {
+                    if (!entries.hasNext()) {
+                        return false;
+                    }
+                    Map.Entry<String, Set<String>> entry = entries.next();
+                    if (!entry.getKey().startsWith(prefix)) {
+                        return false;   // past the end of the prefix range.
+                    }
+                    ids = entry.getValue().iterator();
+                }
+                return true;
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ids.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the literal prefix of the given anchored regex (e.g. "java.util" for "^java\.util.*"
+     *         returns "java"), or null if the regex isn't anchored (or can match something other
+     *         than a prefix, e.g. "^a|b").
+     */
+    public static String parseAnchoredPrefix(String regex) {
+        if (regex == null || !regex.startsWith("^") || regex.indexOf('|') >= 0) {
+            return null;
+        }
+
+        int end = 1;
+        while (end < regex.length() && RegexMetaChars.indexOf( regex.charAt(end) ) < 0) {
+            ++end;
+        }
+
+        // A quantifier makes the preceding char optional (or repeatable): drop it from the prefix.
+        if (end < regex.length() && "?*{".indexOf( regex.charAt(end) ) >= 0) {
+            --end;
+        }
+
+        return regex.substring(1, Math.max(end, 1));
+    }
+
+    /**
+     * @return the set of ids for the given value, creating it if necessary.
+     */
+    protected static <K> Set<String> getIds(Map<K, Set<String>> map, K value) {
+        Set<String> retMe = map.get(value);
+        if (retMe == null) {
+            retMe = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+            map.put(value, retMe);
+        }
+        return retMe;
+    }
+
+    /**
+     * Remove the given id from the given value's set, and the set if it's empty.
+     */
+    protected static <K> void removeId(Map<K, Set<String>> map, K value, String _id) {
+        Set<String> ids = map.get(value);
+        if (ids != null) {
+            ids.remove(_id);
+            if (ids.isEmpty()) {
+                map.remove(value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SecondaryIndex[" + field + ", " + (isSorted() ? "sorted" : "hashed") + ", " + byValue.size() + " values]";
+    }
+}
@@ -0,0 +1,106 @@
+package com.surfapi.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates a DB.ForAll callback, recording the number of documents it processed and
+ * the time spent in it, for reporting per-callback throughput (e.g. per index builder,
+ * when several builders share one DB.forAll pass).
+ * 
+ * Counters are thread-safe, so a TimedForAll can be used by a parallel forAll.  In that 
+ * case the elapsed time is summed across threads.
+ * 
+ * The delegate's fields (if it's a DB.ProjectedForAll) are passed thru, so timing a 
+ * callback doesn't defeat forAll's field projection.
+ */
+public class TimedForAll implements DB.ProjectedForAll {
+
+    private final String name;
+
+    private final DB.ForAll delegate;
+
+    private final AtomicLong docCount = new AtomicLong();
+
+    private final AtomicLong elapsedNanos = new AtomicLong();
+
+    /**
+     * CTOR.
+     *
+     * @param name for reporting
+     * @param delegate the callback to time
+     */
+    public TimedForAll(String name, DB.ForAll delegate) {
+        this.name = name;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the given TimedForAlls as a List of DB.ForAll, e.g for DB.forAll(String, Collection<ForAll>).
+     */
+    public static List<DB.ForAll> asForAlls(Collection<TimedForAll> timedForAlls) {
+        return new ArrayList<DB.ForAll>(timedForAlls);
+    }
+
+    /**
+     * @return the delegate's fields, or null (all fields) if the delegate doesn't declare them.
+     */
+    @Override
+    public Collection<String> getFields() {
+        return (delegate instanceof DB.ProjectedForAll) ? ((DB.ProjectedForAll) delegate).getFields() : null;
+    }
+
+    @Override
+    public void before(DB db, String collection) {
+        long startTime = System.nanoTime();
+        delegate.before(db, collection);
+        elapsedNanos.addAndGet( System.nanoTime() - startTime );
+    }
+
+    @Override
+    public void call(DB db, String collection, Map doc) {
+        long startTime = System.nanoTime();
+        delegate.call(db, collection, doc);
+        elapsedNanos.addAndGet( System.nanoTime() - startTime );
+        docCount.incrementAndGet();
+    }
+
+    @Override
+    public void after(DB db, String collection) {
+        long startTime = System.nanoTime();
+        delegate.after(db, collection);
+        elapsedNanos.addAndGet( System.nanoTime() - startTime );
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDocCount() {
+        return docCount.get();
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis( elapsedNanos.get() );
+    }
+
+    /**
+     * @return docs processed per second of time spent in the callback.
+     */
+    public long getDocsPerSecond() {
+        long nanos = elapsedNanos.get();
+        return (nanos > 0) ? getDocCount() * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    /**
+     * @return e.g. "AutoCompleteIndex: 12000 docs in 1500 ms (8000 docs/sec)"
+     */
+    @Override
+    public String toString() {
+        return getName() + ": " + getDocCount() + " docs in " + getElapsedMillis() + " ms (" + getDocsPerSecond() + " docs/sec)";
+    }
+}
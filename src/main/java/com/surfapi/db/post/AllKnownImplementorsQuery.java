@@ -1,8 +1,10 @@
 package com.surfapi.db.post;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -13,7 +15,6 @@ import com.surfapi.coll.ListBuilder;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.db.BulkWriter;
 import com.surfapi.db.DB;
-import com.surfapi.db.MongoDBImpl;
 import com.surfapi.log.Log;
 
 /**
@@ -33,6 +34,22 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
 
     private static final String CollectionName = "/q/java/allKnownImplementors";
     
+    /**
+     * The javadoc fields read by the index builder (the type stub, allInterfaceTypes,
+     * and the fields needed to build the _id).
+     */
+    private static final List<String> BuilderFields = Arrays.asList( "_id",
+                                                                     "metaType",
+                                                                     "name", 
+                                                                     "qualifiedName", 
+                                                                     "qualifiedTypeName", 
+                                                                     "dimension", 
+                                                                     "typeName", 
+                                                                     "parameterizedType",
+                                                                     "wildcardType",
+                                                                     "allInterfaceTypes",
+                                                                     JavadocMapUtils.LibraryFieldName );
+    
     protected String getCollectionName() {
         return CollectionName;
     }
@@ -58,7 +75,7 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
 
         Log.info( this, "build: building the allKnownImplementors index" );
         
-        getDb().drop( getCollectionName() );
+        dropIndex();
         
         getDb().forAll( (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id"), new IndexBuilder() );
         
@@ -67,6 +84,15 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
         return this;
     }
 
+    /**
+     * Delete the index.
+     */
+    @Override
+    public AllKnownImplementorsQuery dropIndex() {
+        getDb().drop( getCollectionName() );
+        return this;
+    }
+    
     /**
      * Add the documents from the given library to the index.
      */
@@ -143,16 +169,30 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
     /**
      * 
      */
-    private class IndexBuilder implements DB.ForAll {
+    private class IndexBuilder implements DB.ProjectedForAll {
         
-       private BulkWriter bulkWriter;
+       private final ThreadLocal<BulkWriter> bulkWriter = new ThreadLocal<BulkWriter>();
+       
+       /**
+        * The index entries for the current collection, keyed by _id.  Written in {@link #after}.
+        */
+       private final ThreadLocal<Map<String, Map>> entries = new ThreadLocal<Map<String, Map>>();
         
        @Override
        public void before(DB db, String collection) {
            Log.info( this, "before: " + collection);
            
-           bulkWriter = new BulkWriter( (MongoDBImpl) db, getCollectionName());
+           bulkWriter.set( new BulkWriter( db, getCollectionName()) );
                                 // .setWriteConcern( WriteConcern.UNACKNOWLEDGED );
+           entries.set( new LinkedHashMap<String, Map>() );
+       }
+       
+       /**
+        * @return the fields read by this builder.
+        */
+       @Override
+       public Collection<String> getFields() {
+           return BuilderFields;
        }
         
        @Override
@@ -160,16 +200,24 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
            insert(javadocModel);
        }
  
+       /**
+        * Write the collection's entries, merging _libraryVersions with any existing entries.
+        */
        @Override 
        public void after(DB db, String collection) {
-           bulkWriter.flush();
+           bulkWriter.get().insertAddToSet( entries.get().values(), "_libraryVersions" )
+                     .flush();
+           bulkWriter.remove();
+           entries.remove();
            
            ensureIndex();
        }
 
        public void insert(Map javadocModel) {
            if (JavadocMapUtils.isClass(javadocModel)) {
-               bulkWriter.insert( buildDocuments(javadocModel) );
+               for (Map indexedDocument : buildDocuments(javadocModel)) {
+                   entries.get().put( (String) indexedDocument.get("_id"), indexedDocument );
+               }
            }
        }
 
@@ -180,10 +228,11 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
         *       worth doing that now.  The boilerplate code isn't all that much
         *       to begin with.
         *
-        * @return the "interfaces" field if it's a class; otherwise nothing.
+        * @return the "allInterfaceTypes" field if it's a class; otherwise nothing.
+        *         (docs loaded from JSON files may not have the field).
         */
        protected List<Map> getInterfaces(Map javadocModel) {
-           if ( JavadocMapUtils.isInterface(javadocModel) ) {
+           if ( JavadocMapUtils.isInterface(javadocModel) || javadocModel.get("allInterfaceTypes") == null ) {
                return Collections.EMPTY_LIST; 
            } else {
                // return (List<Map>) javadocModel.get("interfaces");
@@ -205,22 +254,17 @@ public class AllKnownImplementorsQuery extends CustomIndex<AllKnownImplementorsQ
        }
        
        /**
-        * Create a "versioned" instance of the given document.  Lookup the indexedDocument
-        * in the query first.  If there's an existingDocuemnt (probably due to another version
-        * of the library), then pull out its "libraryVersions" field, which is a Set of 
-        * versions.  Put the current library version in the set and then put it in the
-        * "versioned" indexedDocument.
+        * Create a "versioned" instance of the given document.  The "_libraryVersions" field 
+        * is a Set of versions, initialized here with the current library version.  
+        * 
+        * The versions from any existing entry (probably due to another version of the library)
+        * are merged in by the db, via $addToSet, when the entry is written.  See {@link #after}.
         * 
         * @return a "versioned" form of the given indexedDocument
         */
        protected Map versionedDocument( Map indexedDocument ) {
            
-           Map existingDocument = getDb().read( getCollectionName(), (String) indexedDocument.get("_id"));
-           
-           List<String> libraryVersions = (existingDocument != null) 
-                                           ? (List<String>) existingDocument.get("_libraryVersions")
-                                           : new ArrayList<String>();
-                                           
+           List<String> libraryVersions = new ArrayList<String>();
            libraryVersions.add( JavadocMapUtils.getLibraryVersion(indexedDocument) );
            
            indexedDocument.put("_libraryVersions", libraryVersions);
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -14,7 +15,6 @@ import com.surfapi.coll.ListBuilder;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.db.BulkWriter;
 import com.surfapi.db.DB;
-import com.surfapi.db.MongoDBImpl;
 import com.surfapi.log.Log;
 
 /**
@@ -32,6 +32,23 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
     
     private static final String CollectionName = "/q/java/allKnownSubclasses";
     
+    /**
+     * The javadoc fields read by the index builder (the type stub, the superclass/interfaces,
+     * and the fields needed to build the _id).
+     */
+    private static final List<String> BuilderFields = Arrays.asList( "_id",
+                                                                     "metaType",
+                                                                     "name", 
+                                                                     "qualifiedName", 
+                                                                     "qualifiedTypeName", 
+                                                                     "dimension", 
+                                                                     "typeName", 
+                                                                     "parameterizedType",
+                                                                     "wildcardType",
+                                                                     "superclass",
+                                                                     "interfaces",
+                                                                     JavadocMapUtils.LibraryFieldName );
+    
     protected String getCollectionName() {
         return CollectionName;
     }
@@ -57,7 +74,7 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
 
         Log.info( this, "build: building the allKnownSubclasses index" );
         
-        getDb().drop( getCollectionName() );
+        dropIndex();
         
         getDb().forAll( (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id"), new IndexBuilder() );
         
@@ -69,6 +86,15 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
         return this;
     }
     
+    /**
+     * Delete the index.
+     */
+    @Override
+    public AllKnownSubclassesQuery dropIndex() {
+        getDb().drop( getCollectionName() );
+        return this;
+    }
+    
     /**
      * Add the documents from the given library to the index.
      */
@@ -158,20 +184,40 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
     }
     
     
-    private class IndexBuilder implements DB.ForAll {
+    private class IndexBuilder implements DB.ProjectedForAll {
         
-        private BulkWriter bulkWriter;
+        private final ThreadLocal<BulkWriter> bulkWriter = new ThreadLocal<BulkWriter>();
+        
+        /**
+         * The index entries for the current collection, keyed by _id.  Written in {@link #after}.
+         */
+        private final ThreadLocal<Map<String, Map>> entries = new ThreadLocal<Map<String, Map>>();
         
         @Override
         public void before(DB db, String collection) {
             Log.info(this, "before: " + collection);
-            bulkWriter = new BulkWriter( (MongoDBImpl) getDb(), getCollectionName());
+            bulkWriter.set( new BulkWriter( getDb(), getCollectionName()) );
                                 // .setWriteConcern( WriteConcern.UNACKNOWLEDGED );
+            entries.set( new LinkedHashMap<String, Map>() );
+        }
+
+        /**
+         * @return the fields read by this builder.
+         */
+        @Override
+        public Collection<String> getFields() {
+            return BuilderFields;
         }
 
+        /**
+         * Write the collection's entries, merging _libraryVersions with any existing entries.
+         */
         @Override 
         public void after(DB db, String collection) {
-            bulkWriter.flush();
+            bulkWriter.get().insertAddToSet( entries.get().values(), "_libraryVersions" )
+                      .flush();
+            bulkWriter.remove();
+            entries.remove();
             ensureIndex();
         }
         
@@ -183,7 +229,9 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
         public void insert(Map javadocModel) {
             if (JavadocMapUtils.isClass(javadocModel)) {
                 // getDb().save( getCollectionName(), buildDocuments(javadocModel) );
-                bulkWriter.insert( buildDocuments(javadocModel) );
+                for (Map indexedDocument : buildDocuments(javadocModel)) {
+                    entries.get().put( (String) indexedDocument.get("_id"), indexedDocument );
+                }
             }
         }
 
@@ -216,22 +264,17 @@ public class AllKnownSubclassesQuery extends CustomIndex<AllKnownSubclassesQuery
        }
        
        /**
-        * Create a "versioned" instance of the given document.  Lookup the indexedDocument
-        * in the query first.  If there's an existingDocuemnt (probably due to another version
-        * of the library), then pull out its "libraryVersions" field, which is a Set of 
-        * versions.  Put the current library version in the set and then put it in the
-        * "versioned" indexedDocument.
+        * Create a "versioned" instance of the given document.  The "_libraryVersions" field 
+        * is a Set of versions, initialized here with the current library version.  
+        * 
+        * The versions from any existing entry (probably due to another version of the library)
+        * are merged in by the db, via $addToSet, when the entry is written.  See {@link #after}.
         * 
         * @return a "versioned" form of the given indexedDocument
         */
        protected Map versionedDocument( Map indexedDocument ) {
            
-           Map existingDocument = getDb().read( getCollectionName(), (String) indexedDocument.get("_id"));
-           
-           List<String> libraryVersions = (existingDocument != null) 
-                                           ? (List<String>) existingDocument.get("_libraryVersions")
-                                           : new ArrayList<String>();
-                                           
+           List<String> libraryVersions = new ArrayList<String>();
            libraryVersions.add( JavadocMapUtils.getLibraryVersion(indexedDocument) );
            
            indexedDocument.put("_libraryVersions", libraryVersions);
@@ -1,20 +1,33 @@
 package com.surfapi.db.post;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
 
 import com.surfapi.app.JavadocMapUtils;
 import com.surfapi.app.JavadocObject;
+import com.surfapi.app.LibraryUtils;
 import com.surfapi.coll.Cawls;
 import com.surfapi.coll.MapBuilder;
+import com.surfapi.coll.PrefixTrie;
 import com.surfapi.db.BulkWriter;
 import com.surfapi.db.DB;
-import com.surfapi.db.MongoDBImpl;
 import com.surfapi.log.Log;
 
 /**
@@ -25,9 +38,109 @@ import com.surfapi.log.Log;
  *
  * ending point: auto-complete indexes - 1 per collection, 1 per language
  *
+ * Queries are served from an in-memory {@link PrefixTrie} over the _searchName field,
+ * loaded from the index collection on first use.  A new trie is built and swapped in 
+ * whenever the index is modified in this process, and also (in the background) every
+ * {@link #RefreshSecondsPropertyName} seconds to pick up rebuilds made by other processes
+ * (e.g. the buildIndex utility task).
+ *
+ * Each index entry is given a relevance score (_score) when the index is built.  The trie
+ * precomputes the top {@link #TopK} entries for every prefix, so a query is a single lookup.
+ * Entries whose _searchName exactly matches the query are always returned first.
+ *
+ * Besides plain prefix matching, the in-memory index supports two other query modes:
+ * {@link #CamelMode}, which matches camel-hump abbreviations (e.g. "chm" for ConcurrentHashMap),
+ * and {@link #FuzzyMode}, which matches prefixes within a small edit distance of the query 
+ * (e.g. "hashmpa" for HashMap).  When the in-memory index is disabled all queries are prefix queries.
+ *
  */
 public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
 
+    /**
+     * System property for disabling the in-memory tries, in which case queries go
+     * to the db as $regex queries.
+     */
+    public static final String InMemoryPropertyName = "com.surfapi.autoComplete.inMemory";
+    
+    /**
+     * System property for the interval, in seconds, at which loaded tries are reloaded
+     * from the db.  0 disables periodic reloading.
+     */
+    public static final String RefreshSecondsPropertyName = "com.surfapi.autoComplete.refreshSeconds";
+    
+    /**
+     * Query modes.
+     */
+    public static final String PrefixMode = "prefix";
+    public static final String CamelMode = "camel";
+    public static final String FuzzyMode = "fuzzy";
+    
+    /**
+     * The number of top-ranked entries precomputed for each prefix in the trie.
+     */
+    public static final int TopK = 25;
+    
+    /**
+     * The javadoc fields read by the index builder.
+     */
+    private static final List<String> BuilderFields = Arrays.asList( "_id",
+                                                                     "metaType",
+                                                                     "name", 
+                                                                     "qualifiedName", 
+                                                                     "qualifiedTypeName", 
+                                                                     JavadocMapUtils.LibraryFieldName );
+    
+    /**
+     * Relevance score components.  (Exact-name matches aren't scored; they're always 
+     * returned first for a given prefix).
+     */
+    protected static final int JdkScore = 8;
+    protected static final int ClassScore = 4;
+    protected static final int LatestVersionScore = 2;
+    
+    /**
+     * Names of the JDK libraries, whose entries get a score boost.
+     */
+    public static final Collection<String> JdkLibraryNames = Arrays.asList( "java-sdk", "jdk" );
+    
+    /**
+     * Orders index entries by _score, highest first.
+     */
+    protected static final Comparator<Map> ScoreComparator = new Comparator<Map>() {
+        public int compare(Map entry1, Map entry2) {
+            return Integer.compare( getScore(entry2), getScore(entry1) );
+        }
+    };
+    
+    /**
+     * Loaded tries, keyed by index collection name.  Static because the REST layer
+     * creates a new AutoCompleteIndex for every request.
+     */
+    private static final ConcurrentMap<String, LoadedTrie> loadedTries = new ConcurrentHashMap<String, LoadedTrie>();
+    
+    /**
+     * In-progress loads, keyed by index collection name, so concurrent queries against an 
+     * unloaded index wait for a single load (without blocking queries against other indexes).
+     */
+    private static final ConcurrentMap<String, FutureTask<LoadedTrie>> pendingLoads = new ConcurrentHashMap<String, FutureTask<LoadedTrie>>();
+    
+    /**
+     * Invalidation counts, keyed by index collection name.  A load that overlaps an invalidation
+     * can't tell whether it read the change, so its trie is installed already invalidated.
+     */
+    private static final ConcurrentMap<String, AtomicLong> invalidationCounts = new ConcurrentHashMap<String, AtomicLong>();
+    
+    /**
+     * For reloading stale tries in the background, while queries continue against the old trie.
+     */
+    private static final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AutoCompleteIndex-reload");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     /**
      * 
      */
@@ -51,6 +164,21 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
         // since different versions may contain different classes.
         getDb().forAll( (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id"), new IndexBuilder() );
         
+        invalidateTrie( indexName );
+        
+        return this;
+    }
+    
+    /**
+     * Delete the "java" index.  Note: the library-specific indexes are rebuilt in place.
+     */
+    @Override
+    public AutoCompleteIndex dropIndex() {
+        String indexName = getCollectionNameForLang( "java" ) ;
+        
+        getDb().drop( indexName );
+        invalidateTrie( indexName );
+        
         return this;
     }
     
@@ -105,6 +233,10 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
         // Remove library's index
         getDb().drop( getCollectionName(libraryId) );
         
+        invalidateTrie( getCollectionNameForLang( (String) library.get("lang") ) );
+        invalidateTrie( getCollectionName(libraryId) );
+        loadedTries.remove( getCollectionName(libraryId) );
+        
         return this;
      }
 
@@ -132,11 +264,287 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
      * @return the results.
      */
     public List<Map> query(String indexName, String text, int limitResults) {
+        return query(indexName, text, limitResults, PrefixMode);
+    }
+    
+    /**
+     * Query the given auto-complete index on the given text, using the given query mode.
+     * 
+     * @param indexName the index name ("java" or a libraryId)
+     * @param text the text to query on
+     * @param mode {@link #PrefixMode}, {@link #CamelMode}, or {@link #FuzzyMode}.  Unrecognized 
+     *        modes are treated as PrefixMode.
+     *
+     * @return the results.
+     */
+    public List<Map> query(String indexName, String text, int limitResults, String mode) {
+        
+        if (isInMemory()) {
+            LoadedTrie loadedTrie = getLoadedTrie( getCollectionName( indexName ) );
+            
+            if (CamelMode.equals(mode)) {
+                return loadedTrie.camelTrie.findTopByPrefix( normalizeSearchName(text.trim()), limitResults );
+            } else if (FuzzyMode.equals(mode)) {
+                String searchName = normalizeSearchName(text.trim());
+                return loadedTrie.trie.findFuzzyByPrefix( searchName, getMaxEdits(searchName), limitResults );
+            } else {
+                return queryTrie( loadedTrie.trie, text, limitResults );
+            }
+        }
+        
         return getDb().find( getCollectionName( indexName ), 
                              new MapBuilder().append( "_searchName", buildSearchNameCriteria(text) ),
                              limitResults );
     }
     
+    /**
+     * Same matching rules as {@link #buildSearchNameCriteria}: prefix match, unless the
+     * text ends with a ' ', in which case it's an exact match.
+     * 
+     * Note: the returned documents are shared by all queries and must not be modified.
+     *
+     * @return the results
+     */
+    protected List<Map> queryTrie(PrefixTrie<Map> trie, String text, int limitResults) {
+        if (!text.endsWith(" ")) {
+            return trie.findTopByPrefix( normalizeSearchName(text), limitResults );
+        } else {
+            List<Map> results = trie.get( normalizeSearchName(text.trim()) );
+            return new ArrayList<Map>( results.subList(0, Math.min( results.size(), limitResults ) ) );
+        }
+    }
+    
+    /**
+     * The number of edits allowed for a fuzzy query scales with the length of the query:
+     * none for 1-2 chars, 1 for 3-5 chars, 2 otherwise.
+     *
+     * @return the max number of edits for a fuzzy query on the given text.
+     */
+    protected int getMaxEdits(String text) {
+        if (text.length() < 3) {
+            return 0;
+        } else if (text.length() < 6) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+    
+    /**
+     * getCamelHumps("ConcurrentHashMap") => "chm"
+     * getCamelHumps("DemoInterface2") => "di2"
+     * 
+     * @return the first letter of each camel-hump in the given name, lowercased.
+     */
+    public static String getCamelHumps(String name) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i=0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if (i == 0 
+                    || Character.isUpperCase(c) 
+                    || (Character.isDigit(c) && !Character.isDigit(name.charAt(i-1)))) {
+                sb.append( Character.toLowerCase(c) );
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * @return true if queries should be served from the in-memory tries.
+     */
+    protected boolean isInMemory() {
+        return Boolean.parseBoolean( System.getProperty(InMemoryPropertyName, "true") );
+    }
+    
+    /**
+     * @return the loaded tries for the given index collection, loading them if necessary (or if 
+     *         they've been invalidated).  If the tries have expired, a background reload is 
+     *         scheduled and the expired tries are returned in the meantime.
+     */
+    protected LoadedTrie getLoadedTrie(String collectionName) {
+        
+        LoadedTrie loadedTrie = loadedTries.get(collectionName);
+        
+        if (!isUsable(loadedTrie)) {
+            return awaitLoad(collectionName);
+        } 
+        
+        if (loadedTrie.isExpired( getRefreshMillis() )) {
+            scheduleReload(collectionName, loadedTrie);
+        }
+        
+        return loadedTrie;
+    }
+    
+    /**
+     * Load the tries for the given index collection, or wait for the load that's already in 
+     * progress (if any).  Loads of different collections run concurrently.
+     * 
+     * @return the loaded tries
+     */
+    protected LoadedTrie awaitLoad(final String collectionName) {
+        
+        FutureTask<LoadedTrie> load = new FutureTask<LoadedTrie>( new Callable<LoadedTrie>() {
+            public LoadedTrie call() {
+                return loadTrie(collectionName);
+            }
+        });
+        
+        FutureTask<LoadedTrie> pendingLoad = pendingLoads.putIfAbsent(collectionName, load);
+        
+        if (pendingLoad == null) {
+            try {
+                load.run();
+            } finally {
+                pendingLoads.remove(collectionName, load);
+            }
+            pendingLoad = load;
+        }
+        
+        try {
+            return pendingLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * @return true if the given trie was loaded from this db and hasn't been invalidated.
+     */
+    protected boolean isUsable(LoadedTrie loadedTrie) {
+        return loadedTrie != null && loadedTrie.db == getDb() && !loadedTrie.invalidated;
+    }
+    
+    /**
+     * Load the in-memory trie for the given index (e.g "java" or a libraryId).
+     * Typically called at server startup, so the first query doesn't pay for the load.
+     * 
+     * @return this
+     */
+    public AutoCompleteIndex loadIndex(String indexName) {
+        loadTrie( getCollectionName(indexName) );
+        return this;
+    }
+    
+    /**
+     * Build a new trie from the given index collection and swap it in for the old one (if any).
+     * A second trie, keyed by the camel-humps of each entry's name, is built alongside it.
+     * Empty tries (i.e. non-existent indexes) are cached too, and refreshed like any other, 
+     * so queries against a missing index don't reload it every time.
+     *
+     * @return the new tries.
+     */
+    protected LoadedTrie loadTrie(String collectionName) {
+        
+        long startTime = System.currentTimeMillis();
+        
+        AtomicLong invalidationCount = getInvalidationCount(collectionName);
+        long startInvalidationCount = invalidationCount.get();
+        
+        final PrefixTrie<Map> trie = new PrefixTrie<Map>();
+        final PrefixTrie<Map> camelTrie = new PrefixTrie<Map>();
+        
+        getDb().forAll( collectionName, new DB.ForAll() {
+            public void before(DB db, String collection) { }
+            public void after(DB db, String collection) { }
+            public void call(DB db, String collection, Map obj) {
+                if (obj.get("_searchName") != null) {
+                    trie.put( (String) obj.get("_searchName"), obj );
+                }
+                
+                // Single-hump names are already covered by the prefix trie.
+                String camelHumps = getCamelHumps( StringUtils.defaultString( (String) obj.get("name") ) );
+                if (camelHumps.length() > 1) {
+                    camelTrie.put( camelHumps, obj );
+                }
+            }
+        });
+        
+        trie.rank( TopK, ScoreComparator );
+        camelTrie.rank( TopK, ScoreComparator );
+        
+        LoadedTrie loadedTrie = new LoadedTrie( getDb(), trie, camelTrie );
+        loadedTries.put( collectionName, loadedTrie );
+        
+        // Check AFTER the put: an invalidateTrie during the load either marked the old trie
+        // (and is seen here) or runs after the put (and marks this one).
+        if (invalidationCount.get() != startInvalidationCount) {
+            loadedTrie.invalidated = true;
+        }
+        
+        Log.info(this, "loadTrie: " + collectionName + ": loaded " + trie.size() + " entries in " 
+                       + (System.currentTimeMillis() - startTime) + " ms");
+        
+        return loadedTrie;
+    }
+    
+    /**
+     * Reload the given trie in the background, unless a reload is already in progress.
+     */
+    protected void scheduleReload(final String collectionName, final LoadedTrie loadedTrie) {
+        
+        if (!loadedTrie.reloading.compareAndSet(false, true)) {
+            return;
+        }
+        
+        reloadExecutor.execute( new Runnable() {
+            public void run() {
+                try {
+                    loadTrie(collectionName);
+                } catch (Exception e) {
+                    Log.error(AutoCompleteIndex.this, "scheduleReload: failed to reload " + collectionName, e);
+                    loadedTrie.reloading.set(false);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Mark the trie for the given index collection as invalid (if loaded), so the next 
+     * query reloads it.
+     */
+    protected static void invalidateTrie(String collectionName) {
+        getInvalidationCount(collectionName).incrementAndGet();
+        
+        LoadedTrie loadedTrie = loadedTries.get(collectionName);
+        if (loadedTrie != null) {
+            loadedTrie.invalidated = true;
+        }
+    }
+    
+    /**
+     * @return the invalidation count for the given index collection, creating it if necessary.
+     */
+    protected static AtomicLong getInvalidationCount(String collectionName) {
+        AtomicLong retMe = invalidationCounts.get(collectionName);
+        if (retMe == null) {
+            invalidationCounts.putIfAbsent(collectionName, new AtomicLong());
+            retMe = invalidationCounts.get(collectionName);
+        }
+        return retMe;
+    }
+    
+    /**
+     * @return the _score field of the given index entry (0 if it doesn't have one, e.g. it was
+     *         indexed before scores were introduced).
+     */
+    protected static int getScore(Map entry) {
+        Object score = entry.get("_score");
+        return (score instanceof Number) ? ((Number) score).intValue() : 0;
+    }
+    
+    /**
+     * @return the trie refresh interval, in millis.
+     */
+    protected long getRefreshMillis() {
+        return Long.parseLong( System.getProperty(RefreshSecondsPropertyName, "600") ) * 1000;
+    }
+    
     /**
      * @return the criteria by which to match against the _searchName field in the query
      */
@@ -164,34 +572,54 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
     /**
      * Builds the index.
      */
-    protected class IndexBuilder implements DB.ForAll {
+    protected class IndexBuilder implements DB.ProjectedForAll {
         
         /**
          * bulk writes for the library-specific index.
          */
-        private BulkWriter bulkWriter;
+        private final ThreadLocal<BulkWriter> bulkWriter = new ThreadLocal<BulkWriter>();
         
         /**
          * bulk writes to the lang index.
          */
-        private BulkWriter bulkWriterLang;
+        private final ThreadLocal<BulkWriter> bulkWriterLang = new ThreadLocal<BulkWriter>();
+        
+        /**
+         * True if the current collection is the latest version of its library.
+         */
+        private final ThreadLocal<Boolean> isLatestVersion = new ThreadLocal<Boolean>();
         
         @Override
         public void before(DB db, String collection) {
             Log.info(this, "before: " + collection);
-            bulkWriter = new BulkWriter( (MongoDBImpl) getDb(), getCollectionName(collection));
-            bulkWriterLang = new BulkWriter( (MongoDBImpl) getDb(), 
-                                             getCollectionNameForLang( JavadocMapUtils.mapLibraryId(collection).get("lang") ));
+            isLatestVersion.set( isLatestVersion(collection) );
+            bulkWriter.set( new BulkWriter( getDb(), getCollectionName(collection)).setPipelined(1) );
+            bulkWriterLang.set( new BulkWriter( getDb(), 
+                                                getCollectionNameForLang( JavadocMapUtils.mapLibraryId(collection).get("lang") )).setPipelined(1) );
                                                 // .setWriteConcern( WriteConcern.UNACKNOWLEDGED );
         }
 
+        /**
+         * @return the fields read by this builder.
+         */
+        @Override
+        public Collection<String> getFields() {
+            return BuilderFields;
+        }
+
         @Override 
         public void after(DB db, String collection) {
-            bulkWriter.flush();
-            bulkWriterLang.flush();
+            bulkWriter.get().flush();
+            bulkWriterLang.get().flush();
+            bulkWriter.remove();
+            bulkWriterLang.remove();
+            isLatestVersion.remove();
             
             ensureIndex( getCollectionName(collection) );
             ensureIndex( getCollectionNameForLang( JavadocMapUtils.mapLibraryId(collection).get("lang") ) );
+            
+            invalidateTrie( getCollectionName(collection) );
+            invalidateTrie( getCollectionNameForLang( JavadocMapUtils.mapLibraryId(collection).get("lang") ) );
         }
         
         /**
@@ -200,8 +628,8 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
         @Override
         public void call(DB db, String collection, Map obj) {
             for ( Map indexedObj : buildIndexedDocuments( new JavadocObject( obj ) ) ) {
-                bulkWriterLang.insert( new HashMap(indexedObj) );
-                bulkWriter.insert( indexedObj );
+                bulkWriterLang.get().insert( new HashMap(indexedObj) );
+                bulkWriter.get().insert( indexedObj );
             }
         }
         
@@ -212,6 +640,35 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
             return JavadocMapUtils.isClass(obj) || JavadocMapUtils.isPackage(obj);
         }
         
+        /**
+         * @return true if the given library is the latest version of its kind.
+         */
+        protected boolean isLatestVersion(String libraryId) {
+            String lang = JavadocMapUtils.mapLibraryId(libraryId).get("lang");
+            Collection<Map> latestVersions = LibraryUtils.latestVersionsOnly( getDb().getLibraryList(lang) );
+            return Cawls.findFirst( latestVersions, new MapBuilder().append( "_id", libraryId ) ) != null;
+        }
+        
+        /**
+         * @return the relevance score for the given doc.  Classes score higher than packages;
+         *         the JDK and the latest version of each library get a boost.
+         */
+        protected int computeScore( JavadocObject doc ) {
+            int score = 0;
+            
+            if ( doc.isClass() ) {
+                score += ClassScore;
+            }
+            if ( JdkLibraryNames.contains( doc.getLibrary().get("name") ) ) {
+                score += JdkScore;
+            }
+            if ( isLatestVersion.get() ) {
+                score += LatestVersionScore;
+            }
+            
+            return score;
+        }
+        
         /**
          * @return an _id for the autoCompleteIndex collection
          */
@@ -244,6 +701,7 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
                                                .append( "_searchName", normalizeSearchName(nameSegment) )
                                                .append( "name", doc.getString("name") )
                                                .append( "qualifiedName", doc.getQualifiedName() )
+                                               .append( "_score", computeScore(doc) )
                                                .append( JavadocMapUtils.LibraryFieldName, doc.getLibrary() ) );
                 }
             } else {
@@ -258,6 +716,7 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
                                                           .append( "_searchName", normalizeSearchName(doc.getString("name")) )
                                                           .append( "name", doc.getString("name") )
                                                           .append( "qualifiedName", doc.getQualifiedName() )
+                                                          .append( "_score", computeScore(doc) )
                                                           .append( JavadocMapUtils.LibraryFieldName, doc.getLibrary() ) );
             }
 
@@ -284,6 +743,42 @@ public class AutoCompleteIndex extends CustomIndex<AutoCompleteIndex> {
         }
 
     }
-
+    
+    /**
+     * A loaded trie, along with the db it was loaded from and its staleness state.
+     */
+    protected static class LoadedTrie {
+        
+        final DB db;
+        
+        final PrefixTrie<Map> trie;
+        
+        /**
+         * Keyed by the camel-humps of each entry's name.
+         */
+        final PrefixTrie<Map> camelTrie;
+        
+        final long loadedAt = System.currentTimeMillis();
+        
+        final AtomicBoolean reloading = new AtomicBoolean(false);
+        
+        /**
+         * Set when the underlying index collection has been modified.
+         */
+        volatile boolean invalidated = false;
+        
+        LoadedTrie(DB db, PrefixTrie<Map> trie, PrefixTrie<Map> camelTrie) {
+            this.db = db;
+            this.trie = trie;
+            this.camelTrie = camelTrie;
+        }
+        
+        /**
+         * @return true if the trie is older than the given refresh interval.
+         */
+        boolean isExpired(long refreshMillis) {
+            return refreshMillis > 0 && System.currentTimeMillis() - loadedAt > refreshMillis;
+        }
+    }
 
 }
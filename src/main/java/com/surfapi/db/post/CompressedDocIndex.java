@@ -0,0 +1,216 @@
+package com.surfapi.db.post;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONValue;
+
+import com.surfapi.coll.Cawls;
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.BulkWriter;
+import com.surfapi.db.DB;
+import com.surfapi.db.DBLoader;
+import com.surfapi.log.Log;
+
+/**
+ * Stores a precompressed (gzip'ed JSON) copy of every document in a library, in a
+ * separate collection alongside the library ({libraryId}/gz).
+ *
+ * Documents in a versioned library never change, so there's no need to serialize and
+ * compress them on every request.  DbRest streams the stored bytes straight through
+ * to clients that accept gzip.
+ *
+ * Each entry also stores the ETag of the uncompressed JSON, so the precompressed
+ * response carries the same ETag as one served from the ResponseCache; and the library's
+ * generation (its upload time, see {@link DBLoader#UploadedAtFieldName}) when the entry was
+ * built, so entries left over from before a library was re-uploaded can be recognized 
+ * (and ignored) until the library is re-indexed.
+ */
+public class CompressedDocIndex extends CustomIndex<CompressedDocIndex> {
+
+    /**
+     * @return the compressed-doc collection name for the given library.
+     */
+    public static String getCollectionName( String libraryId ) {
+        return libraryId + "/gz";
+    }
+
+    /**
+     * The entry field holding the library's generation.
+     */
+    public static final String GenerationFieldName = "generation";
+
+    /**
+     * Build the index from scratch, for all libraries.
+     *
+     * NOTE: This will fully delete the existing index.
+     */
+    @Override
+    public CompressedDocIndex buildIndex() {
+
+        Log.info( this, "buildIndex: building the compressed doc index" );
+
+        dropIndex();
+
+        getDb().forAll( (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id"), new IndexBuilder() );
+
+        return this;
+    }
+
+    /**
+     * Delete the compressed docs for all libraries.
+     */
+    @Override
+    public CompressedDocIndex dropIndex() {
+        for (String libraryId : (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id")) {
+            getDb().drop( getCollectionName(libraryId) );
+        }
+        return this;
+    }
+
+    /**
+     * Add the documents from the given library to the index, replacing any existing entries
+     * for the library (e.g. from before it was re-uploaded).
+     */
+    @Override
+    public CompressedDocIndex addLibraryToIndex( String libraryId ) {
+
+        Log.info( this, "addLibraryToIndex: " + libraryId);
+
+        removeLibrary( libraryId );
+
+        getDb().forAll( libraryId, new IndexBuilder() );
+
+        return this;
+    }
+
+    /**
+     * Remove the given library's compressed docs.
+     */
+    @Override
+    public CompressedDocIndex removeLibrary( String libraryId ) {
+
+        Log.info( this, "removeLibrary: " + libraryId);
+
+        getDb().drop( getCollectionName(libraryId) );
+
+        return this;
+    }
+
+    /**
+     * @return the compressed-doc entry (fields: _id, gz, etag, generation) for the given doc, 
+     *         or null if the doc hasn't been compressed.
+     */
+    public Map query( String libraryId, String _id ) {
+        return getDb().read( getCollectionName(libraryId), _id );
+    }
+
+    /**
+     * @return the given library's generation (its upload time), as a String.
+     */
+    protected String readGeneration( String libraryId ) {
+        Map library = getDb().read( DB.LibraryCollectionName, 
+                                    libraryId, 
+                                    new MapBuilder<String, Integer>().append(DBLoader.UploadedAtFieldName, 1) );
+        return String.valueOf( (library != null) ? library.get(DBLoader.UploadedAtFieldName) : null );
+    }
+
+    /**
+     * @return the index builder
+     */
+    @Override
+    public DB.ForAll getBuilder() {
+        return new IndexBuilder();
+    }
+
+    /**
+     * @return the given JSON, gzip'ed.
+     */
+    public static byte[] gzip(String json) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream( json.length() / 4 );
+
+            Writer writer = new OutputStreamWriter( new GZIPOutputStream(baos), "UTF-8" );
+            writer.write(json);
+            writer.close();
+
+            return baos.toByteArray();
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return a strong ETag for the given JSON (hex SHA-1 of its UTF-8 bytes).
+     */
+    public static String computeETag(String json) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest( json.getBytes("UTF-8") );
+
+            StringBuilder sb = new StringBuilder( digest.length * 2 );
+            for (byte b : digest) {
+                sb.append( String.format("%02x", b) );
+            }
+            return sb.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Builds the index.
+     */
+    protected class IndexBuilder implements DB.ForAll {
+
+        private final ThreadLocal<BulkWriter> bulkWriter = new ThreadLocal<BulkWriter>();
+
+        /**
+         * The generation of the library being indexed.
+         */
+        private final ThreadLocal<String> generation = new ThreadLocal<String>();
+
+        @Override
+        public void before(DB db, String collection) {
+            Log.info(this, "before: " + collection);
+            generation.set( readGeneration(collection) );
+            bulkWriter.set( new BulkWriter( getDb(), getCollectionName(collection) ).setPipelined(1)
+                                                                                    .setFlushBytes( 16 * 1024 * 1024 ) );
+        }
+
+        @Override
+        public void call(DB db, String collection, Map doc) {
+            bulkWriter.get().insert( buildCompressedDoc(doc, generation.get()) );
+        }
+
+        @Override
+        public void after(DB db, String collection) {
+            bulkWriter.get().flush();
+            bulkWriter.remove();
+            generation.remove();
+        }
+
+        /**
+         * @return the compressed-doc entry for the given doc, from the given library generation.
+         */
+        protected Map buildCompressedDoc(Map doc, String generation) {
+            String json = JSONValue.toJSONString(doc);
+
+            return new MapBuilder().append( "_id", doc.get("_id") )
+                                   .append( "gz", gzip(json) )
+                                   .append( "etag", computeETag(json) )
+                                   .append( GenerationFieldName, generation );
+        }
+    }
+}
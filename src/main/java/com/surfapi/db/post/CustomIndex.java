@@ -20,6 +20,7 @@ public abstract class CustomIndex<T extends CustomIndex> {
         retMe.add( new ReferenceNameQuery() );
         retMe.add( new AllKnownSubclassesQuery() );
         retMe.add( new AllKnownImplementorsQuery() );
+        retMe.add( new CompressedDocIndex() );
         
         return retMe;
     }
@@ -126,6 +127,16 @@ public abstract class CustomIndex<T extends CustomIndex> {
      * the index first if it already exists
      */ 
     public abstract T buildIndex() ;
+    
+    /**
+     * Delete the index, in preparation for rebuilding it from scratch 
+     * by running {@link #getBuilder()} over all libraries.
+     * 
+     * Default impl is a NO-OP.
+     */
+    public T dropIndex() {
+        return (T) this;
+    }
 
     /**
      * Default impls calls addLibraryToIndex on all libraryIds.
@@ -154,6 +165,8 @@ public abstract class CustomIndex<T extends CustomIndex> {
     
     /**
      * @return the builder, which iterates over the models in a library.
+     *         Builders must keep their per-library state per-thread, since a parallel
+     *         forAll may run one builder against several libraries at once (see ParallelForAll).
      */
     public abstract DB.ForAll getBuilder();
     
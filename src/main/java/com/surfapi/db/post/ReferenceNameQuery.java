@@ -4,6 +4,7 @@ package com.surfapi.db.post;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -17,7 +18,6 @@ import com.surfapi.coll.Cawls;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.db.BulkWriter;
 import com.surfapi.db.DB;
-import com.surfapi.db.MongoDBImpl;
 import com.surfapi.log.Log;
 
 /**
@@ -39,6 +39,20 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
      */
     public static String CollectionName = "/q/java/qn";
     
+    /**
+     * The javadoc fields read by the index builder (the reference doc fields, plus the
+     * fields needed to build the reference names).
+     */
+    private static final List<String> BuilderFields = Arrays.asList( "_id",
+                                                                     "metaType",
+                                                                     "name", 
+                                                                     "qualifiedName", 
+                                                                     "qualifiedTypeName", 
+                                                                     "flatSignature",
+                                                                     "containingClass",
+                                                                     "parameters",
+                                                                     JavadocMapUtils.LibraryFieldName );
+    
     protected String getCollectionName() {
         return CollectionName;
     }
@@ -48,15 +62,20 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
      * (Why? Because a javadoc model may exist in the index multiple times under difference refereceNames.
      *  So the "_id" of that model was cached in the "id" field so as not to collide in the index (_id is primary key)).
      *  
-     * @return docs, with all "id" fields set into the "_id" field
+     * @return copies of the docs, with all "id" fields set into the "_id" field
      */
     protected List<Map> replaceIds(List<Map> docs) {
         
+        List<Map> retMe = new ArrayList<Map>();
+        
+        // Copy the docs rather than modify them, since they may be the DB's own (e.g. DBImpl).
         for (Map doc : docs) {
-            doc.put("_id", doc.get("id"));
+            Map copy = new HashMap(doc);
+            copy.put("_id", doc.get("id"));
+            retMe.add(copy);
         }
         
-        return docs;
+        return retMe;
     }
     
     /**
@@ -123,7 +142,7 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
 
         Log.info( this, "buildIndex: building the referenceName index" );
         
-        getDb().drop( getCollectionName() );
+        dropIndex();
         
         getDb().forAll( (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id"), new IndexBuilder() );
         
@@ -140,6 +159,15 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
                                                                    // .append("_id", -1) );
     }
     
+    /**
+     * Delete the index.
+     */
+    @Override
+    public ReferenceNameQuery dropIndex() {
+        getDb().drop( getCollectionName() );
+        return this;
+    }
+    
     /**
      * Add the documents from the given library to the index.
      */
@@ -180,16 +208,24 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
     /**
      * Builds the index.
      */
-    protected class IndexBuilder implements DB.ForAll {
+    protected class IndexBuilder implements DB.ProjectedForAll {
 
-        private BulkWriter bulkWriter;
+        private final ThreadLocal<BulkWriter> bulkWriter = new ThreadLocal<BulkWriter>();
         
         @Override
         public void before(DB db, String collection) {
             Log.info(this, "before: " + collection);
-            bulkWriter = new BulkWriter( (MongoDBImpl) getDb(), getCollectionName());
+            bulkWriter.set( new BulkWriter( getDb(), getCollectionName()).setPipelined(1) );
                                     // .setWriteConcern( WriteConcern.UNACKNOWLEDGED );
         }
+
+        /**
+         * @return the fields read by this builder.
+         */
+        @Override
+        public Collection<String> getFields() {
+            return BuilderFields;
+        }
         
         /**
          *
@@ -198,7 +234,7 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
         public void call(DB db, String collection, Map doc) {
             for (Map refDoc : buildReferenceDocs(doc)) {
                 // db.save( getCollectionName() , refDoc );
-                bulkWriter.insert( refDoc );
+                bulkWriter.get().insert( refDoc );
             }
         }
         
@@ -207,7 +243,8 @@ public class ReferenceNameQuery extends CustomIndex<ReferenceNameQuery> {
          */
         @Override 
         public void after(DB db, String collection) {
-            bulkWriter.flush();
+            bulkWriter.get().flush();
+            bulkWriter.remove();
             ensureIndex();
         }
         
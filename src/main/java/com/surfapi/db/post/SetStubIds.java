@@ -7,6 +7,7 @@ import java.util.Set;
 
 import com.surfapi.app.JavadocMapUtils;
 import com.surfapi.coll.Cawls;
+import com.surfapi.coll.Compactor;
 import com.surfapi.db.DB;
 
 
@@ -39,7 +40,8 @@ public class SetStubIds implements DB.ForAll {
     @Override
     public void call(DB db, String collectionName, Map doc) {
         
-         db.save( collectionName, setStubIdsCrossLibrary(db, collectionName, doc) );
+         // Modify a copy, since the doc may be the DB's own (and immutable, e.g. DBImpl in compact mode).
+         db.save( collectionName, setStubIdsCrossLibrary(db, collectionName, (Map) Compactor.toMutable(doc)) );
     }
 
     /**
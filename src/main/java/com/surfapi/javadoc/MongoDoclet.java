@@ -8,10 +8,12 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.json.simple.JSONArray;
 import org.owasp.html.PolicyFactory;
 import org.owasp.html.Sanitizers;
 
+import com.mongodb.BulkWriteException;
 import com.mongodb.WriteConcern;
 import com.sun.javadoc.ClassDoc;
 import com.sun.javadoc.LanguageVersion;
@@ -21,8 +23,8 @@ import com.surfapi.app.JavadocMapUtils;
 import com.surfapi.db.BulkWriter;
 import com.surfapi.db.DB;
 import com.surfapi.db.DBLoader;
-import com.surfapi.db.MongoDBImpl;
 import com.surfapi.db.MongoDBService;
+import com.surfapi.db.OffHeapDBService;
 import com.surfapi.db.post.SetStubIds;
 import com.surfapi.log.Log;
 
@@ -82,8 +84,11 @@ public class MongoDoclet extends JsonDoclet {
             libraryClassNames.add( classDoc.qualifiedName() );
         }
         
-        BulkWriter bulkWriter = new BulkWriter( (MongoDBImpl) getDb(), getLibraryId() )
-                                        .setWriteConcern( WriteConcern.UNACKNOWLEDGED );
+        // Pipelined, so that walking the next batch of classes overlaps writing the last one.
+        BulkWriter bulkWriter = new BulkWriter( getDb(), getLibraryId() )
+                                        .setWriteConcern( WriteConcern.UNACKNOWLEDGED )
+                                        .setPipelined(2)
+                                        .setFlushBytes( 16 * 1024 * 1024 );
         
         // Process classes and add them to the db.
         for (ClassDoc classDoc : rootDoc.classes()) {
@@ -136,13 +141,30 @@ public class MongoDoclet extends JsonDoclet {
     }
         
     /**
-     * Wrap DB.save() with try-catch.
+     * Wrap DB.save() with try-catch.  If the bulk save fails, the docs are retried one at 
+     * a time, so that one bad doc doesn't sink the whole batch.
      */
     protected void safeSave(String libraryId, Collection<Map> javadocModels) {
         try {
             getDb().save( libraryId, javadocModels);
         } catch (Exception e) {
-            Log.error(this, "safeSave: caught exception", e);
+            int bulkWriteIndex = ExceptionUtils.indexOfType(e, BulkWriteException.class);
+            
+            if (bulkWriteIndex < 0) {
+                Log.error(this, "safeSave: caught exception", e);
+                return;
+            }
+            
+            BulkWriteException bwe = (BulkWriteException) ExceptionUtils.getThrowableList(e).get(bulkWriteIndex);
+            Log.error(this, "safeSave: caught exception; retrying docs one at a time. Write errors: " + bwe.getWriteErrors(), e);
+            
+            for (Map javadocModel : javadocModels) {
+                try {
+                    getDb().save( libraryId, javadocModel );
+                } catch (Exception e2) {
+                    Log.error(this, "safeSave: caught exception saving doc " + javadocModel.get("_id"), e2);
+                }
+            }
         }
     }
     
@@ -231,10 +253,10 @@ public class MongoDoclet extends JsonDoclet {
     }
     
     /**
-     * 
+     * @return the embedded DB if -DOFFHEAP_DIR is set; otherwise mongo.
      */
     protected DB getDb() {
-        return MongoDBService.getDb();
+        return (OffHeapDBService.isEnabled()) ? OffHeapDBService.getDb() : MongoDBService.getDb();
     }
     
 
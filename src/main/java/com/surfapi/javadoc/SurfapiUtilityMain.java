@@ -2,6 +2,7 @@ package com.surfapi.javadoc;
 
 import com.surfapi.db.DB;
 import com.surfapi.db.MongoDBService;
+import com.surfapi.db.OffHeapDBService;
 import com.surfapi.log.Log;
 import com.surfapi.main.MainTaskDispatcher;
 import com.surfapi.main.tasks.BuildIndexTask;
@@ -24,7 +25,7 @@ public class SurfapiUtilityMain {
 
         Log.info(new SurfapiUtilityMain(), "main: entry");
         
-        DB db = MongoDBService.getDb();
+        DB db = (OffHeapDBService.isEnabled()) ? OffHeapDBService.getDb() : MongoDBService.getDb();
         
         MainTaskDispatcher dispatcher = new MainTaskDispatcher();
         
@@ -0,0 +1,138 @@
+package com.surfapi.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streams the elements of a top-level JSON array, one at a time, to a {@link Handler}.
+ *
+ * Only the element currently being parsed is held in memory, rather than the whole array.
+ * Elements are built from the same types JSONParser.parse produces (JSONObject, JSONArray,
+ * String, Long, Double, Boolean, null).
+ */
+public class JSONArrayStreamer implements ContentHandler {
+
+    /**
+     * Receives each element of the top-level array.
+     */
+    public static interface Handler {
+        public void onElement(Object element);
+    }
+
+    /**
+     * Marks the top-level array on the stack (its elements are handed off, not collected).
+     */
+    private static final Object TopLevelArray = new Object();
+
+    private final Handler handler;
+
+    /**
+     * The containers currently being parsed, innermost on top.
+     */
+    private final Deque<Object> containers = new ArrayDeque<Object>();
+
+    /**
+     * The keys of the object entries currently being parsed, innermost on top.
+     */
+    private final Deque<String> keys = new ArrayDeque<String>();
+
+    /**
+     * CTOR.
+     */
+    public JSONArrayStreamer(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parse the JSON array from the given reader, passing each element to the given handler.
+     */
+    public static void stream(Reader reader, Handler handler) throws IOException, ParseException {
+        new JSONParser().parse( reader, new JSONArrayStreamer(handler) );
+    }
+
+    /**
+     * Add the given value to the current container, or hand it to the handler if the current
+     * container is the top-level array.
+     */
+    protected void addValue(Object value) throws ParseException {
+        Object container = containers.peek();
+
+        if (container == TopLevelArray) {
+            handler.onElement(value);
+        } else if (container instanceof List) {
+            ((List) container).add(value);
+        } else if (container instanceof Map) {
+            ((Map) container).put( keys.peek(), value );
+        } else {
+            throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_TOKEN, value);
+        }
+    }
+
+    @Override
+    public void startJSON() {
+        containers.clear();
+        keys.clear();
+    }
+
+    @Override
+    public void endJSON() { }
+
+    @Override
+    public boolean startObject() throws ParseException {
+        if (containers.isEmpty()) {
+            throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_TOKEN, "{ (expected a top-level array)");
+        }
+        containers.push( new JSONObject() );
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws ParseException {
+        addValue( containers.pop() );
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        keys.push(key);
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        keys.pop();
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        containers.push( containers.isEmpty() ? TopLevelArray : new JSONArray() );
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws ParseException {
+        Object array = containers.pop();
+        if (array != TopLevelArray) {
+            addValue(array);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws ParseException {
+        addValue(value);
+        return true;
+    }
+
+}
@@ -1,11 +1,18 @@
 package com.surfapi.main.tasks;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.surfapi.coll.Cawls;
 import com.surfapi.db.DB;
+import com.surfapi.db.ForAllProjection;
+import com.surfapi.db.TimedForAll;
 import com.surfapi.db.post.CustomIndex;
+import com.surfapi.log.Log;
 import com.surfapi.main.Task;
 import com.surfapi.main.TaskArgs;
 
@@ -13,8 +20,22 @@ import com.surfapi.main.TaskArgs;
  * Utility task.  Builds indexes from javadoc model data.
  * 
  * One or all indexes can be built, using the data from 1 or all javadoc libraries.
+ * 
+ * By default, building from scratch builds each index separately (one full scan of every
+ * library per index).  With --fused, each library is scanned once and each document is
+ * fanned out to all the index builders.
+ * 
+ * With --parallelism=N, up to N libraries are scanned concurrently.
+ * 
+ * With --measureProjection, no indexes are built.  Instead the libraries are scanned once
+ * to measure the bytes saved by each builder's field projection (see {@link ForAllProjection}).
  */
 public class BuildIndexTask extends Task<BuildIndexTask> {
+    
+    /**
+     * The number of libraries to scan concurrently.
+     */
+    private int parallelism = 1;
 
     /**
      *
@@ -29,7 +50,7 @@ public class BuildIndexTask extends Task<BuildIndexTask> {
      */
     @Override
     public String getTaskHelp() {
-        return getTaskName() + " [ --index=[indexName] --libraryId=[libraryId] ]";
+        return getTaskName() + " [ --index=[indexName] --libraryId=[libraryId] --fused --parallelism=[n] --measureProjection ]";
     }
 
     /**
@@ -47,13 +68,23 @@ public class BuildIndexTask extends Task<BuildIndexTask> {
     public int handleTask(String[] args) throws Exception {
         
         TaskArgs taskArgs = new TaskArgs(args);
+        
+        parallelism = taskArgs.getLongValue("--parallelism", 1L).intValue();
 
         String libraryId = taskArgs.getStringValue("--libraryId");
         Collection<CustomIndex<?>> customIndexes = injectAll( getDb(),
                                                               CustomIndex.getIndexes(taskArgs.getStringValue("--index")) );
         
-        if (StringUtils.isEmpty(libraryId)) {
-            buildFromScratch( customIndexes ) ;
+        if (taskArgs.isSpecified("--measureProjection")) {
+            measureProjection( StringUtils.isEmpty(libraryId) ? getLibraryIds() : Arrays.asList(libraryId), customIndexes );
+        } else if (StringUtils.isEmpty(libraryId)) {
+            if (taskArgs.isSpecified("--fused")) {
+                buildFromScratchFused( customIndexes );
+            } else if (parallelism > 1) {
+                buildFromScratchParallel( customIndexes );
+            } else {
+                buildFromScratch( customIndexes ) ;
+            }
         } else {
             addLibrary(libraryId, customIndexes );
         }
@@ -70,11 +101,95 @@ public class BuildIndexTask extends Task<BuildIndexTask> {
         }
     }
     
+    /**
+     * Build the given indexes from scratch, one index at a time, scanning the libraries in parallel.
+     */
+    protected void buildFromScratchParallel( Collection<CustomIndex<?>> customIndexes ) {
+        for (CustomIndex customIndex : customIndexes) {
+            customIndex.dropIndex();
+            runBuilders( getLibraryIds(), Arrays.<CustomIndex<?>>asList(customIndex) );
+        }
+    }
+    
+    /**
+     * Build the given indexes from scratch, scanning each library only once.
+     */
+    protected void buildFromScratchFused( Collection<CustomIndex<?>> customIndexes ) {
+        for (CustomIndex customIndex : customIndexes) {
+            customIndex.dropIndex();
+        }
+        
+        runBuilders( getLibraryIds(), customIndexes );
+    }
+    
+    /**
+     * @return all java libraryIds
+     */
+    protected Collection<String> getLibraryIds() {
+        return (Collection<String>) Cawls.pluck( getDb().getLibraryList("java"), "_id");
+    }
+    
     /**
      * 
      */
     protected void addLibrary(String libraryId, Collection<CustomIndex<?>> customIndexes) {
-        getDb().forAll( libraryId, CustomIndex.getBuilders(customIndexes)) ;
+        runBuilders( Arrays.asList(libraryId), customIndexes );
+    }
+    
+    /**
+     * Scan each of the given libraries once, passing each document to all of the 
+     * given indexes' builders.  Up to {@link #parallelism} libraries are scanned at once.
+     * Logs the throughput of each builder.
+     */
+    protected void runBuilders(Collection<String> libraryIds, Collection<CustomIndex<?>> customIndexes) {
+        
+        long startTime = System.currentTimeMillis();
+        
+        List<TimedForAll> builders = getTimedBuilders(customIndexes);
+        
+        getDb().forAll( libraryIds, TimedForAll.asForAlls(builders), parallelism );
+        
+        Log.info(this, "runBuilders: scanned " + libraryIds.size() + " libraries in " 
+                       + (System.currentTimeMillis() - startTime) + " ms");
+        
+        for (TimedForAll builder : builders) {
+            Log.info(this, "runBuilders: " + builder);
+        }
+    }
+    
+    /**
+     * Scan the given libraries once, measuring the bytes that would be fetched with and without
+     * each builder's field projection, and with the union of all builders' projections (i.e. a
+     * --fused build).  Logs the results.
+     */
+    protected void measureProjection(Collection<String> libraryIds, Collection<CustomIndex<?>> customIndexes) {
+        
+        List<ForAllProjection.Stats> stats = new ArrayList<ForAllProjection.Stats>();
+        
+        for (CustomIndex customIndex : customIndexes) {
+            stats.add( new ForAllProjection.Stats( customIndex.getClass().getSimpleName(),
+                                                   ForAllProjection.union( Arrays.asList(customIndex.getBuilder()) ) ) );
+        }
+        stats.add( new ForAllProjection.Stats( "fused", ForAllProjection.union( CustomIndex.getBuilders(customIndexes) ) ) );
+        
+        getDb().forAll( libraryIds, new ArrayList<DB.ForAll>(stats), parallelism );
+        
+        for (ForAllProjection.Stats stat : stats) {
+            Log.info(this, "measureProjection: " + stat);
+        }
+    }
+    
+    /**
+     * @return the given indexes' builders, wrapped in TimedForAlls.
+     */
+    protected List<TimedForAll> getTimedBuilders(Collection<CustomIndex<?>> customIndexes) {
+        List<TimedForAll> retMe = new ArrayList<TimedForAll>();
+        
+        for (CustomIndex customIndex : customIndexes) {
+            retMe.add( new TimedForAll( customIndex.getClass().getSimpleName(), customIndex.getBuilder() ) );
+        }
+        
+        return retMe;
     }
     
     /**
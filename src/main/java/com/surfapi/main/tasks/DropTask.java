@@ -1,6 +1,5 @@
 package com.surfapi.main.tasks;
 
-import com.surfapi.db.MongoDBService;
 import com.surfapi.log.Log;
 import com.surfapi.main.Task;
 import com.surfapi.main.TaskArgs;
@@ -39,7 +38,7 @@ public class DropTask extends Task<DropTask> {
         } else {
             String collection = taskArgs.getRequiredStringValue("--collection");
             
-            MongoDBService.getDb().drop( collection );
+            getDb().drop( collection );
             Log.info(this, "handleTask: Dropped collection: " + collection + " from DB " + getDb().getName());
         }
         
@@ -13,6 +13,9 @@ import com.surfapi.main.TaskArgs;
  * 1. removing the library's collection
  * 2. removing the library from the 'libraries' collection
  * 3. removing the library from all indexes
+ * 4. evicting the library's docs from the REST response cache -- indirectly, via the generation 
+ *    in the cache key: once the library record is gone the generation no longer matches, so 
+ *    its entries go stale and age out (see ResponseCache).
  * 
  */
 public class RemoveLibraryTask extends Task<RemoveLibraryTask> {
@@ -61,6 +64,9 @@ public class RemoveLibraryTask extends Task<RemoveLibraryTask> {
         
         // Remove the library itself
         getDb().drop( libraryId );
+        
+        // Note: the server's ResponseCache entries for this library go stale on their own, 
+        // once the server sees the library is gone (or re-uploaded with a new generation).
 
         return 0;
     }
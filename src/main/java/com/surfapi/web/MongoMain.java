@@ -2,6 +2,7 @@ package com.surfapi.web;
 
 import com.surfapi.db.DBService;
 import com.surfapi.db.MongoDBService;
+import com.surfapi.db.post.AutoCompleteIndex;
 
 /**
  * Sets Mongo as the DBService provider, then calls ServerMain to start the server.
@@ -19,6 +20,9 @@ public class MongoMain {
         
         DBService.setDb( MongoDBService.getDb() );
         
+        // Load the in-memory auto-complete index before taking requests.
+        new AutoCompleteIndex().inject( DBService.getDb() ).loadIndex("java");
+        
         ServerMain.main(args);
     }
 
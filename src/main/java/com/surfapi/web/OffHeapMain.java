@@ -0,0 +1,52 @@
+package com.surfapi.web;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.surfapi.db.DBLoader;
+import com.surfapi.db.DBService;
+import com.surfapi.db.OffHeapDB;
+import com.surfapi.db.OffHeapDBService;
+import com.surfapi.log.Log;
+
+/**
+ * Sets an OffHeapDB as the DBService provider, then calls ServerMain to start the server.
+ * 
+ * The DB's segment files live in -DOFFHEAP_DIR (default "offheap").  If the DB hasn't been 
+ * loaded yet (e.g. first start, or the last load was interrupted), it's loaded from the raw 
+ * json files in -DDATA_DIR first.
+ * 
+ */
+public class OffHeapMain {
+
+    /**
+     * Wrap ServerMain().  Sets the off-heap DB as the db provider.
+     * 
+     */
+    public static void main(String[] args) throws Exception {
+        
+        load( OffHeapDBService.getDb(), DBService.dataDir );
+        
+        ServerMain.main(args);
+    }
+    
+    /**
+     * Load the given DB from the given data dir, unless a previous load completed.  Whatever
+     * an interrupted load left behind is dropped first.
+     */
+    protected static void load(OffHeapDB db, File dataDir) throws IOException {
+        
+        if (db.isLoadComplete()) {
+            return;
+        }
+        
+        if (!db.isEmpty()) {
+            Log.info("OffHeapMain.load: dropping the partially loaded DB " + db.getName());
+            db.drop();
+        }
+        
+        new DBLoader().inject( db ).loadUnchecked( dataDir );
+        db.setLoadComplete();
+    }
+
+}
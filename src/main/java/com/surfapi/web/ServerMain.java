@@ -1,15 +1,36 @@
 package com.surfapi.web;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 
+import com.surfapi.db.DBService;
+import com.surfapi.log.Log;
+
 /**
  * This class launches the web application in an embedded Jetty container. 
  * This is the entry point to your application. 
  * The Java command that is used for launching should fire this main method.
+ * 
+ * The server is configured via env vars (like PORT):
+ * 
+ * JETTY_VIRTUAL_THREADS - "true" to handle requests on virtual threads (JDK 21+; ignored
+ *                         if the JDK doesn't support them)
+ * JETTY_MIN_THREADS, JETTY_MAX_THREADS, JETTY_IDLE_TIMEOUT_MS - the request thread pool limits
+ *                         (ignored when running on virtual threads)
+ * JETTY_ACCEPTORS, JETTY_SELECTORS - the connector's acceptor and selector thread counts
+ *                         (default: Jetty's, which are based on the number of cores)
  */
 public class ServerMain {
 
@@ -21,7 +42,14 @@ public class ServerMain {
             webPort = "8080";
         }
 
-        final Server server = new Server(Integer.valueOf(webPort));
+        final Server server = new Server( buildThreadPool() );
+        
+        ServerConnector connector = new ServerConnector( server, 
+                                                         getEnvInt("JETTY_ACCEPTORS", -1), 
+                                                         getEnvInt("JETTY_SELECTORS", -1) );
+        connector.setPort( Integer.valueOf(webPort) );
+        server.addConnector(connector);
+        
         final WebAppContext root = new WebAppContext();
 
         root.setContextPath("/");
@@ -49,7 +77,61 @@ public class ServerMain {
         handlers.setHandlers(new Handler[] { resourceHandler, root });
         server.setHandler(handlers);
 
+        // Warm up: load the DB in the background while the server starts.  REST requests
+        // get a 503 until it's ready (see ReadinessFilter).
+        DBService.startLoading();
+
         server.start();
         server.join();
     }
+    
+    /**
+     * @return a virtual-thread pool if JETTY_VIRTUAL_THREADS=true and the JDK supports them; 
+     *         otherwise a QueuedThreadPool configured from the JETTY_*_THREADS env vars.
+     */
+    protected static ThreadPool buildThreadPool() {
+        
+        if (Boolean.parseBoolean( System.getenv("JETTY_VIRTUAL_THREADS") )) {
+            ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            
+            if (virtualThreadExecutor != null) {
+                Log.info("ServerMain: handling requests on virtual threads");
+                return new ExecutorThreadPool( virtualThreadExecutor );
+            }
+            
+            Log.info("ServerMain: virtual threads are not supported by this JDK; using a QueuedThreadPool");
+        }
+        
+        QueuedThreadPool threadPool = new QueuedThreadPool( getEnvInt("JETTY_MAX_THREADS", 200), 
+                                                            getEnvInt("JETTY_MIN_THREADS", 8),
+                                                            getEnvInt("JETTY_IDLE_TIMEOUT_MS", 60000) );
+        
+        Log.info("ServerMain: request thread pool: min threads: " + threadPool.getMinThreads() 
+                 + ", max threads: " + threadPool.getMaxThreads());
+        
+        return threadPool;
+    }
+    
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up reflectively, since the code 
+     * is compiled for older JDKs.
+     * 
+     * @return a new virtual-thread-per-task executor, or null if the JDK doesn't support virtual threads.
+     */
+    protected static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * @return the given env var as an int, or the default value if it's not set.
+     */
+    protected static int getEnvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return (StringUtils.isEmpty(value)) ? defaultValue : Integer.parseInt(value.trim());
+    }
 }
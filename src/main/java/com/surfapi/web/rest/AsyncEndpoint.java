@@ -0,0 +1,144 @@
+package com.surfapi.web.rest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import com.surfapi.log.Log;
+
+/**
+ * A bounded executor for the async requests of a single REST endpoint class.
+ *
+ * Each endpoint class gets its own pool, so a backlog of slow queries against one endpoint
+ * (e.g. allKnownImplementors of java.io.Serializable) can't starve the others (e.g. autoComplete).
+ *
+ * Requests that arrive when the pool and its queue are full are rejected immediately with a
+ * 503 and a Retry-After header.  Requests that don't complete within the endpoint's timeout
+ * get the same response.
+ *
+ * Pool settings are configured via system properties, per endpoint class (simple name):
+ * com.surfapi.rest.{endpoint}.threads, .queueDepth, .timeoutSeconds.
+ */
+public class AsyncEndpoint {
+
+    /**
+     * Value of the Retry-After header on 503 responses.
+     */
+    protected static final int RetryAfterSeconds = 1;
+
+    private final String name;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long timeoutMillis;
+
+    /**
+     * CTOR.
+     *
+     * @param name the endpoint name (for logging and thread names)
+     * @param threads the number of threads
+     * @param queueDepth the max number of requests waiting for a thread (0 for no queue)
+     * @param timeoutMillis requests that don't complete within this time get a 503
+     */
+    public AsyncEndpoint(final String name, int threads, int queueDepth, long timeoutMillis) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+
+        BlockingQueue<Runnable> queue = (queueDepth > 0) ? new ArrayBlockingQueue<Runnable>(queueDepth)
+                                                         : new SynchronousQueue<Runnable>();
+
+        this.executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncEndpoint-" + name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return an AsyncEndpoint for the given endpoint class, configured from system properties.
+     */
+    public static AsyncEndpoint forClass(Class<?> endpointClass, int defaultThreads, int defaultQueueDepth, int defaultTimeoutSeconds) {
+        String name = endpointClass.getSimpleName();
+        String propertyPrefix = "com.surfapi.rest." + name;
+
+        return new AsyncEndpoint( name,
+                                  Integer.getInteger( propertyPrefix + ".threads", defaultThreads ),
+                                  Integer.getInteger( propertyPrefix + ".queueDepth", defaultQueueDepth ),
+                                  Integer.getInteger( propertyPrefix + ".timeoutSeconds", defaultTimeoutSeconds ) * 1000L );
+    }
+
+    /**
+     * Set the timeout on the given asyncResponse.  On timeout, the response is resumed with a 503.
+     *
+     * Called by {@link #submit}.  Only needs to be called directly for requests that are
+     * completed by some other async mechanism.
+     *
+     * @return asyncResponse
+     */
+    public AsyncResponse setTimeout(AsyncResponse asyncResponse) {
+        asyncResponse.setTimeoutHandler( new TimeoutHandler() {
+            public void handleTimeout(AsyncResponse asyncResponse) {
+                Log.info(AsyncEndpoint.this, "handleTimeout: " + name + ": request timed out after " + timeoutMillis + " ms");
+                asyncResponse.resume( buildServiceUnavailableResponse() );
+            }
+        });
+        asyncResponse.setTimeout( timeoutMillis, TimeUnit.MILLISECONDS );
+        return asyncResponse;
+    }
+
+    /**
+     * Run the given task on this endpoint's executor and resume the asyncResponse with its result.
+     * If the executor is saturated, the asyncResponse is resumed immediately with a 503.
+     */
+    public void submit(final AsyncResponse asyncResponse, final Callable<Response> task) {
+
+        setTimeout(asyncResponse);
+
+        try {
+            executor.execute( new Runnable() {
+                public void run() {
+                    // The request may have timed out while it was queued.
+                    if (!asyncResponse.isSuspended()) {
+                        return;
+                    }
+                    try {
+                        asyncResponse.resume( task.call() );
+                    } catch (Throwable t) {
+                        asyncResponse.resume( t );
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.info(this, "submit: " + name + ": rejecting request; active: " + executor.getActiveCount()
+                           + ", queued: " + executor.getQueue().size());
+            asyncResponse.resume( buildServiceUnavailableResponse() );
+        }
+    }
+
+    /**
+     * @return a 503 response with a Retry-After header.
+     */
+    protected Response buildServiceUnavailableResponse() {
+        return Response.status( Response.Status.SERVICE_UNAVAILABLE )
+                       .header( HttpHeaders.RETRY_AFTER, RetryAfterSeconds )
+                       .build();
+    }
+
+}
@@ -1,22 +1,36 @@
 package com.surfapi.web.rest;
 
+import java.util.concurrent.Callable;
+
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-
-import org.json.simple.JSONValue;
+import javax.ws.rs.core.Response;
 
 import com.surfapi.db.DBService;
 import com.surfapi.db.post.AutoCompleteIndex;
 
 /**
- * Auto complete REST target
+ * Auto complete REST target.
+ * 
+ * Queries are processed asynchronously, on this endpoint's own bounded executor
+ * (see {@link AsyncEndpoint}), so slow queries on other endpoints can't starve auto-complete.
  */
 @Path("autoComplete")
 public class AutoComplete {
+    
+    /**
+     * Runs the queries for this endpoint.  Auto-complete queries are frequent but (usually) 
+     * served from memory, so they get a short timeout.
+     */
+    private static final AsyncEndpoint asyncEndpoint = AsyncEndpoint.forClass(AutoComplete.class, 8, 256, 10);
 
     /**
      * the max number of results to return.
@@ -24,15 +38,28 @@ public class AutoComplete {
     public static final int LimitResults = 25;
     
     /**
-     * @return String that will be returned as the JSON response
+     * @param mode the query mode: "prefix" (the default), "camel" (camel-hump abbreviations, 
+     *        e.g. "CHM" for ConcurrentHashMap), or "fuzzy" (tolerates typos, e.g. "HashMpa")
+     * 
+     * Resumes the given asyncResponse with the JSON response.
      */
     @GET
     @Path("index")
     @Produces(MediaType.APPLICATION_JSON)
-    public String queryIndex(@QueryParam("str") String str,
-                             @DefaultValue( "java" ) @QueryParam("index") String indexName) {
+    public void queryIndex(@QueryParam("str") final String str,
+                           @DefaultValue( "java" ) @QueryParam("index") final String indexName,
+                           @DefaultValue( AutoCompleteIndex.PrefixMode ) @QueryParam("mode") final String mode,
+                           @Context HttpHeaders httpHeaders,
+                           @Suspended AsyncResponse asyncResponse) {
+
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
 
-        return JSONValue.toJSONString( new AutoCompleteIndex().inject( DBService.getDb() ).query( indexName, str, LimitResults ) ); 
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return JsonStreamingOutput.buildResponse( new AutoCompleteIndex().inject( DBService.getDb() ).query( indexName, str, LimitResults, mode ),
+                                                          gzip ); 
+            }
+        });
     }
 
 }
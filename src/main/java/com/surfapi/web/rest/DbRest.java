@@ -3,14 +3,20 @@ package com.surfapi.web.rest;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import org.json.simple.JSONValue;
@@ -18,12 +24,21 @@ import org.json.simple.JSONValue;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.db.DB;
 import com.surfapi.db.DBService;
+import com.surfapi.db.post.CompressedDocIndex;
 
 /**
  * DB REST target for /java _ids.
+ * 
+ * Requests are processed asynchronously, on this endpoint's own bounded executor
+ * (see {@link AsyncEndpoint}).
  */
 @Path("/java")
 public class DbRest {
+    
+    /**
+     * Runs the requests for this endpoint.
+     */
+    private static final AsyncEndpoint asyncEndpoint = AsyncEndpoint.forClass(DbRest.class, 16, 128, 30);
  
     /**
      * TODO: possible to inject?
@@ -33,57 +48,156 @@ public class DbRest {
     }
     
     /**
-     * @return list of java libraries 
+     * Resumes the given asyncResponse with the list of java libraries.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public String getLangLibraries() {
-        return JSONValue.toJSONString( new MapBuilder().append("name", "java")
-                                                       .append("metaType", "lang" )
-                                                       .append("libraries", getDb().getLibraryList("java")) );
+    public void getLangLibraries(@Context HttpHeaders httpHeaders,
+                                 @Suspended AsyncResponse asyncResponse) {
+        
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
+        
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return JsonStreamingOutput.buildResponse( new MapBuilder().append("name", "java")
+                                                                          .append("metaType", "lang" )
+                                                                          .append("libraries", getDb().getLibraryList("java")),
+                                                          gzip );
+            }
+        });
     }
     
     /**
-     * @return A list of versions for the given library
+     * Resumes the given asyncResponse with the list of versions for the given library
      */
     @GET
     @Path("/{libName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getLibraryVersions( @PathParam("libName") String libName) {
-        return JSONValue.toJSONString( new MapBuilder().append( "name", libName)
-                                                       .append( "metaType", "library.versions" )
-                                                       .append( "lang", "java" )
-                                                       .append( "versions", getDb().getLibraryVersions("java",  libName)) );
+    public void getLibraryVersions( @PathParam("libName") final String libName,
+                                    @Context HttpHeaders httpHeaders,
+                                    @Suspended AsyncResponse asyncResponse) {
+        
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
+        
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return JsonStreamingOutput.buildResponse( new MapBuilder().append( "name", libName)
+                                                                          .append( "metaType", "library.versions" )
+                                                                          .append( "lang", "java" )
+                                                                          .append( "versions", getDb().getLibraryVersions("java",  libName)),
+                                                          gzip );
+            }
+        });
     }
     
     /**
-     * @return The package list/summary for the given library.
+     * Resumes the given asyncResponse with the package list/summary for the given library.
      */
     @GET
     @Path("/{libName}/{libVersion}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getLibrary( @PathParam("libName") String libName,
-                              @PathParam("libVersion") String libVersion ) {
-        return JSONValue.toJSONString(getDb().getLibrary("/java/" + libName + "/" + libVersion));
+    public void getLibrary( @PathParam("libName") final String libName,
+                            @PathParam("libVersion") final String libVersion,
+                            @Context HttpHeaders httpHeaders,
+                            @Suspended AsyncResponse asyncResponse) {
+        
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
+        
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return JsonStreamingOutput.buildResponse( getDb().getLibrary("/java/" + libName + "/" + libVersion), gzip );
+            }
+        });
     }
     
     /**
-     * @return The specified javadoc record from the db.
+     * Documents in a library never change (unless the library is re-uploaded), so the serialized 
+     * response is cached (see {@link ResponseCache}), keyed by the library's generation, and served 
+     * with an ETag and a Cache-Control max-age (shorter for non-release versions, e.g. SNAPSHOTs).
+     * 
+     * If the client accepts gzip and no fields projection is requested, the precompressed 
+     * doc (see {@link CompressedDocIndex}) is streamed straight through, if available and 
+     * built from the library's current generation.
+     * 
+     * Resumes the given asyncResponse with the specified javadoc record from the db.
      */
     @GET
     @Path("/{libName}/{libVersion}/{itemId:.*}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getDoc( @PathParam("libName") String libName,
-                          @PathParam("libVersion") String libVersion,
-                          @PathParam("itemId") String itemId,
-                          @Context UriInfo uriInfo) {
+    public void getDoc( @PathParam("libName") String libName,
+                        @PathParam("libVersion") String libVersion,
+                        @PathParam("itemId") String itemId,
+                        @Context UriInfo uriInfo,
+                        @Context final Request request,
+                        @Context HttpHeaders httpHeaders,
+                        @Suspended AsyncResponse asyncResponse) {
+        
+        final String collection = "/java/" + libName + "/" + libVersion;
+        final String id = collection + "/" + itemId;
+        final Map<String, Integer> fields = convertFieldsMap( uriInfo.getQueryParameters() );
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
+        
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return buildDocResponse( collection, id, fields, request, gzip );
+            }
+        });
+    }
+    
+    /**
+     * @return the response for the given doc
+     */
+    protected Response buildDocResponse( String collection, 
+                                         String id, 
+                                         Map<String, Integer> fields, 
+                                         Request request, 
+                                         boolean gzip ) {
+        
+        int maxAgeSeconds = getResponseCache().getMaxAgeSeconds( collection.substring( collection.lastIndexOf('/') + 1 ) );
+        
+        String generation = getResponseCache().getGeneration( getDb(), collection );
+        
+        if (fields.isEmpty() && gzip && generation != null) {
+            Map compressedDoc = new CompressedDocIndex().inject( getDb() ).query( collection, id );
+            
+            // Ignore entries left over from before the library was re-uploaded.
+            if (compressedDoc != null && generation.equals( compressedDoc.get(CompressedDocIndex.GenerationFieldName) )) {
+                return getResponseCache().buildResponse( request, 
+                                                         (String) compressedDoc.get("etag"), 
+                                                         compressedDoc.get("gz"), 
+                                                         true,
+                                                         maxAgeSeconds );
+            }
+        }
+        
+        if (!getResponseCache().isEnabled() || generation == null) {
+            // Don't cache docs for unknown libraries; the library may not have been loaded yet.
+            return JsonStreamingOutput.buildResponse( getDb().read( collection, id, fields ), gzip );
+        }
         
+        String key = ResponseCache.buildKey( collection, generation, id, fields );
         
-        String collection = "/java/" + libName + "/" + libVersion;
-        return JSONValue.toJSONString(getDb().read( collection, 
-                                                    collection + "/" + itemId, 
-                                                    convertFieldsMap( uriInfo.getQueryParameters() ) ) 
-                                      );
+        ResponseCache.Entry entry = getResponseCache().get(key);
+        
+        if (entry == null) {
+            Map doc = getDb().read( collection, id, fields );
+            
+            if (doc == null) {
+                // Don't cache misses; the library may not have been loaded yet.
+                return JsonStreamingOutput.buildResponse( doc, gzip );
+            }
+            
+            entry = getResponseCache().put( key, JSONValue.toJSONString(doc) );
+        }
+        
+        return getResponseCache().buildResponse( request, entry, gzip, maxAgeSeconds );
+    }
+    
+    /**
+     * @return the response cache
+     */
+    protected ResponseCache getResponseCache() {
+        return ResponseCache.getInstance();
     }
     
     /**
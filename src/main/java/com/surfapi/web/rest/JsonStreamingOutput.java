@@ -0,0 +1,159 @@
+package com.surfapi.web.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.simple.JSONValue;
+
+/**
+ * Writes a JSON Map/List tree directly to the response output stream, rather than
+ * building the entire response as a String first (class documents with large
+ * allInheritedMethods arrays can run to several MB).
+ *
+ * The output is gzip'ed if the client accepts it (see {@link #isGzipAccepted}).
+ */
+public class JsonStreamingOutput implements StreamingOutput {
+
+    /**
+     * System property for disabling gzip'ed responses.
+     */
+    public static final String GzipPropertyName = "com.surfapi.rest.gzip";
+
+    /**
+     * Buffer size for the writer (and gzip stream).
+     */
+    protected static final int BufferSize = 8192;
+
+    /**
+     * The JSON value (Map, List, String, Number, etc) to write.
+     */
+    private final Object value;
+
+    /**
+     * Whether to gzip the output.
+     */
+    private final boolean gzip;
+
+    /**
+     * CTOR.
+     */
+    public JsonStreamingOutput(Object value, boolean gzip) {
+        this.value = value;
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return a StreamingOutput for the given already-serialized JSON.
+     */
+    public static JsonStreamingOutput forSerialized(final String json, boolean gzip) {
+        return new JsonStreamingOutput(json, gzip) {
+            @Override
+            protected void writeJson(Writer writer) throws IOException {
+                writer.write(json);
+            }
+        };
+    }
+
+    /**
+     * @return a 200 response that streams the given JSON value, gzip'ed if the client accepts it.
+     */
+    public static Response buildResponse(Object value, HttpHeaders httpHeaders) {
+        return buildResponse( value, isGzipAccepted(httpHeaders) );
+    }
+
+    /**
+     * @return a 200 response that streams the given JSON value, gzip'ed if gzip is true.
+     */
+    public static Response buildResponse(Object value, boolean gzip) {
+        return setEncodingHeaders( Response.ok( new JsonStreamingOutput(value, gzip) ), gzip ).build();
+    }
+
+    /**
+     * Set the Content-Encoding (if gzip'ed) and Vary headers.
+     *
+     * @return the given responseBuilder
+     */
+    public static ResponseBuilder setEncodingHeaders(ResponseBuilder responseBuilder, boolean gzip) {
+        responseBuilder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            responseBuilder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return responseBuilder;
+    }
+
+    /**
+     * @return true if the request's Accept-Encoding header includes gzip (and gzip hasn't been
+     *         disabled via {@link #GzipPropertyName}).
+     */
+    public static boolean isGzipAccepted(HttpHeaders httpHeaders) {
+
+        if (httpHeaders == null || !Boolean.parseBoolean( System.getProperty(GzipPropertyName, "true") )) {
+            return false;
+        }
+
+        return isGzipAccepted( httpHeaders.getRequestHeader(HttpHeaders.ACCEPT_ENCODING) );
+    }
+
+    /**
+     * @param acceptEncodings the values of the Accept-Encoding header (may be null)
+     * 
+     * @return true if gzip is one of the accepted encodings.
+     */
+    protected static boolean isGzipAccepted(List<String> acceptEncodings) {
+
+        if (acceptEncodings == null) {
+            return false;
+        }
+
+        for (String acceptEncoding : acceptEncodings) {
+            for (String encoding : StringUtils.split(acceptEncoding, ",")) {
+                // Note: "gzip;q=0" means gzip is NOT acceptable.
+                String[] params = StringUtils.split(encoding, ";");
+                if ( params.length > 0
+                        && "gzip".equalsIgnoreCase( params[0].trim() )
+                        && !(params.length > 1 && params[1].replaceAll("\\s", "").matches("q=0(\\.0*)?")) ) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the JSON value to the given output stream.  The stream is not closed.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+
+        GZIPOutputStream gzipOutput = (gzip) ? new GZIPOutputStream(output, BufferSize) : null;
+
+        Writer writer = new BufferedWriter( new OutputStreamWriter( (gzip) ? gzipOutput : output, "UTF-8" ), BufferSize );
+
+        writeJson(writer);
+        writer.flush();
+
+        if (gzipOutput != null) {
+            gzipOutput.finish();
+        }
+    }
+
+    /**
+     * Walk the JSON value and write it to the given writer.
+     */
+    protected void writeJson(Writer writer) throws IOException {
+        JSONValue.writeJSONString(value, writer);
+    }
+
+}
@@ -1,11 +1,16 @@
 package com.surfapi.web.rest;
 
+import java.util.concurrent.Callable;
+
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-
-import org.json.simple.JSONValue;
+import javax.ws.rs.core.Response;
 
 import com.surfapi.db.DBService;
 
@@ -15,14 +20,26 @@ import com.surfapi.db.DBService;
 @Path("_db")
 public class MongoRest {
 
+    /**
+     * Runs the requests for this endpoint.  DB stats are expensive, so keep the pool small.
+     */
+    private static final AsyncEndpoint asyncEndpoint = AsyncEndpoint.forClass(MongoRest.class, 1, 4, 60);
     
     /**
-     * @return String that will be returned as the JSON response
+     * Resumes the given asyncResponse with the db stats.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public String go() {
-        return JSONValue.toJSONString(DBService.getDb().getStats());
+    public void go(@Context HttpHeaders httpHeaders,
+                   @Suspended AsyncResponse asyncResponse) {
+        
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
+        
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                return JsonStreamingOutput.buildResponse( DBService.getDb().getStats(), gzip );
+            }
+        });
     }
 
 }
@@ -2,14 +2,18 @@ package com.surfapi.web.rest;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-
-import org.json.simple.JSONValue;
+import javax.ws.rs.core.Response;
 
 import com.surfapi.coll.ListBuilder;
 import com.surfapi.coll.MapBuilder;
@@ -20,17 +24,26 @@ import com.surfapi.db.post.ReferenceNameQuery;
 
 /**
  * Query REST /q/* for DB queries.
+ * 
+ * Queries are processed asynchronously, on this endpoint's own bounded executor
+ * (see {@link AsyncEndpoint}).
  */
 @Path("/q")
 public class QueryRest {
     
+    /**
+     * Runs the queries for this endpoint.
+     */
+    private static final AsyncEndpoint asyncEndpoint = AsyncEndpoint.forClass(QueryRest.class, 8, 64, 30);
+    
     /**
      * @return A list of queries?? YEAH. Think like an API!
      */
     @GET
     @Path("/{lang}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getLangQueries( @PathParam("lang") String lang) {
+    public Response getLangQueries( @PathParam("lang") String lang,
+                                    @Context HttpHeaders httpHeaders ) {
 
         List<Map> queryList = new ListBuilder<Map>().append( new MapBuilder().append("lang", "java")
                                                                              .append("uri", "/q/java/qn/{referenceName}") )
@@ -38,7 +51,7 @@ public class QueryRest {
                                                                              .append("uri", "/q/java/allKnownSubclasses/{superclassName}") )
                                                     .append( new MapBuilder().append("lang", "java")
                                                                              .append("uri", "/q/java/allKnownImplementors/{interfaceName}") );
-        return JSONValue.toJSONString( queryList );
+        return JsonStreamingOutput.buildResponse( queryList, httpHeaders );
     }
     
     /**
@@ -47,11 +60,18 @@ public class QueryRest {
     @GET
     @Path("/java/qn/{referenceName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String javaQuickNameQuery( @PathParam("referenceName") String referenceName ) {
+    public void javaQuickNameQuery( @PathParam("referenceName") final String referenceName,
+                                    @Context HttpHeaders httpHeaders,
+                                    @Suspended AsyncResponse asyncResponse ) {
 
-        List<Map> results = new ReferenceNameQuery().inject( DBService.getDb() ).query( referenceName );
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
 
-        return JSONValue.toJSONString( results );
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                List<Map> results = new ReferenceNameQuery().inject( DBService.getDb() ).query( referenceName );
+                return JsonStreamingOutput.buildResponse( results, gzip );
+            }
+        });
     }
    
     /**
@@ -60,11 +80,18 @@ public class QueryRest {
     @GET
     @Path("/java/allKnownSubclasses/{superclassName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String javaAllKnownSubclasses( @PathParam("superclassName") String superclassName ) {
+    public void javaAllKnownSubclasses( @PathParam("superclassName") final String superclassName,
+                                        @Context HttpHeaders httpHeaders,
+                                        @Suspended AsyncResponse asyncResponse ) {
 
-        List<Map> results = new AllKnownSubclassesQuery().inject( DBService.getDb() ).query( superclassName );
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
 
-        return JSONValue.toJSONString( results );
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                List<Map> results = new AllKnownSubclassesQuery().inject( DBService.getDb() ).query( superclassName );
+                return JsonStreamingOutput.buildResponse( results, gzip );
+            }
+        });
     }
     
     
@@ -74,11 +101,18 @@ public class QueryRest {
     @GET
     @Path("/java/allKnownImplementors/{interfaceName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public String javaAllKnownImplementors( @PathParam("interfaceName") String interfaceName ) {
+    public void javaAllKnownImplementors( @PathParam("interfaceName") final String interfaceName,
+                                          @Context HttpHeaders httpHeaders,
+                                          @Suspended AsyncResponse asyncResponse ) {
 
-        List<Map> results = new AllKnownImplementorsQuery().inject( DBService.getDb() ).query( interfaceName );
+        final boolean gzip = JsonStreamingOutput.isGzipAccepted(httpHeaders);
 
-        return JSONValue.toJSONString( results );
+        asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+            public Response call() {
+                List<Map> results = new AllKnownImplementorsQuery().inject( DBService.getDb() ).query( interfaceName );
+                return JsonStreamingOutput.buildResponse( results, gzip );
+            }
+        });
     }
     
 
@@ -0,0 +1,45 @@
+package com.surfapi.web.rest;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import org.json.simple.JSONValue;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DBService;
+
+/**
+ * Rejects REST requests with 503 Service Unavailable (and a Retry-After header) until 
+ * the DB is loaded, rather than tying up request threads waiting for the load.
+ * 
+ * If the DB isn't loading yet, the first request starts the load in the background.
+ */
+@Provider
+@PreMatching
+public class ReadinessFilter implements ContainerRequestFilter {
+    
+    /**
+     * Retry-After, in seconds.
+     */
+    public static final int RetryAfterSeconds = 5;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        
+        if (!DBService.isReady()) {
+            DBService.startLoading();
+            
+            requestContext.abortWith( Response.status( Response.Status.SERVICE_UNAVAILABLE )
+                                              .header( HttpHeaders.RETRY_AFTER, RetryAfterSeconds )
+                                              .type( MediaType.APPLICATION_JSON )
+                                              .entity( JSONValue.toJSONString( new MapBuilder().append( "status", "loading" ) ) )
+                                              .build() );
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+package com.surfapi.web.rest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.DBLoader;
+import com.surfapi.db.post.CompressedDocIndex;
+
+/**
+ * LRU cache of serialized JSON response bodies, bounded by total size (in bytes)
+ * rather than number of entries.
+ *
+ * Documents in a library never change once loaded, unless the library is re-uploaded (or 
+ * removed).  So keys include the library's generation (its upload time), and entries for an
+ * older generation simply go stale (and age out of the LRU).  The caller decides how often to 
+ * re-check a library's generation (see {@link #getGeneration}).  Each cached 
+ * response also carries a strong ETag so clients can revalidate with If-None-Match.
+ *
+ * Keys are of the form "{collection} {generation} {id} {fields}" (see {@link #buildKey}).
+ * 
+ * Responses for release versions (e.g. "1.7" or "2.4.1") get a longer Cache-Control max-age 
+ * than other versions (e.g. "1.0-SNAPSHOT"), which are more likely to be re-uploaded.
+ */
+public class ResponseCache {
+
+    /**
+     * System property for the max size of the cache, in bytes.  0 disables the cache.
+     */
+    public static final String MaxBytesPropertyName = "com.surfapi.responseCache.maxBytes";
+
+    /**
+     * System property for the max-age, in seconds, of the Cache-Control header on cached responses.
+     */
+    public static final String MaxAgeSecondsPropertyName = "com.surfapi.responseCache.maxAgeSeconds";
+
+    /**
+     * System property for the max-age, in seconds, of the Cache-Control header on cached responses 
+     * for non-release versions.
+     */
+    public static final String UnversionedMaxAgeSecondsPropertyName = "com.surfapi.responseCache.unversionedMaxAgeSeconds";
+
+    /**
+     * System property for the interval, in seconds, at which a library's generation is re-checked.
+     */
+    public static final String GenerationCheckSecondsPropertyName = "com.surfapi.responseCache.generationCheckSeconds";
+
+    /**
+     * Approx per-entry overhead (map entry, key, Entry object), in bytes.
+     */
+    protected static final int EntryOverheadBytes = 128;
+
+    /**
+     * Shared by all REST targets.
+     */
+    private static final ResponseCache staticInstance = new ResponseCache( Long.parseLong( System.getProperty(MaxBytesPropertyName, "67108864") ),
+                                                                           Integer.parseInt( System.getProperty(MaxAgeSecondsPropertyName, "86400") ),
+                                                                           Integer.parseInt( System.getProperty(UnversionedMaxAgeSecondsPropertyName, "300") ),
+                                                                           Long.parseLong( System.getProperty(GenerationCheckSecondsPropertyName, "60") ) * 1000 );
+
+    /**
+     * Access-ordered, for LRU eviction.  Guarded by this.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+    private final long maxBytes;
+
+    private final int maxAgeSeconds;
+
+    private final int unversionedMaxAgeSeconds;
+
+    private final long generationCheckMillis;
+
+    /**
+     * Library collection -> {generation, time last checked}.  Only libraries that exist are
+     * kept here, so it doesn't grow beyond the number of loaded libraries.
+     */
+    private final ConcurrentMap<String, Object[]> generations = new ConcurrentHashMap<String, Object[]>();
+
+    /**
+     * The total size of all entries.  Guarded by this.
+     */
+    private long currentBytes = 0;
+
+    /**
+     * CTOR.
+     */
+    public ResponseCache(long maxBytes, int maxAgeSeconds) {
+        this(maxBytes, maxAgeSeconds, maxAgeSeconds, 0);
+    }
+
+    /**
+     * CTOR.
+     */
+    public ResponseCache(long maxBytes, int maxAgeSeconds, int unversionedMaxAgeSeconds, long generationCheckMillis) {
+        this.maxBytes = maxBytes;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.unversionedMaxAgeSeconds = unversionedMaxAgeSeconds;
+        this.generationCheckMillis = generationCheckMillis;
+    }
+
+    /**
+     * @return the shared instance.
+     */
+    public static ResponseCache getInstance() {
+        return staticInstance;
+    }
+
+    /**
+     * @param generation the library's generation (e.g. its upload time)
+     * 
+     * @return the cache key for the given document and field projection.
+     */
+    public static String buildKey(String collection, String generation, String id, Map<String, Integer> fields) {
+        // Sort the fields so that equivalent projections map to the same key.
+        return collection + " " + generation + " " + id + " " + new TreeMap<String, Integer>(fields);
+    }
+
+    /**
+     * @return true if the given library version is a release version, i.e. all numeric 
+     *         segments (e.g. "1.7", "2.4.1"), as opposed to e.g. "1.0-SNAPSHOT".
+     */
+    public static boolean isReleaseVersion(String version) {
+        return version != null && version.matches("[0-9]+(\\.[0-9]+)*");
+    }
+
+    /**
+     * @return the Cache-Control max-age for responses from the given library version.
+     */
+    public int getMaxAgeSeconds(String version) {
+        return (isReleaseVersion(version)) ? maxAgeSeconds : unversionedMaxAgeSeconds;
+    }
+
+    /**
+     * The generation is re-read from the db at most once every generationCheckMillis, so a 
+     * re-uploaded library is picked up (and its old entries go stale) within that interval.
+     * 
+     * @return the given library's generation (its upload time), for use in the cache key; 
+     *         or null if the library doesn't exist.
+     */
+    public String getGeneration(DB db, String collection) {
+        long now = System.currentTimeMillis();
+
+        Object[] generation = generations.get(collection);
+
+        if (generation == null || now - (Long) generation[1] >= generationCheckMillis) {
+            Map library = db.read( DB.LibraryCollectionName, 
+                                   collection, 
+                                   new MapBuilder<String, Integer>().append(DBLoader.UploadedAtFieldName, 1) );
+            if (library == null) {
+                generations.remove(collection);
+                return null;
+            }
+
+            generation = new Object[] { String.valueOf( library.get(DBLoader.UploadedAtFieldName) ), now };
+            generations.put(collection, generation);
+        }
+
+        return (String) generation[0];
+    }
+
+    /**
+     * @return the cached entry for the given key, or null.
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Add the given response body to the cache, evicting least-recently-used entries
+     * as necessary to stay under the size limit.  Bodies larger than the limit are not cached.
+     *
+     * @return the entry (whether or not it was cached).
+     */
+    public Entry put(String key, String body) {
+
+        Entry entry = new Entry(body);      // compute the ETag outside the lock
+
+        if (entry.getSize() > maxBytes) {
+            return entry;
+        }
+
+        synchronized (this) {
+            Entry prev = entries.put(key, entry);
+            if (prev != null) {
+                currentBytes -= prev.getSize();
+            }
+            currentBytes += entry.getSize();
+
+            Iterator<Entry> iter = entries.values().iterator();
+            while (currentBytes > maxBytes && iter.hasNext()) {
+                currentBytes -= iter.next().getSize();
+                iter.remove();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * @return the number of entries in the cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size, in bytes, of all entries in the cache.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return true if the cache is enabled (i.e. its max size is > 0).
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return a 304 Not Modified response if the request's If-None-Match matches the entry's
+     *         ETag; otherwise a 200 with the entry's body (gzip'ed if gzip is true).
+     *         Either way the ETag and Cache-Control headers are set.
+     */
+    public Response buildResponse(Request request, Entry entry, boolean gzip) {
+        return buildResponse( request, entry, gzip, maxAgeSeconds );
+    }
+
+    /**
+     * @see #buildResponse(Request, Entry, boolean)
+     */
+    public Response buildResponse(Request request, Entry entry, boolean gzip, int maxAgeSeconds) {
+        return buildResponse( request, entry.getETag(), JsonStreamingOutput.forSerialized( entry.getBody(), gzip ), gzip, maxAgeSeconds );
+    }
+
+    /**
+     * @param etagValue the ETag of the uncompressed JSON
+     * @param entity the response entity (already gzip'ed, if gzip is true)
+     * 
+     * @return a 304 Not Modified response if the request's If-None-Match matches the ETag;
+     *         otherwise a 200 with the given entity.  Either way the ETag and Cache-Control
+     *         headers are set.
+     */
+    public Response buildResponse(Request request, String etagValue, Object entity, boolean gzip) {
+        return buildResponse( request, etagValue, entity, gzip, maxAgeSeconds );
+    }
+
+    /**
+     * @see #buildResponse(Request, String, Object, boolean)
+     */
+    public Response buildResponse(Request request, String etagValue, Object entity, boolean gzip, int maxAgeSeconds) {
+
+        // The gzip'ed representation is a different set of bytes, so it needs its own strong ETag.
+        EntityTag etag = new EntityTag( (gzip) ? etagValue + "-gzip" : etagValue );
+
+        ResponseBuilder responseBuilder = request.evaluatePreconditions(etag);
+        if (responseBuilder == null) {
+            responseBuilder = JsonStreamingOutput.setEncodingHeaders( Response.ok( entity ), gzip );
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge( maxAgeSeconds );
+
+        return responseBuilder.tag(etag).cacheControl(cacheControl).build();
+    }
+
+    /**
+     * A cached response body along with its ETag.
+     */
+    public static class Entry {
+
+        private final String body;
+
+        private final String etag;
+
+        public Entry(String body) {
+            this.body = body;
+            this.etag = CompressedDocIndex.computeETag(body);
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return the approx size of the entry in bytes (Strings are 2 bytes per char).
+         */
+        public long getSize() {
+            return body.length() * 2L + EntryOverheadBytes;
+        }
+    }
+
+}
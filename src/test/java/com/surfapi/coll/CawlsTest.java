@@ -46,6 +46,66 @@ public class CawlsTest {
     /**
      * 
      */
+    @Test
+    public void testFindFirstN() {
+        
+        List<Map> collection = new ListBuilder<Map>().append( new MapBuilder().append("jerry", "seinfeld").append("n", 1) )
+                                                     .append( new MapBuilder().append("george", "costanza") )
+                                                     .append( new MapBuilder().append("jerry", "seinfeld").append("n", 2) )
+                                                     .append( new MapBuilder().append("jerry", "seinfeld").append("n", 3) );
+        
+        Map filter = new MapBuilder().append("jerry", "seinfeld");
+        
+        assertEquals( Arrays.asList(1, 2), Cawls.pluck( Cawls.findFirstN(collection, filter, 2), "n" ) );
+        assertEquals( Arrays.asList(1, 2, 3), Cawls.pluck( Cawls.findFirstN(collection, filter, 0), "n" ) );
+        assertEquals( Cawls.findAll(collection, filter), Cawls.findFirstN(collection, filter, 10) );
+        assertTrue( Cawls.findFirstN(null, filter, 2).isEmpty() );
+    }
+    
+    @Test
+    public void testContainsAllRegex() {
+        
+        Map map = new MapBuilder().append("_qn", "java.util.List")
+                                  .append("_libraryVersions", Arrays.asList("1.6", "1.7"))
+                                  .append("n", 1);
+        
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", "^java\\.util.*") ) ) );
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", "List") ) ) );
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", "^List") ) ) );
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", "^JAVA") ) ) );
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", "^JAVA").append("$options", "i") ) ) );
+        
+        // Lists match if any element matches.
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_libraryVersions", new MapBuilder().append("$regex", "^1\\.7$") ) ) );
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("_libraryVersions", new MapBuilder().append("$regex", "^1\\.8$") ) ) );
+        
+        // Non-strings and missing fields don't match.
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("n", new MapBuilder().append("$regex", "1") ) ) );
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("missing", new MapBuilder().append("$regex", ".*") ) ) );
+        
+        // Other map values are still compared by value.
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("_qn", new MapBuilder().append("$regex", ".*").append("foo", "bar") ) ) );
+    }
+    
+    @Test
+    public void testGetField() {
+        
+        Map map = new MapBuilder().append("_library", new MapBuilder().append("_id", "/java/test/1.0").append("name", "test"))
+                                  .append("a.b", "literal")
+                                  .append("n", 1);
+        
+        assertEquals( "/java/test/1.0", Cawls.getField(map, "_library._id") );
+        assertEquals( "literal", Cawls.getField(map, "a.b") );
+        assertEquals( 1, Cawls.getField(map, "n") );
+        assertNull( Cawls.getField(map, "_library.missing") );
+        assertNull( Cawls.getField(map, "n.x") );
+        assertNull( Cawls.getField(map, "missing.x") );
+        
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_library._id", "/java/test/1.0") ) );
+        assertTrue( Cawls.containsAll(map, new MapBuilder().append("_library.name", new MapBuilder().append("$regex", "^te") ) ) );
+        assertFalse( Cawls.containsAll(map, new MapBuilder().append("_library._id", "/java/test/2.0") ) );
+    }
+    
     @Test
     public void testPick() {
         
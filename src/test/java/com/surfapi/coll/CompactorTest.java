@@ -0,0 +1,217 @@
+package com.surfapi.coll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.db.DBImpl;
+import com.surfapi.db.DBLoader;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class CompactorTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    private static Map newStub() {
+        return new MapBuilder().append("qualifiedName", "java.lang.String").append("metaType", "class");
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCompact() {
+
+        Map stub = newStub();
+
+        Map doc1 = new MapBuilder().append("_id", "1")
+                                   .append("name", "a")
+                                   .append("returnType", stub)
+                                   .append("tags", new ListBuilder().append( newStub() ).append( null ))
+                                   .append("count", 3L);
+        Map doc2 = new MapBuilder().append("_id", "2")
+                                   .append("name", "b")
+                                   .append("returnType", newStub())
+                                   .append("tags", new ListBuilder())
+                                   .append("count", 4L);
+
+        Compactor compactor = new Compactor();
+        Map compact1 = compactor.compact(doc1);
+        Map compact2 = compactor.compact(doc2);
+
+        assertEquals( doc1, compact1 );
+        assertEquals( compact1, doc1 );
+        assertEquals( doc1.hashCode(), compact1.hashCode() );
+        assertEquals( doc2, compact2 );
+        assertEquals( JSONValue.parse( JSONValue.toJSONString(doc1) ), JSONValue.parse( JSONValue.toJSONString(compact1) ) );
+
+        assertTrue( compact1.containsKey("name") );
+        assertFalse( compact1.containsKey("foo") );
+        assertNull( compact1.get("foo") );
+        assertEquals( 5, compact1.size() );
+
+        // Equal sub-documents are shared.
+        assertSame( compact1.get("returnType"), compact2.get("returnType") );
+        assertSame( compact1.get("returnType"), ((List) compact1.get("tags")).get(0) );
+
+        // Already-compact docs are returned as is.
+        assertSame( compact1, compactor.compact(compact1) );
+
+        // Immutable.
+        try {
+            compact1.put("name", "x");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected.
+        }
+        try {
+            ((List) compact1.get("tags")).add("x");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected.
+        }
+
+        // ...but can be copied.
+        Map mutable = (Map) Compactor.toMutable(compact1);
+        assertTrue( mutable instanceof JSONObject );
+        ((Map) mutable.get("returnType")).put("_id", "x");
+        assertEquals( doc1, compact1 );
+    }
+
+    /**
+     * Measure the heap used by the test libraries, loaded into a DBImpl with and without
+     * compact docs.  Set com.surfapi.compactorTest.dataDir to measure a bigger dataset
+     * (e.g. the JDK).
+     */
+    @Test
+    public void testHeapReduction() {
+
+        File dataDir = new File( System.getProperty("com.surfapi.compactorTest.dataDir", "src/test/resources") );
+
+        DBImpl db = new DBImpl();
+        new DBLoader().inject( db ).setParallelism(1).loadUnchecked( dataDir );
+
+        DBImpl compactDb = new DBImpl().setCompact(true);
+        new DBLoader().inject( compactDb ).setParallelism(1).loadUnchecked( dataDir );
+
+        assertEquals( db.keySet(), compactDb.keySet() );
+        for (String collection : db.keySet()) {
+            assertEquals( collection, db.get(collection), compactDb.get(collection) );
+        }
+
+        long bytes = deepSize(db);
+        long compactBytes = deepSize(compactDb);
+        long percentSaved = (bytes - compactBytes) * 100 / bytes;
+
+        System.out.println("testHeapReduction: " + dataDir + ": " + bytes + " bytes; compact: " + compactBytes
+                           + " bytes (" + percentSaved + "% saved); " + compactDb.getCompactor().getStats());
+
+        assertTrue( "only " + percentSaved + "% saved", percentSaved >= 40 );
+    }
+
+    /**
+     * @return the estimated retained heap size of the given object graph, assuming a 64-bit JVM
+     *         with compressed oops (12-byte object headers, 16-byte array headers, 4-byte refs,
+     *         8-byte alignment).
+     */
+    private static long deepSize(Object root) {
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        Deque<Object> stack = new ArrayDeque<Object>();
+        stack.push(root);
+
+        long retMe = 0;
+
+        while (!stack.isEmpty()) {
+            Object obj = stack.pop();
+            if (obj instanceof Class || visited.put(obj, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            Class<?> clazz = obj.getClass();
+
+            if (clazz.isArray()) {
+                int length = Array.getLength(obj);
+                Class<?> componentType = clazz.getComponentType();
+                retMe += align( 16 + (long) length * fieldSize(componentType) );
+                if (!componentType.isPrimitive()) {
+                    for (int i = 0; i < length; ++i) {
+                        push( stack, Array.get(obj, i) );
+                    }
+                }
+                continue;
+            }
+
+            long size = 12;
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    size += fieldSize( field.getType() );
+                    if (!field.getType().isPrimitive()) {
+                        field.setAccessible(true);
+                        try {
+                            push( stack, field.get(obj) );
+                        } catch (IllegalAccessException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }
+            retMe += align(size);
+        }
+
+        return retMe;
+    }
+
+    private static void push(Deque<Object> stack, Object obj) {
+        if (obj != null) {
+            stack.push(obj);
+        }
+    }
+
+    private static long fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else {
+            return 4;
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) / 8 * 8;
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.surfapi.coll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PrefixTrieTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testFindByPrefix() {
+
+        PrefixTrie<String> trie = new PrefixTrie<String>().put("list", "List")
+                                                          .put("listbuilder", "ListBuilder")
+                                                          .put("linkedlist", "LinkedList")
+                                                          .put("map", "Map")
+                                                          .put("listiterator", "ListIterator");
+
+        assertEquals(5, trie.size());
+
+        // Results come back in key order
+        assertEquals( Arrays.asList("LinkedList", "List", "ListBuilder", "ListIterator"), trie.findByPrefix("li", 25) );
+        assertEquals( Arrays.asList("List", "ListBuilder", "ListIterator"), trie.findByPrefix("list", 25) );
+        assertEquals( Arrays.asList("Map"), trie.findByPrefix("m", 25) );
+        assertTrue( trie.findByPrefix("x", 25).isEmpty() );
+
+        // Empty prefix matches everything
+        assertEquals( 5, trie.findByPrefix("", 25).size() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFindByPrefixLimit() {
+
+        PrefixTrie<String> trie = new PrefixTrie<String>();
+        for (int i=0; i < 100; ++i) {
+            trie.put("demo" + i, "Demo" + i);
+        }
+
+        List<String> results = trie.findByPrefix("demo", 25);
+        assertEquals(25, results.size());
+        assertEquals("Demo0", results.get(0));
+
+        assertEquals(11, trie.findByPrefix("demo1", 25).size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGet() {
+
+        PrefixTrie<String> trie = new PrefixTrie<String>().put("demointerface", "DemoInterface")
+                                                          .put("demointerface", "DemoInterface (0.9)")
+                                                          .put("demointerface2", "DemoInterface2");
+
+        assertEquals( Arrays.asList("DemoInterface", "DemoInterface (0.9)"), trie.get("demointerface") );
+        assertEquals( Arrays.asList("DemoInterface2"), trie.get("demointerface2") );
+        assertTrue( trie.get("demo").isEmpty() );
+        assertTrue( trie.get("demointerface3").isEmpty() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFindTopByPrefix() {
+
+        PrefixTrie<String> trie = new PrefixTrie<String>().put("list", "List")
+                                                          .put("listbuilder", "ListBuilder")
+                                                          .put("linkedlist", "LinkedList")
+                                                          .put("listiterator", "ListIterator")
+                                                          .put("li", "Li");
+
+        // Rank by length, longest first.
+        trie.rank(3, new Comparator<String>() {
+            public int compare(String s1, String s2) {
+                return Integer.compare(s2.length(), s1.length());
+            }
+        });
+
+        assertEquals( Arrays.asList("ListIterator", "ListBuilder", "List"), trie.findTopByPrefix("lis", 3) );
+
+        // Exact match comes first regardless of rank.
+        assertEquals( Arrays.asList("Li", "ListIterator", "ListBuilder"), trie.findTopByPrefix("li", 3) );
+        assertEquals( Arrays.asList("List", "ListIterator"), trie.findTopByPrefix("list", 2) );
+
+        assertTrue( trie.findTopByPrefix("x", 3).isEmpty() );
+
+        // Limit greater than K falls back to key order.
+        assertEquals( Arrays.asList("Li", "LinkedList", "List", "ListBuilder", "ListIterator"), trie.findTopByPrefix("li", 25) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFindFuzzyByPrefix() {
+
+        PrefixTrie<String> trie = new PrefixTrie<String>().put("hashmap", "HashMap")
+                                                          .put("hashset", "HashSet")
+                                                          .put("hashtable", "Hashtable")
+                                                          .put("treemap", "TreeMap");
+
+        // Transposition
+        assertEquals( Arrays.asList("HashMap"), trie.findFuzzyByPrefix("hashmpa", 1, 25) );
+
+        // Substitution; closer matches first
+        assertEquals( Arrays.asList("HashSet", "HashMap", "Hashtable"), trie.findFuzzyByPrefix("hashs", 1, 25) );
+
+        // Exact prefix matches still match
+        assertEquals( Arrays.asList("HashMap", "HashSet", "Hashtable"), trie.findFuzzyByPrefix("hash", 1, 25) );
+
+        assertTrue( trie.findFuzzyByPrefix("hxxhmap", 1, 25).isEmpty() );
+        assertEquals( Arrays.asList("HashMap"), trie.findFuzzyByPrefix("hxshmap", 1, 25) );
+        assertEquals( Arrays.asList("HashMap"), trie.findFuzzyByPrefix("hashmpa", 2, 1) );
+    }
+
+}
@@ -1,12 +1,24 @@
 package com.surfapi.db;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
 
 import org.junit.ClassRule;
 import org.junit.Rule;
@@ -14,6 +26,7 @@ import org.junit.Test;
 
 import com.mongodb.WriteConcern;
 import com.mongodb.BulkWriteException;
+import com.surfapi.coll.ListBuilder;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.json.JSONTrace;
 import com.surfapi.junit.CaptureSystemOutRule;
@@ -91,6 +104,146 @@ public class BulkWriterTest {
 
     }
     
+    /**
+     * 
+     */
+    @Test
+    public void testInsertAddToSet() throws Exception {
+        
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
+        MongoDBImpl db = new MongoDBImpl(MongoDbName);
+        
+        verifyInsertAddToSet(db);
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testInsertAddToSetDBImpl() throws Exception {
+        verifyInsertAddToSet( new DBImpl() );
+    }
+    
+    /**
+     * BulkWriters on several threads merging into the same docs don't lose each other's updates.
+     */
+    @Test
+    public void testParallelInsertAddToSetDBImpl() throws Exception {
+        
+        final DB db = new DBImpl();
+        
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; ++t) {
+            final String version = "1." + t;
+            threads.add( new Thread() {
+                public void run() {
+                    BulkWriter bulkWriter = new BulkWriter(db, "test.collection").setFlushCount(3);
+                    for (int i = 0; i < 100; ++i) {
+                        bulkWriter.insertAddToSet( new MapBuilder().append( "_id", "" + (i % 20) )
+                                                                   .append( "versions", new ListBuilder<String>().append(version) ), 
+                                                   "versions" );
+                    }
+                    bulkWriter.flush();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        for (int i = 0; i < 20; ++i) {
+            assertEquals( 8, ((List) db.read("test.collection", "" + i).get("versions")).size() );
+        }
+    }
+    
+    /**
+     * Common test for testInsertAddToSet (mongo) and testInsertAddToSetDBImpl.
+     */
+    protected void verifyInsertAddToSet(DB db) {
+        
+        new BulkWriter(db, "test.collection")
+                .insertAddToSet( new MapBuilder().append( "_id", "1")
+                                                 .append( "nonIdField", "hi" )
+                                                 .append( "versions", new ListBuilder<String>().append("1.0") ), 
+                                 "versions" )
+                .flush();
+        
+        assertEquals( Arrays.asList("1.0"), db.read("test.collection", "1").get("versions") );
+        
+        // Merged with the existing set, without dups.
+        new BulkWriter(db, "test.collection")
+                .insertAddToSet( new MapBuilder().append( "_id", "1")
+                                                 .append( "nonIdField", "hello" )
+                                                 .append( "versions", new ListBuilder<String>().append("2.0").append("1.0") ), 
+                                 "versions" )
+                .insertAddToSet( new MapBuilder().append( "_id", "1")
+                                                 .append( "nonIdField", "hello" )
+                                                 .append( "versions", new ListBuilder<String>().append("3.0") ), 
+                                 "versions" )
+                .flush();
+        
+        Map doc = db.read("test.collection", "1");
+        assertEquals( "hello", doc.get("nonIdField") );
+        assertEquals( Arrays.asList("1.0", "2.0", "3.0"), doc.get("versions") );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testInsertMerge() throws Exception {
+        
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
+        verifyInsertMerge( new MongoDBImpl(MongoDbName) );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testInsertMergeDBImpl() throws Exception {
+        verifyInsertMerge( new DBImpl() );
+    }
+    
+    /**
+     * Common test for testInsertMerge (mongo) and testInsertMergeDBImpl.  Inserting the 
+     * same _id twice merges the fields (like mongo's $set) rather than replacing the doc.
+     */
+    protected void verifyInsertMerge(DB db) {
+        
+        Map inserted = new MapBuilder().append( "_id", "1").append( "a", "hi" );
+        new BulkWriter(db, "test.collection")
+                .insert( inserted )
+                .flush();
+        
+        // The given doc is not modified.
+        assertEquals( new MapBuilder().append( "_id", "1").append( "a", "hi" ), inserted );
+        
+        new BulkWriter(db, "test.collection")
+                .insert( new MapBuilder().append( "_id", "1").append( "b", "there" ) )
+                .flush();
+        
+        Map doc = db.read("test.collection", "1");
+        assertEquals( "hi", doc.get("a") );
+        assertEquals( "there", doc.get("b") );
+        
+        // Same _id twice in the same batch.
+        new BulkWriter(db, "test.collection")
+                .insert( new MapBuilder().append( "_id", "1").append( "a", "hello" ) )
+                .insert( new MapBuilder().append( "_id", "1").append( "c", "again" ) )
+                .flush();
+        
+        doc = db.read("test.collection", "1");
+        assertEquals( "hello", doc.get("a") );
+        assertEquals( "there", doc.get("b") );
+        assertEquals( "again", doc.get("c") );
+    }
+    
     /**
      * Should bomb because we move the _id field from the map for the upsert
      * and this causes mongo to complain cuz we're not actually updating anything.
@@ -195,7 +348,123 @@ public class BulkWriterTest {
         doc = db.read("test.collection", "3");
         assertEquals("bar", doc.get("foo") );
     }
-  
+    
+    /**
+     * A DBImpl whose collection saves block until released, and optionally fail.
+     */
+    private static class SlowDBImpl extends DBImpl {
+        
+        final Semaphore released = new Semaphore(0);
+        
+        final AtomicInteger batchCount = new AtomicInteger();
+        
+        volatile boolean fail = false;
+        
+        @Override
+        public void save(String collection, Collection<Map> docs) {
+            released.acquireUninterruptibly();
+            batchCount.incrementAndGet();
+            if (fail) {
+                throw new IllegalStateException("save failed");
+            }
+            super.save(collection, docs);
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testPipelined() throws Exception {
+        
+        final SlowDBImpl db = new SlowDBImpl();
+        
+        final BulkWriter bulkWriter = new BulkWriter(db, "test.collection").setFlushCount(2).setPipelined(1);
+        
+        // The first batch is handed off and blocks in the background, while the 
+        // caller carries on filling the second batch.
+        bulkWriter.insert( new MapBuilder().append( "_id", "1") );
+        bulkWriter.insert( new MapBuilder().append( "_id", "2") );
+        bulkWriter.insert( new MapBuilder().append( "_id", "3") );
+        
+        assertNull( db.read("test.collection", "1") );
+        
+        // The second batch must wait for the first (only 1 in flight).
+        final CountDownLatch secondBatchHandedOff = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                bulkWriter.insert( new MapBuilder().append( "_id", "4") );
+                secondBatchHandedOff.countDown();
+            }
+        };
+        producer.start();
+        
+        assertFalse( secondBatchHandedOff.await(200, TimeUnit.MILLISECONDS) );
+        
+        db.released.release();
+        assertTrue( secondBatchHandedOff.await(5, TimeUnit.SECONDS) );
+        producer.join();
+        
+        // flush waits for the in-flight batch.
+        db.released.release(10);
+        bulkWriter.flush();
+        
+        assertEquals( 2, db.batchCount.get() );
+        assertEquals( 2, bulkWriter.getBatchMillis().size() );
+        for (String id : Arrays.asList("1", "2", "3", "4")) {
+            assertNotNull( db.read("test.collection", id) );
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testPipelinedError() throws Exception {
+        
+        SlowDBImpl db = new SlowDBImpl();
+        db.fail = true;
+        db.released.release(10);
+        
+        BulkWriter bulkWriter = new BulkWriter(db, "test.collection").setFlushCount(2).setPipelined(2);
+        
+        bulkWriter.insert( new MapBuilder().append( "_id", "1") );
+        bulkWriter.insert( new MapBuilder().append( "_id", "2") );
+        bulkWriter.insert( new MapBuilder().append( "_id", "3") );
+        
+        try {
+            bulkWriter.close();
+            fail("expected the background error to be rethrown on close");
+        } catch (IllegalStateException e) {
+            assertEquals( "save failed", e.getMessage() );
+        }
+        
+        // Rethrown only once.
+        bulkWriter.close();
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testFlushBytes() throws Exception {
+        
+        SlowDBImpl db = new SlowDBImpl();
+        db.released.release(10);
+        
+        BulkWriter bulkWriter = new BulkWriter(db, "test.collection").setFlushBytes(1000);
+        
+        bulkWriter.insert( new MapBuilder().append( "_id", "1").append( "text", StringUtils.repeat("x", 600) ) );
+        assertEquals( 0, db.batchCount.get() );
+        
+        bulkWriter.insert( new MapBuilder().append( "_id", "2").append( "text", StringUtils.repeat("x", 600) ) );
+        assertEquals( 1, db.batchCount.get() );
+        assertNotNull( db.read("test.collection", "2") );
+        
+        bulkWriter.insert( new MapBuilder().append( "_id", "3").append( "text", "small" ) );
+        bulkWriter.flush();
+        assertEquals( 2, db.batchCount.get() );
+    }
 
     private void log(String msg, List<Map> docs) {
         for (Map doc : docs) {
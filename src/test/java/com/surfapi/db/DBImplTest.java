@@ -5,17 +5,27 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Rule;
 import org.junit.Test;
 
 import com.surfapi.app.JavadocMapUtils;
 import com.surfapi.coll.Cawls;
+import com.surfapi.coll.ListBuilder;
 import com.surfapi.coll.MapBuilder;
 import com.surfapi.json.JSONTrace;
 import com.surfapi.junit.CaptureSystemOutRule;
@@ -31,6 +41,14 @@ public class DBImplTest {
     @Rule
     public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
     
+    /**
+     * @return a new, empty DB to test.  Subclasses override this to run these tests 
+     *         against other DBImpl-based DBs (e.g. {@link OffHeapDBTest}).
+     */
+    protected DBImpl newDB() {
+        return new DBImpl();
+    }
+    
     /**
      * 
      */
@@ -43,7 +61,7 @@ public class DBImplTest {
         String libraryId = DBLoader.parseLibraryId( testJsonFile.getName() );
         assertEquals("/java/DBTest.test/1.0.3", libraryId) ;
         
-        DB db = new DBImpl();
+        DB db = newDB();
         new DBLoader().inject( db ).loadDir( new File("src/test/resources") );
         
         // System.out.println( DB._.toString() );
@@ -93,7 +111,7 @@ public class DBImplTest {
         String libraryId = DBLoader.parseLibraryId( testJsonFile.getName() );
         assertEquals("/java/java-sdk/1.6",libraryId) ;
         
-        DB db = new DBImpl();
+        DB db = newDB();
         new DBLoader().inject( db ).loadDir( new File("data") );
         
         // System.out.println( DB._.toString() );
@@ -121,7 +139,7 @@ public class DBImplTest {
     @Test
     public void testGetLibraryList() throws Exception {
         
-        DBImpl db = new DBImpl();
+        DBImpl db = newDB();
 
         // Add 
         db.save( DB.LibraryCollectionName, new MapBuilder().append("lang", "java")
@@ -150,7 +168,7 @@ public class DBImplTest {
      */        
     @Test
     public void testGetLibraryIds() throws Exception {
-        DBImpl db = new DBImpl();
+        DBImpl db = newDB();
 
         // Add 
         db.save( DB.LibraryCollectionName, new MapBuilder().append("lang", "java")
@@ -173,14 +191,349 @@ public class DBImplTest {
         assertTrue( javaLibs.contains( "/java/org.junit/4.11" ) );
     }
     
+    /**
+     * 
+     */
+    @Test
+    public void testForAllParallel() throws Exception {
+        
+        DB db = newDB();
+        new DBLoader().inject( db ).loadDir( new File("src/test/resources") );
+        
+        final Map<String, Thread> threads = new ConcurrentHashMap<String, Thread>();
+        final AtomicInteger docCount = new AtomicInteger();
+        
+        List<String> libraryIds = db.getLibraryIds("java");
+        
+        db.forAll( libraryIds, Arrays.<DB.ForAll>asList( new DB.ForAll() {
+            public void before(DB db, String collection) {
+                threads.put( collection, Thread.currentThread() );
+            }
+            public void call(DB db, String collection, Map obj) {
+                assertEquals( threads.get(collection), Thread.currentThread() );
+                docCount.incrementAndGet();
+            }
+            public void after(DB db, String collection) {
+                assertEquals( threads.get(collection), Thread.currentThread() );
+            }
+        }), 3 );
+        
+        int expectedDocCount = 0;
+        for (String libraryId : libraryIds) {
+            expectedDocCount += db.find( libraryId, new MapBuilder() ).size();
+        }
+        
+        assertEquals( libraryIds.size(), threads.size() );
+        assertEquals( expectedDocCount, docCount.get() );
+    }
+    
+    /**
+     * The versions of a library are processed one at a time, even in parallel, since 
+     * builders share index entries across versions.
+     */
+    @Test
+    public void testForAllParallelSameLibrary() throws Exception {
+        
+        DB db = newDB();
+        new DBLoader().inject( db ).loadDir( new File("src/test/resources") );
+        
+        final Set<String> activeLibraryNames = Collections.synchronizedSet( new HashSet<String>() );
+        final List<String> processed = Collections.synchronizedList( new ArrayList<String>() );
+        
+        List<String> libraryIds = db.getLibraryIds("java");
+        assertTrue( libraryIds.contains("/java/com.surfapi/0.9") );
+        assertTrue( libraryIds.contains("/java/com.surfapi/1.0") );
+        
+        db.forAll( libraryIds, Arrays.<DB.ForAll>asList( new DB.ForAll() {
+            public void before(DB db, String collection) {
+                assertTrue( collection, activeLibraryNames.add( JavadocMapUtils.mapLibraryId(collection).get("name") ) );
+                try {
+                    Thread.sleep(50);   // give another version of the library a chance to start
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            public void call(DB db, String collection, Map obj) {
+            }
+            public void after(DB db, String collection) {
+                activeLibraryNames.remove( JavadocMapUtils.mapLibraryId(collection).get("name") );
+                processed.add(collection);
+            }
+        }), 4 );
+        
+        assertEquals( new HashSet<String>(libraryIds), new HashSet<String>(processed) );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testCreateIndex() {
+        DBImpl db = newDB();
+        
+        for (int i = 0; i < 100; ++i) {
+            db.save( "coll", new MapBuilder().append( "_id", "id" + i )
+                                             .append( "_qn", "java.util.Class" + (i % 10) )
+                                             .append( "_library", "lib" + (i % 2) ) );
+        }
+        db.save( "coll", new MapBuilder().append( "_id", "noqn" ) );
+        
+        Map exactFilter = new MapBuilder().append( "_qn", "java.util.Class3" );
+        Map regexFilter = new MapBuilder().append( "_qn", new MapBuilder().append( "$regex", "^java.util.Class[12].*" ) )
+                                          .append( "_library", "lib1" );
+        
+        // Unindexed.
+        assertEquals( 10, db.find( "coll", exactFilter ).size() );
+        assertEquals( 10, db.find( "coll", regexFilter ).size() );
+        
+        db.createIndex( "coll", new MapBuilder().append( "_qn", 1 ).append( "_id", -1 ) );
+        db.createIndex( "coll", new MapBuilder().append( "_qn", 1 ) );   // no-op
+        assertEquals( 2, db.getIndexes("coll").size() );
+        
+        assertEquals( 10, db.find( "coll", exactFilter ).size() );
+        assertEquals( 10, db.find( "coll", new MapBuilder().append( "_qn", "java.util.Class3" ).append( "_library", "lib1" ) ).size() );
+        assertEquals( 0, db.find( "coll", new MapBuilder().append( "_qn", "java.util.Class3" ).append( "_library", "lib0" ) ).size() );
+        assertEquals( 10, db.find( "coll", regexFilter ).size() );
+        assertEquals( Arrays.asList( db.read("coll", "noqn") ), db.find( "coll", new MapBuilder().append( "_qn", null ) ) );
+        
+        // The index is maintained on save.
+        db.save( "coll", new MapBuilder().append( "_id", "id3" ).append( "_qn", "java.util.Class1" ).append( "_library", "lib1" ) );
+        db.save( "coll", new MapBuilder().append( "_id", "id200" ).append( "_qn", "java.util.Class3" ) );
+        
+        assertEquals( 10, db.find( "coll", exactFilter ).size() );
+        assertFalse( Cawls.pluck( db.find( "coll", exactFilter ), "_id" ).contains("id3") );
+        assertEquals( 11, db.find( "coll", regexFilter ).size() );
+        
+        // Hashed indexes don't serve $regex.
+        db.createIndex( "coll", new MapBuilder().append( "_library", "hashed" ) );
+        assertEquals( 50, db.find( "coll", new MapBuilder().append( "_library", "lib0" ) ).size() );
+        
+        // Dropped with the collection.
+        db.drop("coll");
+        assertTrue( db.getIndexes("coll").isEmpty() );
+        assertTrue( db.find( "coll", exactFilter ).isEmpty() );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testFindIndexedPrefixLimit() {
+        DBImpl db = newDB();
+        
+        for (int i = 0; i < 100; ++i) {
+            db.save( "coll", new MapBuilder().append( "_id", "id" + i ).append( "_qn", "java.util.Class" + i ) );
+        }
+        db.createIndex( "coll", new MapBuilder().append( "_qn", 1 ) );
+        
+        // Count the candidate docs read.
+        final AtomicInteger reads = new AtomicInteger();
+        Map<String, Map> docs = new ConcurrentHashMap<String, Map>( db.get("coll") ) {
+            public Map get(Object key) {
+                reads.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        
+        SecondaryIndex index = db.getIndexes("coll").iterator().next();
+        Map regexFilter = new MapBuilder().append( "_qn", new MapBuilder().append( "$regex", "^java.util.Class.*" ) );
+        
+        assertEquals( 5, db.findIndexed( docs, new MapBuilder<String, SecondaryIndex>().append( "_qn", index ), regexFilter, 5 ).size() );
+        assertEquals( 5, reads.get() );
+        
+        // The prefix range ends at the first non-matching value.
+        Iterator<String> ids = index.lookupPrefix( "java.util.Class9" );
+        Set<String> matches = new HashSet<String>();
+        while (ids.hasNext()) {
+            matches.add( ids.next() );
+        }
+        assertEquals( new HashSet<String>( Arrays.asList( "id9", "id90", "id91", "id92", "id93", "id94", "id95", "id96", "id97", "id98", "id99" ) ), matches );
+        
+        // The ids are read as the iterator advances, not copied up front: a doc saved 
+        // (later in the range) after the lookup is still seen.
+        ids = index.lookupPrefix( "java.util.Class" );
+        ids.next();
+        db.save( "coll", new MapBuilder().append( "_id", "idZ" ).append( "_qn", "java.util.ClassZ" ) );
+        matches.clear();
+        while (ids.hasNext()) {
+            matches.add( ids.next() );
+        }
+        assertEquals( 100, matches.size() );
+        assertTrue( matches.contains("idZ") );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testConcurrentSaveIndexed() throws Exception {
+        final DBImpl db = newDB();
+        db.createIndex( "coll", new MapBuilder().append( "_qn", 1 ) );
+        
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; ++t) {
+            final int threadNum = t;
+            threads.add( new Thread() {
+                public void run() {
+                    for (int i = 0; i < 2000; ++i) {
+                        db.save( "coll", new MapBuilder().append( "_id", "id" + (i % 10) ).append( "_qn", "java.util.Class" + threadNum ) );
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        // Each doc is indexed under its final value only.
+        for (int t = 0; t < 8; ++t) {
+            Map filter = new MapBuilder().append( "_qn", "java.util.Class" + t );
+            assertEquals( db.find( "coll", filter ).size(), db.getIndexes("coll").iterator().next().lookup( "java.util.Class" + t ).size() );
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testFindLimit() {
+        DBImpl db = newDB();
+        
+        for (int i = 0; i < 100; ++i) {
+            db.save( "coll", new MapBuilder().append( "_id", "id" + i ).append( "_searchName", "name" + i ) );
+        }
+        
+        Map filter = new MapBuilder().append( "_searchName", new MapBuilder().append( "$regex", "^name1.*" ) );
+        
+        assertEquals( 11, db.find( "coll", filter ).size() );
+        assertEquals( 11, db.find( "coll", filter, 0 ).size() );
+        assertEquals( 5, db.find( "coll", filter, 5 ).size() );
+        assertEquals( 11, db.find( "coll", filter, 25 ).size() );
+        
+        db.createIndex( "coll", new MapBuilder().append( "_searchName", 1 ) );
+        
+        // Indexed prefix lookups come back in order.
+        assertEquals( Arrays.asList( "name1", "name10", "name11" ), 
+                      Cawls.pluck( db.find( "coll", filter, 3 ), "_searchName" ) );
+        assertEquals( 11, db.find( "coll", filter, 25 ).size() );
+        
+        // $options disables the prefix lookup, but the regex is still evaluated.
+        Map caseInsensitiveFilter = new MapBuilder().append( "_searchName", new MapBuilder().append( "$regex", "^NAME1.*" )
+                                                                                           .append( "$options", "i" ) );
+        assertEquals( 11, db.find( "coll", caseInsensitiveFilter ).size() );
+        assertEquals( 2, db.find( "coll", caseInsensitiveFilter, 2 ).size() );
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testRemove() {
+        DBImpl db = newDB();
+        
+        for (int i = 0; i < 10; ++i) {
+            db.save( "coll", new MapBuilder().append( "_id", "/java/lib/" + (i % 2 + 1) + ".0/id" + i )
+                                             .append( "_library", new MapBuilder().append( "_id", "/java/lib/" + (i % 2 + 1) + ".0" ) )
+                                             .append( "_searchName", "name" + i ) );
+        }
+        db.createIndex( "coll", new MapBuilder().append( "_searchName", 1 ) );
+        
+        // By _id $regex.
+        assertEquals( 5, db.remove( "coll", new MapBuilder().append( "_id", new MapBuilder().append( "$regex", "^/java/lib/1\\.0/" ) ) ) );
+        assertEquals( 5, db.get("coll").size() );
+        assertTrue( db.find( "coll", new MapBuilder().append( "_searchName", "name0" ) ).isEmpty() );
+        
+        // By dotted path.
+        assertEquals( 5, db.remove( "coll", new MapBuilder().append( "_library._id", "/java/lib/2.0" ) ) );
+        assertEquals( 0, db.get("coll").size() );
+        
+        // Indexes are updated.
+        assertTrue( db.find( "coll", new MapBuilder().append( "_searchName", new MapBuilder().append( "$regex", "^name" ) ) ).isEmpty() );
+        assertEquals( 0, db.remove( "coll", new MapBuilder() ) );
+    }
+    
+    /**
+     * Same update as AllKnownSubclassesQuery.removeLibraryFromExistingEntries.
+     */
+    @Test
+    public void testUpdate() {
+        DBImpl db = newDB();
+        
+        db.save( "coll", new MapBuilder().append( "_id", "/java/lib/Foo" )
+                                         .append( "_libraryVersions", new ListBuilder().append( "1.0" ).append( "2.0" ) )
+                                         .append( "name", "Foo" ) );
+        db.save( "coll", new MapBuilder().append( "_id", "/java/other/Bar" )
+                                         .append( "_libraryVersions", new ListBuilder().append( "1.0" ) )
+                                         .append( "name", "Bar" ) );
+        db.createIndex( "coll", new MapBuilder().append( "name", 1 ) );
+        
+        Map libraryIds = new MapBuilder().append( "$regex", "^/java/lib/.*" );
+        
+        db.update( "coll", 
+                   new MapBuilder().append( "_id", libraryIds ),
+                   new MapBuilder().append( "$pull", new MapBuilder().append( "_libraryVersions", "1.0" ) ) );
+        
+        assertEquals( Arrays.asList( "2.0" ), db.read( "coll", "/java/lib/Foo" ).get( "_libraryVersions" ) );
+        assertEquals( Arrays.asList( "1.0" ), db.read( "coll", "/java/other/Bar" ).get( "_libraryVersions" ) );
+        
+        // $set / $unset / $addToSet
+        db.update( "coll", 
+                   new MapBuilder().append( "_id", "/java/lib/Foo" ),
+                   new MapBuilder().append( "$set", new MapBuilder().append( "name", "Foo2" ) )
+                                   .append( "$unset", new MapBuilder().append( "missing", "" ) )
+                                   .append( "$addToSet", new MapBuilder().append( "_libraryVersions", 
+                                                                                  new MapBuilder().append( "$each", Arrays.asList( "2.0", "3.0" ) ) ) ) );
+        
+        Map foo = db.read( "coll", "/java/lib/Foo" );
+        assertEquals( "Foo2", foo.get( "name" ) );
+        assertEquals( Arrays.asList( "2.0", "3.0" ), foo.get( "_libraryVersions" ) );
+        
+        // Indexes are updated.
+        assertEquals( 1, db.find( "coll", new MapBuilder().append( "name", "Foo2" ) ).size() );
+        assertTrue( db.find( "coll", new MapBuilder().append( "name", "Foo" ) ).isEmpty() );
+        
+        // $pull by $regex.
+        db.update( "coll", 
+                   new MapBuilder().append( "_id", libraryIds ),
+                   new MapBuilder().append( "$pull", new MapBuilder().append( "_libraryVersions", new MapBuilder().append( "$regex", "^3" ) ) ) );
+        assertEquals( Arrays.asList( "2.0" ), db.read( "coll", "/java/lib/Foo" ).get( "_libraryVersions" ) );
+        
+        // Replacement doc keeps the _id.
+        db.update( "coll", new MapBuilder().append( "_id", "/java/other/Bar" ), new MapBuilder().append( "name", "Baz" ) );
+        assertEquals( new MapBuilder().append( "_id", "/java/other/Bar" ).append( "name", "Baz" ), db.read( "coll", "/java/other/Bar" ) );
+        
+        try {
+            db.update( "coll", new MapBuilder(), new MapBuilder().append( "$inc", new MapBuilder().append( "n", 1 ) ) );
+            fail( "Expected IllegalArgumentException" );
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testParseAnchoredPrefix() {
+        assertEquals( "java", SecondaryIndex.parseAnchoredPrefix("^java.util.*") );
+        assertEquals( "lis", SecondaryIndex.parseAnchoredPrefix("^list?") );
+        assertEquals( "abc", SecondaryIndex.parseAnchoredPrefix("^abc") );
+        assertEquals( "", SecondaryIndex.parseAnchoredPrefix("^.*") );
+        assertNull( SecondaryIndex.parseAnchoredPrefix("java.util") );
+        assertNull( SecondaryIndex.parseAnchoredPrefix("^a|b") );
+    }
+    
     /**
      * 
      */
     @Test
     public void testParseCollectionName() {
         String _id = "/java/java-sdk/1.6/java.lang.String";
-        assertEquals( "/java/java-sdk/1.6", new DBImpl().parseCollectionName(_id));
-        assertEquals( "", new DBImpl().parseCollectionName("java.lang.String"));
+        assertEquals( "/java/java-sdk/1.6", newDB().parseCollectionName(_id));
+        assertEquals( "", newDB().parseCollectionName("java.lang.String"));
     }
     
     /**
@@ -188,7 +541,7 @@ public class DBImplTest {
      */
     @Test(expected=RuntimeException.class)
     public void testValidateSaveEmptyCollection() {
-        new DBImpl().validateSave("", new MapBuilder().append("_id", "non-null-id"));
+        newDB().validateSave("", new MapBuilder().append("_id", "non-null-id"));
     }
 
     /**
@@ -196,7 +549,7 @@ public class DBImplTest {
      */
     @Test(expected=RuntimeException.class)
     public void testValidateSaveNullObject() {
-        new DBImpl().validateSave("non-null-collection", null);
+        newDB().validateSave("non-null-collection", null);
     }
     
     /**
@@ -204,6 +557,6 @@ public class DBImplTest {
      */
     @Test(expected=RuntimeException.class)
     public void testValidateSaveMissingId() {
-        new DBImpl().validateSave("non-null-collection", new MapBuilder().append("somekey", "somevalue"));
+        newDB().validateSave("non-null-collection", new MapBuilder().append("somekey", "somevalue"));
     }
 }
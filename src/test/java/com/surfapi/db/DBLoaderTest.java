@@ -8,6 +8,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +71,62 @@ public class DBLoaderTest {
         DBLoader.parseLibraryId("too_many_underscores.json");
     }
     
+    /**
+     * Streaming (in small batches) loads the same docs as parsing the whole file.
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        
+        File jsonFile = new File("src/test/resources/com.surfapi_1.0.json");
+        String libraryId = "/java/com.surfapi/1.0";
+        
+        DBImpl wholeDb = new DBImpl();
+        new DBLoader().inject(wholeDb).setBatchSize(0).loadFile( jsonFile );
+        
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        DBImpl streamedDb = new DBImpl() {
+            @Override
+            public void save(String collection, Collection<Map> docs) {
+                batchSizes.add( docs.size() );
+                super.save(collection, docs);
+            }
+        };
+        new DBLoader().inject(streamedDb).setBatchSize(7).loadFile( jsonFile );
+        
+        assertFalse( wholeDb.get(libraryId).isEmpty() );
+        assertEquals( wholeDb.get(libraryId), streamedDb.get(libraryId) );
+        assertEquals( wholeDb.get(DB.LibraryCollectionName), streamedDb.get(DB.LibraryCollectionName) );
+        
+        // Saved in batches of 7 (the last one may be partial).
+        assertTrue( batchSizes.size() > 1 );
+        assertEquals( Integer.valueOf(7), batchSizes.get(0) );
+        assertTrue( Cawls.getLast(batchSizes) <= 7 );
+        
+        Map doc = streamedDb.read(libraryId, "/java/com.surfapi/1.0/com.surfapi.test.DemoJavadoc");
+        assertEquals( "class", doc.get("metaType") );
+        assertFalse( ((List<Map>) doc.get("methods")).isEmpty() );
+    }
+    
+    /**
+     * Loading a dir in parallel loads the same docs as loading it sequentially.
+     */
+    @Test
+    public void testLoadDirParallel() throws Exception {
+        
+        DBImpl sequentialDb = new DBImpl();
+        new DBLoader().inject(sequentialDb).setParallelism(1).loadDir( new File("src/test/resources") );
+        
+        DBImpl parallelDb = new DBImpl();
+        new DBLoader().inject(parallelDb).setParallelism(4).loadDir( new File("src/test/resources") );
+        
+        assertTrue( sequentialDb.getLibraryIds("java").size() > 1 );
+        assertEquals( sequentialDb.keySet(), parallelDb.keySet() );
+        
+        for (String collection : sequentialDb.keySet()) {
+            assertEquals( collection, sequentialDb.get(collection), parallelDb.get(collection) );
+        }
+    }
+    
     /**
      * This test method can be used to load an arbitrary *.json file into an arbitrary db.
      */
@@ -0,0 +1,167 @@
+package com.surfapi.db;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class DBServiceTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    private File origDataDir;
+
+    private File origSnapshotFile;
+
+    @Before
+    public void before() {
+        origDataDir = DBService.dataDir;
+        origSnapshotFile = DBService.snapshotFile;
+
+        DBService.reset();
+        DBService.dataDir = new File("src/test/resources/com.surfapi_1.0.json");
+        DBService.snapshotFile = null;
+    }
+
+    @After
+    public void after() {
+        DBService.reset();
+        DBService.dataDir = origDataDir;
+        DBService.snapshotFile = origSnapshotFile;
+    }
+
+    /**
+     * Many threads calling getDb at once should all get the same (single) DB instance.
+     */
+    @Test
+    public void testGetDbConcurrent() throws Exception {
+
+        int threadCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        try {
+            List<Future<DB>> futures = new ArrayList<Future<DB>>();
+
+            for (int i = 0; i < threadCount; ++i) {
+                futures.add( executor.submit( new Callable<DB>() {
+                    public DB call() throws Exception {
+                        startLatch.await();
+                        return DBService.getDb();
+                    }
+                }));
+            }
+
+            startLatch.countDown();
+
+            DB db = futures.get(0).get();
+            assertNotNull(db);
+
+            for (Future<DB> future : futures) {
+                assertSame( db, future.get() );
+            }
+
+            assertTrue( DBService.isReady() );
+            assertFalse( db.find( "/java/com.surfapi/1.0", new MapBuilder() ).isEmpty() );
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testStartLoading() throws Exception {
+
+        assertFalse( DBService.isReady() );
+
+        DBService.startLoading();
+        DBService.startLoading();   // no-op
+
+        DB db = DBService.getDb();
+        assertTrue( DBService.isReady() );
+        assertSame( db, DBService.getDb() );
+    }
+
+    /**
+     * A load that finished successfully (e.g. between startLoading's isReady check and its
+     * check of the load task) isn't mistaken for a failed one and rerun.
+     */
+    @Test
+    public void testStartLoadingAfterLoadSucceeded() throws Exception {
+
+        DB db = DBService.getDb();
+
+        // Back to the state in the window: the load task is done, but the DB isn't set yet.
+        DBService.setDb(null);
+        assertFalse( DBService.isReady() );
+
+        DBService.startLoading();
+
+        // Still the same load.
+        assertSame( db, DBService.getDb() );
+    }
+
+    /**
+     * A failed load is retried by the next getDb.
+     */
+    @Test
+    public void testLoadFailure() throws Exception {
+
+        DBService.dataDir = new File("src/test/resources/does-not-exist.json");
+
+        try {
+            DBService.getDb();
+            fail("Expected RuntimeException");
+        } catch (RuntimeException e) {
+            // expected.
+        }
+
+        assertFalse( DBService.isReady() );
+
+        DBService.dataDir = new File("src/test/resources/com.surfapi_1.0.json");
+
+        assertNotNull( DBService.getDb() );
+        assertTrue( DBService.isReady() );
+    }
+
+    /**
+     * setDb wins over a load.
+     */
+    @Test
+    public void testSetDb() {
+        DB db = new DBImpl();
+        DBService.setDb(db);
+
+        assertTrue( DBService.isReady() );
+        assertSame( db, DBService.getDb() );
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.surfapi.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class DBSnapshotTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     *
+     */
+    @Test
+    public void testWriteRead() throws Exception {
+
+        DBImpl db = new DBImpl();
+        new DBLoader().inject( db ).loadDir( new File("src/test/resources") );
+
+        File snapshotFile = tempFolder.newFile("db.snapshot");
+        DBSnapshot.write(db, snapshotFile);
+
+        DBImpl restoredDb = DBSnapshot.read(snapshotFile);
+
+        assertEquals( db.keySet(), restoredDb.keySet() );
+        for (String collection : db.keySet()) {
+            assertEquals( collection, db.get(collection), restoredDb.get(collection) );
+            assertEquals( collection, indexNames(db, collection), indexNames(restoredDb, collection) );
+        }
+
+        String libraryId = "/java/com.surfapi/1.0";
+        Map doc = restoredDb.read(libraryId, libraryId + "/com.surfapi.test.DemoJavadoc");
+
+        // Decoded as the same types DBLoader produces.
+        assertTrue( doc.get("methods") instanceof List );
+        assertTrue( ((List) doc.get("methods")).get(0) instanceof JSONObject );
+
+        // Strings are shared across docs.
+        Map doc2 = restoredDb.read(libraryId, libraryId + "/com.surfapi.test.DemoJavadocSubClass");
+        assertSame( ((Map) doc.get("_library")).get("version"), ((Map) doc2.get("_library")).get("version") );
+
+        // Restored docs can be updated.
+        doc.put("foo", "bar");
+        assertEquals( "bar", restoredDb.read(libraryId, libraryId + "/com.surfapi.test.DemoJavadoc").get("foo") );
+        doc.remove("foo");
+        assertNull( doc.get("foo") );
+    }
+
+    /**
+     * @return the toStrings of the given collection's indexes, sorted.
+     */
+    private Set<String> indexNames(DBImpl db, String collection) {
+        Set<String> retMe = new TreeSet<String>();
+        for (SecondaryIndex index : db.getIndexes(collection)) {
+            retMe.add( index.toString() );
+        }
+        return retMe;
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testValueTypes() throws Exception {
+
+        DBImpl db = new DBImpl();
+        db.save( "test.collection", new MapBuilder().append("_id", "1")
+                                                    .append("long", -123456789012L)
+                                                    .append("int", -7)
+                                                    .append("double", 3.25)
+                                                    .append("true", true)
+                                                    .append("false", false)
+                                                    .append("null", null)
+                                                    .append("unicode", "café ☃")
+                                                    .append("list", Arrays.asList( 1L, "a", Arrays.asList() ))
+                                                    .append("map", new MapBuilder().append("x", new MapBuilder()))
+                                                    .append("bytes", new byte[] { 1, 2, -1 }) );
+
+        File snapshotFile = tempFolder.newFile("db.snapshot");
+        DBSnapshot.write(db, snapshotFile);
+
+        Map doc = DBSnapshot.read(snapshotFile).read("test.collection", "1");
+
+        assertEquals( -123456789012L, doc.get("long") );
+        assertEquals( -7, doc.get("int") );
+        assertEquals( 3.25, doc.get("double") );
+        assertEquals( true, doc.get("true") );
+        assertEquals( false, doc.get("false") );
+        assertTrue( doc.containsKey("null") );
+        assertNull( doc.get("null") );
+        assertEquals( "café ☃", doc.get("unicode") );
+        assertEquals( Arrays.asList( 1L, "a", Arrays.asList() ), doc.get("list") );
+        assertEquals( new MapBuilder().append("x", new MapBuilder()), doc.get("map") );
+        assertArrayEquals( new byte[] { 1, 2, -1 }, (byte[]) doc.get("bytes") );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testIsSnapshotCurrent() throws Exception {
+
+        File savedDataDir = DBService.dataDir;
+        File savedSnapshotFile = DBService.snapshotFile;
+
+        try {
+            File dataDir = tempFolder.newFolder("data");
+            File jsonFile = new File(dataDir, "lib_1.0.json");
+            jsonFile.createNewFile();
+            jsonFile.setLastModified( System.currentTimeMillis() - 10000 );
+
+            DBService.dataDir = dataDir;
+            DBService.snapshotFile = new File(tempFolder.getRoot(), "db.snapshot");
+
+            assertFalse( DBService.isSnapshotCurrent() );
+
+            DBService.snapshotFile.createNewFile();
+            assertTrue( DBService.isSnapshotCurrent() );
+
+            jsonFile.setLastModified( System.currentTimeMillis() + 10000 );
+            assertFalse( DBService.isSnapshotCurrent() );
+
+        } finally {
+            DBService.dataDir = savedDataDir;
+            DBService.snapshotFile = savedSnapshotFile;
+        }
+    }
+
+    /**
+     * A corrupt snapshot falls back to loading the data files, and a failure to write 
+     * the snapshot doesn't fail the load.
+     */
+    @Test
+    public void testLoadFallback() throws Exception {
+
+        File savedDataDir = DBService.dataDir;
+        File savedSnapshotFile = DBService.snapshotFile;
+
+        try {
+            File dataDir = tempFolder.newFolder("data");
+            File jsonFile = new File(dataDir, "com.surfapi_1.0.json");
+            FileUtils.copyFile( new File("src/test/resources/com.surfapi_1.0.json"), jsonFile );
+            jsonFile.setLastModified( System.currentTimeMillis() - 10000 );
+
+            DBService.dataDir = dataDir;
+            DBService.snapshotFile = new File(tempFolder.getRoot(), "db.snapshot");
+
+            // Write a good snapshot, then truncate it.
+            DBImpl db = (DBImpl) DBService.load();
+            assertTrue( DBService.snapshotFile.exists() );
+            assertFalse( new File(tempFolder.getRoot(), "db.snapshot.tmp").exists() );
+
+            byte[] bytes = FileUtils.readFileToByteArray( DBService.snapshotFile );
+            FileUtils.writeByteArrayToFile( DBService.snapshotFile, Arrays.copyOf( bytes, bytes.length / 2 ) );
+            assertTrue( DBService.isSnapshotCurrent() );
+
+            DBImpl reloaded = (DBImpl) DBService.load();
+            assertEquals( db.keySet(), reloaded.keySet() );
+
+            // The snapshot was rewritten.
+            assertEquals( bytes.length, DBService.snapshotFile.length() );
+            assertEquals( db.keySet(), DBSnapshot.read( DBService.snapshotFile ).keySet() );
+
+            // The snapshot can't be written.
+            DBService.snapshotFile = new File(tempFolder.getRoot(), "does-not-exist/db.snapshot");
+            assertEquals( db.keySet(), ((DBImpl) DBService.load()).keySet() );
+            assertFalse( DBService.snapshotFile.exists() );
+
+        } finally {
+            DBService.dataDir = savedDataDir;
+            DBService.snapshotFile = savedSnapshotFile;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.surfapi.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.post.CustomIndex;
+import com.surfapi.db.post.SetStubIds;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class ForAllProjectionTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    /**
+     * A ProjectedForAll that records the docs it's called with.
+     */
+    private static class RecordingForAll implements DB.ProjectedForAll {
+
+        private final Collection<String> fields;
+
+        private final List<Map> docs = new ArrayList<Map>();
+
+        public RecordingForAll(String... fields) {
+            this.fields = (fields != null) ? Arrays.asList(fields) : null;
+        }
+
+        public Collection<String> getFields() {
+            return fields;
+        }
+        public void before(DB db, String collection) { }
+
+        public void call(DB db, String collection, Map obj) {
+            docs.add(obj);
+        }
+        public void after(DB db, String collection) { }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testUnion() {
+
+        Map<String, Integer> projection = ForAllProjection.union( Arrays.<DB.ForAll>asList( new RecordingForAll("name", "metaType"),
+                                                                                             new RecordingForAll("name", "_library") ) );
+
+        assertEquals( Arrays.asList("_id", "name", "metaType", "_library"), new ArrayList<String>(projection.keySet()) );
+        assertEquals( Integer.valueOf(1), projection.get("_library") );
+
+        // Any callback that needs the whole doc turns off projection.
+        assertNull( ForAllProjection.union( Arrays.<DB.ForAll>asList( new RecordingForAll("name"),
+                                                                      new RecordingForAll((String[]) null) ) ) );
+        assertNull( ForAllProjection.union( Arrays.<DB.ForAll>asList( new RecordingForAll("name"),
+                                                                      new SetStubIds() ) ) );
+
+        // TimedForAll passes thru its delegate's fields.
+        assertEquals( projection.keySet(),
+                      ForAllProjection.union( Arrays.<DB.ForAll>asList( new TimedForAll("1", new RecordingForAll("name", "metaType")),
+                                                                        new TimedForAll("2", new RecordingForAll("_library")) ) ).keySet() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testProject() {
+        Map doc = new MapBuilder().append("_id", "1").append("name", "a").append("commentText", "blah");
+
+        Map projection = new MapBuilder().append("_id", 1).append("name", 1).append("metaType", 1);
+
+        assertEquals( new MapBuilder().append("_id", "1").append("name", "a"), ForAllProjection.project(doc, projection) );
+        assertSame( doc, ForAllProjection.project(doc, null) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDBImplForAll() {
+
+        DB db = new DBImpl();
+        new DBLoader().inject( db ).loadUnchecked( new File("src/test/resources/com.surfapi_1.0.json") );
+
+        String libraryId = "/java/com.surfapi/1.0";
+
+        RecordingForAll projected = new RecordingForAll("name");
+        RecordingForAll projected2 = new RecordingForAll("metaType");
+        db.forAll( libraryId, Arrays.<DB.ForAll>asList( projected, projected2 ) );
+
+        assertTrue( projected.docs.size() > 0 );
+        assertEquals( projected.docs, projected2.docs );
+
+        for (Map doc : projected.docs) {
+            assertTrue( doc.keySet().toString(), Arrays.asList("_id", "name", "metaType").containsAll( doc.keySet() ) );
+        }
+
+        // With an unprojected callback in the pass, all callbacks get whole docs.
+        RecordingForAll unprojected = new RecordingForAll((String[]) null);
+        projected = new RecordingForAll("name");
+        db.forAll( libraryId, Arrays.<DB.ForAll>asList( projected, unprojected ) );
+
+        assertEquals( db.find( libraryId, new MapBuilder() ).size(), projected.docs.size() );
+        assertTrue( projected.docs.get(0).containsKey("_library") );
+    }
+
+    /**
+     * Measure the bytes saved by the index builders' projections on the test library.
+     */
+    @Test
+    public void testStats() {
+
+        DB db = new DBImpl();
+        new DBLoader().inject( db ).loadUnchecked( new File("src/test/resources/com.surfapi_1.0.json") );
+
+        List<ForAllProjection.Stats> stats = new ArrayList<ForAllProjection.Stats>();
+
+        for (CustomIndex customIndex : CustomIndex.getAllIndexes()) {
+            stats.add( new ForAllProjection.Stats( customIndex.getClass().getSimpleName(),
+                                                   ForAllProjection.union( Arrays.asList( customIndex.inject(db).getBuilder() ) ) ) );
+        }
+
+        db.forAll( "/java/com.surfapi/1.0", new ArrayList<DB.ForAll>(stats) );
+
+        for (ForAllProjection.Stats stat : stats) {
+            System.out.println("testStats: " + stat);
+
+            assertTrue( stat.getDocCount() > 0 );
+            assertTrue( stat.getFullBytes() > 0 );
+
+            if (stat.getName().equals("CompressedDocIndex")) {
+                // Needs the whole doc.
+                assertEquals( stat.getFullBytes(), stat.getProjectedBytes() );
+            } else {
+                assertTrue( stat.toString(), stat.getPercentSaved() > 50 );
+            }
+        }
+    }
+
+}
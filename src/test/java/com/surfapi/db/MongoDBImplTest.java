@@ -5,9 +5,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -54,6 +56,90 @@ public class MongoDBImplTest {
     @Rule
     public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
     
+    /**
+     * 
+     */
+    @Test
+    public void testGetIntProperty() throws Exception {
+        
+        String name = MongoDBImpl.ConnectionsPerHostPropertyName;
+        String prev = System.getProperty(name);
+        
+        try {
+            System.setProperty(name, " 42 ");
+            assertEquals( 42, MongoDBImpl.getIntProperty(name) );
+            
+            System.setProperty(name, "lots");
+            try {
+                MongoDBImpl.getIntProperty(name);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertTrue( e.getMessage().contains(name) );
+            }
+            
+            System.clearProperty(name);
+            assertEquals( 7, MongoDBImpl.getIntProperty(name, 7) );
+        } finally {
+            if (prev == null) {
+                System.clearProperty(name);
+            } else {
+                System.setProperty(name, prev);
+            }
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testParseWriteConcern() throws Exception {
+        
+        assertEquals( WriteConcern.ACKNOWLEDGED, MongoDBImpl.parseWriteConcern(null) );
+        assertEquals( WriteConcern.UNACKNOWLEDGED, MongoDBImpl.parseWriteConcern("UNACKNOWLEDGED") );
+        
+        try {
+            MongoDBImpl.parseWriteConcern("SOMETIMES");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue( e.getMessage().contains("SOMETIMES") );
+        }
+    }
+    
+    /**
+     * 
+     */
+    @Test
+    public void testSaveBulk() throws Exception {
+        
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
+        MongoDBImpl db = new MongoDBImpl("test1").setSaveBatchSize(2);
+        
+        List<Map> docs = Arrays.asList( (Map) new MapBuilder().append("_id", "1").append("a", "1").append("b", "1"),
+                                        new MapBuilder().append("_id", "2").append("a", "2"),
+                                        new MapBuilder().append("_id", "3").append("a", "3"),
+                                        new MapBuilder().append("_id", "4").append("a", "4"),
+                                        new MapBuilder().append("id", "5").append("a", "5") );
+        
+        // 5 docs in batches of 2.
+        assertEquals( 3, db.saveBulk( "test.collection", docs ).size() );
+        
+        assertEquals( "1", db.read("test.collection", "1").get("b") );
+        assertEquals( "4", db.read("test.collection", "4").get("a") );
+        assertEquals( 5, db.find("test.collection", new MapBuilder()).size() );
+        assertNotNull( db.find("test.collection", new MapBuilder().append("id", "5")).get(0).get("_id") );
+        
+        // The given docs aren't modified.
+        assertEquals( "1", docs.get(0).get("_id") );
+        assertNull( docs.get(4).get("_id") );
+        
+        // Existing docs are replaced (not merged).
+        db.save( "test.collection", Arrays.asList( (Map) new MapBuilder().append("_id", "1").append("a", "x") ) );
+        
+        assertEquals( "x", db.read("test.collection", "1").get("a") );
+        assertNull( db.read("test.collection", "1").get("b") );
+    }
+    
     /**
      * 
      */
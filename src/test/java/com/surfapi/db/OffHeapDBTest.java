@@ -0,0 +1,249 @@
+package com.surfapi.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.surfapi.app.JavadocMapUtils;
+import com.surfapi.coll.Cawls;
+import com.surfapi.coll.ListBuilder;
+import com.surfapi.coll.MapBuilder;
+
+/**
+ * Runs the DBImplTest tests against an OffHeapDB, plus some OffHeapDB-specific tests.
+ */
+public class OffHeapDBTest extends DBImplTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * @return a new OffHeapDB in a new temp dir.
+     */
+    @Override
+    protected DBImpl newDB() {
+        try {
+            return new OffHeapDB( tempFolder.newFolder() );
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testReopen() throws Exception {
+
+        File dir = tempFolder.newFolder();
+
+        OffHeapDB db = new OffHeapDB(dir);
+        db.save("/java/test/1.0", new MapBuilder().append("_id", "1").append("name", "a").append("tags", new ListBuilder().append("x").append(3L)));
+        db.save("/java/test/1.0", new MapBuilder().append("_id", "2").append("name", "b"));
+        db.save("/java/test/1.0", new MapBuilder().append("_id", "3").append("name", "c"));
+        db.save("/java/test/1.0", new MapBuilder().append("_id", "2").append("name", "b2"));
+        db.get("/java/test/1.0").remove("3");
+        db.save("other", new MapBuilder().append("_id", "1").append("name", "z"));
+        db.createIndex("/java/test/1.0", new MapBuilder().append("name", 1));
+
+        assertEquals( 2, db.get("/java/test/1.0").size() );
+        assertEquals( "b2", db.read("/java/test/1.0", "2").get("name") );
+        assertNull( db.read("/java/test/1.0", "3") );
+
+        db.close();
+
+        OffHeapDB reopened = new OffHeapDB(dir);
+
+        assertEquals( db.keySet(), reopened.keySet() );
+        assertEquals( db.get("/java/test/1.0"), reopened.get("/java/test/1.0") );
+        assertEquals( 2, reopened.get("/java/test/1.0").size() );
+        assertEquals( "b2", reopened.read("/java/test/1.0", "2").get("name") );
+        assertEquals( new ListBuilder().append("x").append(3L), reopened.read("/java/test/1.0", "1").get("tags") );
+        assertNull( reopened.read("/java/test/1.0", "3") );
+        assertEquals( "z", reopened.read("other", "1").get("name") );
+
+        // Index definitions are rebuilt.
+        assertEquals( 1, reopened.getIndexes("/java/test/1.0").size() );
+        assertEquals( 1, reopened.find("/java/test/1.0", new MapBuilder().append("name", "b2")).size() );
+
+        // Dropped collections don't come back.
+        reopened.drop("other");
+        reopened.close();
+        assertEquals( 1, new OffHeapDB(dir).size() );
+    }
+
+    /**
+     * A record that was only partially written (e.g. by a crash) is ignored on reopen, 
+     * along with everything after it.
+     */
+    @Test
+    public void testCorruptRecord() throws Exception {
+
+        File dir = tempFolder.newFolder();
+
+        OffHeapDB db = new OffHeapDB(dir);
+        db.save("test", new MapBuilder().append("_id", "1").append("name", "a"));
+        db.save("test", new MapBuilder().append("_id", "2").append("name", "b"));
+        db.save("test", new MapBuilder().append("_id", "3").append("name", "c"));
+        db.close();
+
+        // Flip the last byte of the last record.
+        File segmentFile = new File(dir, "test" + OffHeapDB.SegmentFileSuffix);
+        byte[] bytes = FileUtils.readFileToByteArray(segmentFile);
+        int last = bytes.length - 1;
+        while (bytes[last] == 0) {
+            --last;
+        }
+        bytes[last] ^= 0x55;
+        FileUtils.writeByteArrayToFile(segmentFile, bytes);
+
+        OffHeapDB reopened = new OffHeapDB(dir);
+        assertEquals( 2, reopened.get("test").size() );
+        assertEquals( "b", reopened.read("test", "2").get("name") );
+        assertNull( reopened.read("test", "3") );
+
+        // The next record overwrites the bad one.
+        reopened.save("test", new MapBuilder().append("_id", "4").append("name", "d"));
+        reopened.close();
+
+        reopened = new OffHeapDB(dir);
+        assertEquals( 3, reopened.get("test").size() );
+        assertEquals( "d", reopened.read("test", "4").get("name") );
+        assertNull( reopened.read("test", "3") );
+    }
+
+    /**
+     * Only one OffHeapDB may have a directory open at a time.
+     */
+    @Test
+    public void testLock() throws Exception {
+
+        File dir = tempFolder.newFolder();
+
+        OffHeapDB db = new OffHeapDB(dir);
+        db.save("test", new MapBuilder().append("_id", "1").append("name", "a"));
+
+        try {
+            new OffHeapDB(dir);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue( e.getMessage(), e.getMessage().contains("already in use") );
+        }
+
+        db.close();
+
+        OffHeapDB reopened = new OffHeapDB(dir);
+        assertEquals( "a", reopened.read("test", "1").get("name") );
+        reopened.close();
+    }
+
+    /**
+     * Docs read from the DB are copies.
+     */
+    @Test
+    public void testReadCopy() throws Exception {
+
+        DBImpl db = newDB();
+        db.save("test", new MapBuilder().append("_id", "1").append("name", "a"));
+
+        db.read("test", "1").put("name", "b");
+        assertEquals( "a", db.read("test", "1").get("name") );
+    }
+
+    /**
+     * Save enough docs to grow the segment file and rehash the hash table (several times).
+     */
+    @Test
+    public void testGrow() throws Exception {
+
+        File dir = tempFolder.newFolder();
+        OffHeapDB db = new OffHeapDB(dir);
+
+        String filler = new String( new char[500] ).replace('\0', 'x');
+        int count = 10000;
+
+        for (int i = 0; i < count; ++i) {
+            db.save("test", new MapBuilder().append("_id", "id-" + i).append("n", (long) i).append("filler", filler));
+        }
+        for (int i = 0; i < count; i += 2) {
+            db.get("test").remove("id-" + i);
+        }
+
+        assertTrue( (Long) db.getStats().get("bytes") > 4 * 1024 * 1024 );
+        assertEquals( count / 2, db.get("test").size() );
+        assertEquals( count / 2, db.find("test", new MapBuilder()).size() );
+
+        for (int i = 0; i < count; ++i) {
+            Map doc = db.read("test", "id-" + i);
+            if (i % 2 == 0) {
+                assertNull( doc );
+            } else {
+                assertEquals( (long) i, doc.get("n") );
+            }
+        }
+
+        db.close();
+        assertEquals( count / 2, new OffHeapDB(dir).get("test").size() );
+    }
+
+    /**
+     * Same as MongoDBImplTest.testDBLoader.
+     */
+    @Test
+    public void testDBLoader() throws Exception {
+
+        File testJsonFile = new File("src/test/resources/DBTest.test_1.0.3.json");
+        assertTrue(testJsonFile.exists());
+
+        String libraryId = "/java/DBTest.test/1.0.3";
+        assertEquals(libraryId, DBLoader.parseLibraryId( testJsonFile.getName() )) ;
+
+        DB db = newDB();
+        new DBLoader().inject(db ).loadUnchecked( new File("src/test/resources") );
+
+        String key = DBLoader.parseLibraryId( testJsonFile.getName() ) + "/com.surfapi.test.DemoJavadoc" ;
+
+        Map obj = db.read( libraryId, key );
+
+        assertNotNull(obj);
+        assertEquals( "class", JavadocMapUtils.getMetaType(obj) );
+        assertEquals( "com.surfapi.test.DemoJavadoc", JavadocMapUtils.getQualifiedName(obj));
+
+        obj = db.read( libraryId, key + ".parse(java.net.URL,java.util.List)");
+
+        assertNotNull(obj);
+        assertEquals( "method", JavadocMapUtils.getMetaType(obj) );
+        assertEquals( "com.surfapi.test.DemoJavadoc.parse", JavadocMapUtils.getQualifiedName(obj));
+
+        // Verify that the library overview/package summary was built and added:
+        obj = db.read(DB.LibraryCollectionName, libraryId);
+        assertNotNull(obj);
+        List<Map> pkgs = (List<Map>) obj.get("packages");
+        assertNotNull( pkgs );
+        assertEquals( "com.surfapi.test", pkgs.get(0).get("name") );
+        assertEquals( libraryId + "/com.surfapi.test", pkgs.get(0).get("_id") );
+
+        // Verify that the library was added to the libraries collection
+        List<Map> javaLibs = db.getLibraryList("java");
+        Map libObj = Cawls.findFirst(javaLibs, new MapBuilder<String, String>().append("_id", libraryId)) ;
+        assertNotNull(libObj);
+
+        assertEquals(libraryId, libObj.get("_id"));
+        assertEquals("java", libObj.get("lang"));
+        assertEquals("DBTest.test", libObj.get("name"));
+        assertEquals("1.0.3", libObj.get("version"));
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.surfapi.db.post;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.app.JavadocMapUtils;
+import com.surfapi.coll.Cawls;
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.DBImpl;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ * AutoCompleteIndex tests that run against a DBImpl (i.e. don't need mongo).
+ */
+public class AutoCompleteIndexDBImplTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+    
+    /**
+     * An AutoCompleteIndex that counts trie loads.
+     */
+    private static class CountingAutoCompleteIndex extends AutoCompleteIndex {
+        
+        final AtomicInteger loads;
+        
+        CountingAutoCompleteIndex(AtomicInteger loads) {
+            this.loads = loads;
+        }
+        
+        @Override
+        protected LoadedTrie loadTrie(String collectionName) {
+            loads.incrementAndGet();
+            return super.loadTrie(collectionName);
+        }
+    }
+    
+    /**
+     * Queries against a missing (empty) index are served from a cached, empty trie, 
+     * rather than reloading the index every time.
+     */
+    @Test
+    public void testEmptyIndexCached() throws Exception {
+        
+        DB db = new DBImpl();
+        AtomicInteger loads = new AtomicInteger();
+        
+        for (int i = 0; i < 3; ++i) {
+            // The REST layer creates a new AutoCompleteIndex for every request.
+            assertTrue( new CountingAutoCompleteIndex(loads).inject(db).query("/java/missing/1.0", "List", 10).isEmpty() );
+        }
+        assertEquals( 1, loads.get() );
+        
+        // Building the index invalidates the cached (empty) trie.
+        db.save( AutoCompleteIndex.getCollectionName("/java/missing/1.0"), 
+                 new MapBuilder().append( "_id", "/list/java/missing/java.util.List" )
+                                 .append( "_searchName", "list" )
+                                 .append( "name", "List" ) );
+        AutoCompleteIndex.invalidateTrie( AutoCompleteIndex.getCollectionName("/java/missing/1.0") );
+        
+        assertEquals( 1, new CountingAutoCompleteIndex(loads).inject(db).query("/java/missing/1.0", "List", 10).size() );
+        assertEquals( 2, loads.get() );
+    }
+    
+    /**
+     * An invalidation that happens while the trie is loading isn't lost: the next query 
+     * reloads the trie.
+     */
+    @Test
+    public void testInvalidateDuringLoad() throws Exception {
+        
+        final String collectionName = AutoCompleteIndex.getCollectionName("/java/reload/1.0");
+        final AtomicBoolean invalidate = new AtomicBoolean(true);
+        
+        // Modify the index (once) while the trie is loading.
+        final DB db = new DBImpl() {
+            @Override
+            public void forAll(String collection, ForAll callback) {
+                super.forAll(collection, callback);
+                if (invalidate.getAndSet(false)) {
+                    save( collectionName, new MapBuilder().append( "_id", "/list/java/reload/java.util.List" )
+                                                          .append( "_searchName", "list" )
+                                                          .append( "name", "List" ) );
+                    AutoCompleteIndex.invalidateTrie( collectionName );
+                }
+            }
+        };
+        AtomicInteger loads = new AtomicInteger();
+        
+        assertTrue( new CountingAutoCompleteIndex(loads).inject(db).query("/java/reload/1.0", "List", 10).isEmpty() );
+        assertEquals( 1, loads.get() );
+        
+        assertEquals( 1, new CountingAutoCompleteIndex(loads).inject(db).query("/java/reload/1.0", "List", 10).size() );
+        assertEquals( 2, loads.get() );
+        
+        // No more invalidations: the reloaded trie sticks.
+        assertEquals( 1, new CountingAutoCompleteIndex(loads).inject(db).query("/java/reload/1.0", "List", 10).size() );
+        assertEquals( 2, loads.get() );
+    }
+    
+    /**
+     * Add a library, and the given classes/packages to it, to the given db.
+     */
+    private static void addLibrary(DB db, String libraryId, Map... docs) {
+        Map<String, String> library = JavadocMapUtils.mapLibraryId(libraryId);
+        
+        db.save( DB.LibraryCollectionName, new MapBuilder().append( "_id", libraryId )
+                                                           .append( "lang", library.get("lang") )
+                                                           .append( "name", library.get("name") )
+                                                           .append( "version", library.get("version") )
+                                                           .append( "metaType", "library" ) );
+        for (Map doc : docs) {
+            doc.put( "_id", libraryId + "/" + doc.get("qualifiedName") );
+            doc.put( JavadocMapUtils.LibraryFieldName, new MapBuilder().append( "_id", libraryId )
+                                                                       .append( "lang", library.get("lang") )
+                                                                       .append( "name", library.get("name") )
+                                                                       .append( "version", library.get("version") ) );
+            db.save( libraryId, doc );
+        }
+    }
+    
+    private static Map newDoc(String metaType, String name, String qualifiedName) {
+        return new MapBuilder().append( "metaType", metaType )
+                               .append( "name", name )
+                               .append( "qualifiedName", qualifiedName );
+    }
+    
+    /**
+     * Verify the ranking of real index entries: JDK classes first, then classes in the latest 
+     * version of a library, then classes in older versions, then packages.
+     */
+    @Test
+    public void testRanking() throws Exception {
+        
+        DB db = new DBImpl();
+        
+        addLibrary( db, "/java/java-sdk/1.7", newDoc( "interface", "List", "java.util.List" ) );
+        addLibrary( db, "/java/com.surfapi/1.0", newDoc( "class", "ListBuilder", "com.surfapi.coll.ListBuilder" ),
+                                                 newDoc( "package", "com.surfapi.listy", "com.surfapi.listy" ) );
+        addLibrary( db, "/java/com.surfapi/0.9", newDoc( "class", "ListOld", "com.surfapi.coll.ListOld" ) );
+        
+        new AutoCompleteIndex().inject(db).buildIndexForLang("java");
+        
+        List<Map> results = new AutoCompleteIndex().inject(db).query("java", "lis", 10);
+        
+        assertEquals( Arrays.asList( "java.util.List", "com.surfapi.coll.ListBuilder", "com.surfapi.coll.ListOld", "com.surfapi.listy" ),
+                      Cawls.pluck( results, "qualifiedName" ) );
+        
+        // Exact-name matches come first, regardless of score.
+        results = new AutoCompleteIndex().inject(db).query("java", "listbuilder", 10);
+        assertEquals( "com.surfapi.coll.ListBuilder", results.get(0).get("qualifiedName") );
+        
+        // Also for the non-trie (db query) path.
+        System.setProperty( AutoCompleteIndex.InMemoryPropertyName, "false" );
+        try {
+            results = new AutoCompleteIndex().inject(db).query("java", "lis", 10);
+            assertEquals( 4, results.size() );
+        } finally {
+            System.clearProperty( AutoCompleteIndex.InMemoryPropertyName );
+        }
+    }
+
+}
@@ -168,6 +168,27 @@ public class AutoCompleteIndexTest {
         
     }
  
+    /**
+     * 
+     */
+    @Test
+    public void testCamelAndFuzzyModes() throws Exception {
+        
+        DB db = new MongoDBImpl(MongoDbName);
+        
+        List<Map> docs = new AutoCompleteIndex().inject(db).query( "java", "DJS", 25, AutoCompleteIndex.CamelMode );
+        assertFalse( docs.isEmpty() );
+        for (Map doc : docs) {
+            assertTrue( ((String)doc.get("name")).startsWith("DemoJavadocSub") );
+        }
+        
+        docs = new AutoCompleteIndex().inject(db).query( "java", "DemoIntrefcae", 25, AutoCompleteIndex.FuzzyMode );
+        assertNotNull( Cawls.findFirst( docs, new MapBuilder().append( "name", "DemoInterface" ) ) );
+        
+        assertEquals( "chm", AutoCompleteIndex.getCamelHumps("ConcurrentHashMap") );
+        assertEquals( "di2", AutoCompleteIndex.getCamelHumps("DemoInterface2") );
+    }
+    
     /**
      * 
      */
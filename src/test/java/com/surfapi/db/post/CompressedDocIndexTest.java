@@ -0,0 +1,48 @@
+package com.surfapi.db.post;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.surfapi.coll.MapBuilder;
+
+/**
+ *
+ */
+public class CompressedDocIndexTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testBuildCompressedDoc() throws Exception {
+
+        Map doc = new MapBuilder().append("_id", "/java/com.surfapi/1.0/com.surfapi.test.DemoJavadoc")
+                                  .append("name", "DemoJavadoc")
+                                  .append("metaType", "class");
+
+        Map compressedDoc = new CompressedDocIndex().new IndexBuilder().buildCompressedDoc(doc, "1234");
+
+        assertEquals( doc.get("_id"), compressedDoc.get("_id") );
+        assertEquals( "1234", compressedDoc.get(CompressedDocIndex.GenerationFieldName) );
+        assertEquals( CompressedDocIndex.computeETag( JSONValue.toJSONString(doc) ), compressedDoc.get("etag") );
+
+        String json = IOUtils.toString( new GZIPInputStream( new ByteArrayInputStream( (byte[]) compressedDoc.get("gz") ) ), "UTF-8" );
+        assertEquals( JSONValue.toJSONString(doc), json );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGetCollectionName() {
+        assertEquals( "/java/com.surfapi/1.0/gz", CompressedDocIndex.getCollectionName("/java/com.surfapi/1.0") );
+    }
+
+}
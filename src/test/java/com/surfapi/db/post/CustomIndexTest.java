@@ -25,7 +25,7 @@ public class CustomIndexTest {
         
         List<CustomIndex<?>> indexes = CustomIndex.getAllIndexes();
         
-        assertEquals(4, indexes.size());
+        assertEquals(5, indexes.size());
         
         // Map to class names and verify
         List<String> classNames = new ArrayList<String>();
@@ -39,6 +39,7 @@ public class CustomIndexTest {
         assertTrue( classNames.contains("ReferenceNameQuery") );
         assertTrue( classNames.contains("AllKnownSubclassesQuery") );
         assertTrue( classNames.contains("AllKnownImplementorsQuery") );
+        assertTrue( classNames.contains("CompressedDocIndex") );
         
     }
     
@@ -61,15 +62,19 @@ public class CustomIndexTest {
         assertEquals(1, indexes.size());
         assertEquals("AllKnownImplementorsQuery", indexes.get(0).getClass().getSimpleName());
         
+        indexes = CustomIndex.getIndexes("CompressedDocIndex");
+        assertEquals(1, indexes.size());
+        assertEquals("CompressedDocIndex", indexes.get(0).getClass().getSimpleName());
+        
     }
     
     @Test
     public void testGetIndexesEmptyFilter() {
           
         List<CustomIndex<?>> indexes = CustomIndex.getIndexes("");
-        assertEquals(4, indexes.size());
+        assertEquals(5, indexes.size());
         
         indexes = CustomIndex.getIndexes(null);
-        assertEquals(4, indexes.size());
+        assertEquals(5, indexes.size());
     }
 }
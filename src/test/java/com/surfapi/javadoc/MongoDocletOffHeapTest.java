@@ -0,0 +1,84 @@
+package com.surfapi.javadoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.surfapi.app.JavadocMapUtils;
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.OffHeapDB;
+import com.surfapi.db.OffHeapDBService;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ * Runs the MongoDoclet (in-process) against an OffHeapDB, i.e. without mongo.
+ */
+public class MongoDocletOffHeapTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private OffHeapDB db;
+
+    @Before
+    public void before() throws Exception {
+        db = OffHeapDBService.setDb( new OffHeapDB( tempFolder.newFolder() ) );
+        System.setProperty("OFFHEAP_DIR", tempFolder.getRoot().getPath());
+        System.setProperty("com.surfapi.mongo.library.id", "/java/com.surfapi.test/1.0");
+    }
+
+    @After
+    public void after() throws Exception {
+        System.clearProperty("OFFHEAP_DIR");
+        System.clearProperty("com.surfapi.mongo.library.id");
+        OffHeapDBService.setDb(null);
+        db.close();
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void test() throws Exception {
+
+        String libraryId = "/java/com.surfapi.test/1.0";
+
+        StringWriter errors = new StringWriter();
+        int rc = com.sun.tools.javadoc.Main.execute( "javadoc",
+                                                     new PrintWriter(errors),
+                                                     new PrintWriter(errors),
+                                                     new PrintWriter(errors),
+                                                     MongoDoclet.class.getName(),
+                                                     MongoDoclet.class.getClassLoader(),
+                                                     new String[] { "-sourcepath", "src/test/java", "com.surfapi.test" } );
+        assertEquals( errors.toString(), 0, rc );
+
+        List<Map> docs = db.find( libraryId, new MapBuilder() );
+        assertEquals( JsonDocletTest.ExpectedTestJavadocSize, docs.size() );
+
+        Map doc = db.read( libraryId, libraryId + "/com.surfapi.test.DemoJavadoc" );
+        assertNotNull( doc );
+        assertEquals( "com.surfapi.test.DemoJavadoc", JavadocMapUtils.getQualifiedName(doc) );
+
+        // The library overview was saved.
+        assertNotNull( db.read( DB.LibraryCollectionName, libraryId ) );
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.surfapi.main.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.coll.Cawls;
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DBImpl;
+import com.surfapi.db.DBLoader;
+import com.surfapi.db.post.AllKnownSubclassesQuery;
+import com.surfapi.db.post.AutoCompleteIndex;
+import com.surfapi.db.post.ReferenceNameQuery;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class BuildIndexTaskTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    /**
+     * @return a DBImpl loaded with 2 versions of the com.surfapi test library.
+     */
+    protected DBImpl loadDb() {
+        DBImpl db = new DBImpl();
+        new DBLoader().inject(db).loadUnchecked( new File("src/test/resources/com.surfapi_0.9.json") )
+                                 .loadUnchecked( new File("src/test/resources/com.surfapi_1.0.json") );
+        return db;
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testBuildFromScratchFused() throws Exception {
+
+        DBImpl db = loadDb();
+
+        new BuildIndexTask().inject(db).handleTask( new String[] { "--fused" } );
+
+        // ProcessException is in both versions of the library.
+        List<Map> subclasses = new AllKnownSubclassesQuery().inject(db).query("java.io.IOException");
+        Map subclass = Cawls.findFirst( subclasses, new MapBuilder().append( "name", "ProcessException" ) );
+        assertNotNull( subclass );
+
+        List<String> libraryVersions = (List<String>) subclass.get("_libraryVersions");
+        assertEquals( 2, libraryVersions.size() );
+        assertTrue( libraryVersions.contains("0.9") );
+        assertTrue( libraryVersions.contains("1.0") );
+
+        assertFalse( new ReferenceNameQuery().inject(db).query("com.surfapi.test.DemoJavadoc").isEmpty() );
+
+        // Fused and unfused builds produce the same indexes.
+        DBImpl unfusedDb = loadDb();
+        new BuildIndexTask().inject(unfusedDb).handleTask( new String[] { } );
+
+        assertSameIndexes( unfusedDb, db );
+        assertFalse( db.get( AutoCompleteIndex.getCollectionNameForLang("java") ).isEmpty() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testBuildFromScratchParallel() throws Exception {
+
+        DBImpl db = loadDb();
+        new BuildIndexTask().inject(db).handleTask( new String[] { } );
+
+        DBImpl parallelDb = loadDb();
+        new BuildIndexTask().inject(parallelDb).handleTask( new String[] { "--parallelism=2" } );
+
+        DBImpl parallelFusedDb = loadDb();
+        new BuildIndexTask().inject(parallelFusedDb).handleTask( new String[] { "--fused", "--parallelism=2" } );
+
+        assertSameIndexes( db, parallelDb );
+        assertSameIndexes( db, parallelFusedDb );
+
+        // Both library versions were merged into the entry, even though they were indexed concurrently.
+        Map subclass = Cawls.findFirst( new AllKnownSubclassesQuery().inject(parallelFusedDb).query("java.io.IOException"),
+                                        new MapBuilder().append( "name", "ProcessException" ) );
+        assertEquals( 2, ((List<String>) subclass.get("_libraryVersions")).size() );
+    }
+
+    /**
+     * Verify the two DBs contain the same collections, with the same number of docs in each.
+     */
+    protected void assertSameIndexes(DBImpl expectedDb, DBImpl db) {
+        assertEquals( expectedDb.keySet(), db.keySet() );
+
+        for (String collection : expectedDb.keySet()) {
+            assertEquals( collection, expectedDb.get(collection).size(), db.get(collection).size() );
+        }
+    }
+
+}
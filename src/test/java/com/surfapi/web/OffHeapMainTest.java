@@ -0,0 +1,74 @@
+package com.surfapi.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.OffHeapDB;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class OffHeapMainTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * An interrupted load is dropped and redone on the next start; a completed one isn't.
+     */
+    @Test
+    public void testLoad() throws Exception {
+
+        File dir = tempFolder.newFolder();
+        File dataDir = new File("src/test/resources/com.surfapi_1.0.json");
+        String libraryId = "/java/com.surfapi/1.0";
+
+        // An interrupted load.
+        OffHeapDB db = new OffHeapDB(dir);
+        db.save("partial", new MapBuilder().append("_id", "1"));
+        assertFalse( db.isLoadComplete() );
+        db.close();
+
+        db = new OffHeapDB(dir);
+        OffHeapMain.load(db, dataDir);
+
+        assertTrue( db.isLoadComplete() );
+        assertNotNull( db.read(DB.LibraryCollectionName, libraryId) );
+        assertNull( db.read("partial", "1") );
+        db.close();
+
+        // A completed load isn't redone.
+        db = new OffHeapDB(dir);
+        assertTrue( db.isLoadComplete() );
+        db.save("extra", new MapBuilder().append("_id", "1"));
+        OffHeapMain.load(db, dataDir);
+
+        assertNotNull( db.read("extra", "1") );
+        assertNotNull( db.read(DB.LibraryCollectionName, libraryId) );
+
+        // Dropping the DB clears the marker.
+        db.drop();
+        assertFalse( db.isLoadComplete() );
+        assertEquals( 0, db.size() );
+        db.close();
+    }
+
+}
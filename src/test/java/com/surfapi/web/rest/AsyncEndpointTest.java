@@ -0,0 +1,141 @@
+package com.surfapi.web.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class AsyncEndpointTest extends JerseyTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    /**
+     * Released by the tests to let the "slow" requests complete.
+     */
+    private static volatile CountDownLatch slowLatch = new CountDownLatch(0);
+
+    /**
+     * Counted down when a "slow" request starts running.
+     */
+    private static volatile CountDownLatch startedLatch = new CountDownLatch(0);
+
+    /**
+     * Test endpoint: 1 thread, no queue, 1 second timeout.
+     */
+    @Path("asyncEndpointTest")
+    public static class TestEndpoint {
+
+        private static final AsyncEndpoint asyncEndpoint = new AsyncEndpoint("TestEndpoint", 1, 0, 1000);
+
+        @GET
+        @Path("slow")
+        public void slow(@Suspended AsyncResponse asyncResponse) {
+            asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+                public Response call() throws Exception {
+                    startedLatch.countDown();
+                    slowLatch.await(10, TimeUnit.SECONDS);
+                    return Response.ok("slow").build();
+                }
+            });
+        }
+
+        @GET
+        @Path("fast")
+        public void fast(@Suspended AsyncResponse asyncResponse) {
+            asyncEndpoint.submit( asyncResponse, new Callable<Response>() {
+                public Response call() {
+                    return Response.ok("fast").build();
+                }
+            });
+        }
+    }
+
+    /**
+     * Install the test endpoint into the Jersey test container.
+     */
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(TestEndpoint.class);
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSubmit() throws Exception {
+        Response response = target().path("asyncEndpointTest/fast").request().get();
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( "fast", response.readEntity(String.class) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRejected() throws Exception {
+        slowLatch = new CountDownLatch(1);
+        startedLatch = new CountDownLatch(1);
+
+        // Tie up the only thread.
+        Future<Response> slowResponse = target().path("asyncEndpointTest/slow").request().async().get();
+        assertTrue( startedLatch.await(10, TimeUnit.SECONDS) );
+
+        Response response = target().path("asyncEndpointTest/fast").request().get();
+        assertEquals( 503, response.getStatus() );
+        assertEquals( "1", response.getHeaderString(HttpHeaders.RETRY_AFTER) );
+
+        slowLatch.countDown();
+        assertEquals( 200, slowResponse.get(10, TimeUnit.SECONDS).getStatus() );
+
+        // Thread is free again (once it gets back to the pool, which may be just after the response).
+        int status = 0;
+        for (int i = 0; i < 100 && status != 200; ++i) {
+            status = target().path("asyncEndpointTest/fast").request().get().getStatus();
+            if (status != 200) {
+                Thread.sleep(50);
+            }
+        }
+        assertEquals( 200, status );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        slowLatch = new CountDownLatch(1);
+
+        Response response = target().path("asyncEndpointTest/slow").request().get();
+        assertEquals( 503, response.getStatus() );
+        assertEquals( "1", response.getHeaderString(HttpHeaders.RETRY_AFTER) );
+
+        slowLatch.countDown();
+    }
+
+}
@@ -3,18 +3,27 @@ package com.surfapi.web.rest;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 import org.glassfish.jersey.server.ResourceConfig;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JUnit4Mockery;
 import org.glassfish.jersey.test.JerseyTest;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
@@ -23,9 +32,12 @@ import org.junit.Test;
 
 import com.surfapi.coll.Cawls;
 import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.DBImpl;
 import com.surfapi.db.DBLoader;
 import com.surfapi.db.DBService;
 import com.surfapi.db.MongoDBImpl;
+import com.surfapi.db.post.CompressedDocIndex;
 import com.surfapi.junit.CaptureSystemOutRule;
 import com.surfapi.junit.MongoDBProcessRule;
 import com.surfapi.log.Log;
@@ -62,9 +74,10 @@ public class DbRestTest extends JerseyTest {
      */
     @BeforeClass
     public static void beforeClass() throws Exception {
-        assumeTrue( mongoDBProcessRule.isStarted() );
-        DBService.setDb( new MongoDBImpl("test1" ) );
-        new DBLoader().inject( DBService.getDb() ).loadUnchecked(new File("src/test/resources") );
+        if (mongoDBProcessRule.isStarted()) {
+            DBService.setDb( new MongoDBImpl("test1" ) );
+            new DBLoader().inject( DBService.getDb() ).loadUnchecked(new File("src/test/resources") );
+        }
     }
 
     /**
@@ -72,6 +85,8 @@ public class DbRestTest extends JerseyTest {
      */
     @Test
     public void testLookup() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String path = "/java/DBTest.test/1.0.3/com.surfapi.test.DemoJavadoc";
         String responseMsg = target().path( path ).request().get(String.class);
 
@@ -86,11 +101,32 @@ public class DbRestTest extends JerseyTest {
       
     }
     
+    /**
+     * 
+     */
+    @Test
+    public void testLookupETag() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
+        String path = "/java/DBTest.test/1.0.3/com.surfapi.test.DemoJavadoc";
+        Response response = target().path( path ).request().get();
+        
+        assertEquals( 200, response.getStatus() );
+        EntityTag etag = response.getEntityTag();
+        assertNotNull( etag );
+        assertNotNull( response.getHeaderString("Cache-Control") );
+        
+        response = target().path( path ).request().header("If-None-Match", etag.toString()).get();
+        assertEquals( 304, response.getStatus() );
+    }
+    
     /**
      * 
      */
     @Test
     public void testLookupExcludeFields() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String path = "/java/DBTest.test/1.0.3/com.surfapi.test.DemoJavadoc";
         String responseMsg = target().path( path ).request().get(String.class);
         Log.trace(this, "responseMsg: " + responseMsg);
@@ -125,6 +161,8 @@ public class DbRestTest extends JerseyTest {
      */
     @Test
     public void testLookupIncludeFields() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String path = "/java/DBTest.test/1.0.3/com.surfapi.test.DemoJavadoc";
         String responseMsg = target().path( path ).request().get(String.class);
         Log.trace(this, "responseMsg: " + responseMsg);
@@ -149,6 +187,8 @@ public class DbRestTest extends JerseyTest {
      */
     @Test
     public void testGetLangLibraries() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String responseMsg = target().path( "/java" ).request().get(String.class);
 
         // Verify the json response is parseable.
@@ -163,6 +203,8 @@ public class DbRestTest extends JerseyTest {
      */
     @Test
     public void testGetLibrary() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String responseMsg = target().path( "/java/DBTest.test/1.0.3" ).request().get(String.class);
 
         // Verify the json response is parseable.
@@ -181,6 +223,8 @@ public class DbRestTest extends JerseyTest {
      */
     @Test
     public void testGetLibraryVersions() throws Exception {
+        assumeTrue( mongoDBProcessRule.isStarted() );
+        
         String responseMsg = target().path( "/java/DBTest.test" ).request().get(String.class);
 
         // Verify the json response is parseable.
@@ -194,4 +238,70 @@ public class DbRestTest extends JerseyTest {
                                                                                         .append("version", "1.0.2") ));
     }
     
+    /**
+     * After a library is re-uploaded, gzip clients don't get the stale precompressed docs 
+     * (see {@link CompressedDocIndex}), neither before nor after the library is re-indexed.
+     */
+    @Test
+    public void testReuploadGzip() throws Exception {
+        
+        final DB db = new DBImpl();
+        final ResponseCache responseCache = new ResponseCache( 1024 * 1024, 60, 60, 0 );
+        
+        DbRest dbRest = new DbRest() {
+            protected DB getDb() {
+                return db;
+            }
+            protected ResponseCache getResponseCache() {
+                return responseCache;
+            }
+        };
+        
+        Mockery mockery = new JUnit4Mockery();
+        final Request request = mockery.mock(Request.class);
+        mockery.checking(new Expectations() {
+            {
+                allowing(request).evaluatePreconditions(with(any(EntityTag.class)));
+                will(returnValue(null));
+            }
+        });
+        
+        String libraryId = "/java/reupload.test/1.0";
+        String idA = libraryId + "/a.A";
+        String idB = libraryId + "/b.B";
+        Map<String, Integer> noFields = new HashMap<String, Integer>();
+        
+        db.save( libraryId, new MapBuilder().append("_id", idA).append("name", "A") );
+        db.save( libraryId, new MapBuilder().append("_id", idB).append("name", "B") );
+        db.save( DB.LibraryCollectionName, new MapBuilder().append("_id", libraryId).append(DBLoader.UploadedAtFieldName, 1L) );
+        new CompressedDocIndex().inject(db).addLibraryToIndex(libraryId);
+        
+        Response response = dbRest.buildDocResponse( libraryId, idB, noFields, request, true );
+        assertTrue( response.getEntity() instanceof byte[] );
+        
+        // Re-upload the library, without B and with a new A.
+        Map newA = new MapBuilder().append("_id", idA).append("name", "A2");
+        db.drop( libraryId );
+        db.save( libraryId, newA );
+        db.save( DB.LibraryCollectionName, new MapBuilder().append("_id", libraryId).append(DBLoader.UploadedAtFieldName, 2L) );
+        
+        // Not re-indexed yet.
+        String newETag = CompressedDocIndex.computeETag( JSONValue.toJSONString(newA) ) + "-gzip";
+        
+        assertEquals( newETag, dbRest.buildDocResponse( libraryId, idA, noFields, request, true ).getEntityTag().getValue() );
+        
+        response = dbRest.buildDocResponse( libraryId, idB, noFields, request, true );
+        assertNull( response.getEntityTag() );
+        assertFalse( response.getEntity() instanceof byte[] );
+        
+        // Re-indexed.
+        new CompressedDocIndex().inject(db).addLibraryToIndex(libraryId);
+        
+        assertNull( new CompressedDocIndex().inject(db).query( libraryId, idB ) );
+        
+        response = dbRest.buildDocResponse( libraryId, idA, noFields, request, true );
+        assertTrue( response.getEntity() instanceof byte[] );
+        assertEquals( newETag, response.getEntityTag().getValue() );
+    }
+    
 }
@@ -0,0 +1,90 @@
+package com.surfapi.web.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import com.surfapi.coll.ListBuilder;
+import com.surfapi.coll.MapBuilder;
+
+/**
+ *
+ */
+public class JsonStreamingOutputTest {
+
+    /**
+     * @return a sample doc
+     */
+    protected Map buildDoc() {
+        return new MapBuilder().append("name", "DemoJavadoc")
+                               .append("metaType", "class")
+                               .append("comment", "Quotes \" and unicode é")
+                               .append("methods", new ListBuilder().append( new MapBuilder().append("name", "method1") )
+                                                                   .append( new MapBuilder().append("name", "method2")
+                                                                                            .append("flatSignature", "(int, String)") ));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWrite() throws Exception {
+        Map doc = buildDoc();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new JsonStreamingOutput(doc, false).write(baos);
+
+        assertEquals( JSONValue.toJSONString(doc), new String(baos.toByteArray(), "UTF-8") );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWriteGzip() throws Exception {
+        Map doc = buildDoc();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new JsonStreamingOutput(doc, true).write(baos);
+
+        String json = IOUtils.toString( new GZIPInputStream( new ByteArrayInputStream( baos.toByteArray() ) ), "UTF-8" );
+        assertEquals( JSONValue.toJSONString(doc), json );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testForSerialized() throws Exception {
+        String json = JSONValue.toJSONString( buildDoc() );
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JsonStreamingOutput.forSerialized(json, false).write(baos);
+
+        assertEquals( json, new String(baos.toByteArray(), "UTF-8") );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testIsGzipAccepted() {
+        assertTrue( JsonStreamingOutput.isGzipAccepted( Arrays.asList("gzip, deflate") ) );
+        assertTrue( JsonStreamingOutput.isGzipAccepted( Arrays.asList("deflate, GZIP;q=0.8") ) );
+        assertFalse( JsonStreamingOutput.isGzipAccepted( Arrays.asList("gzip;q=0") ) );
+        assertFalse( JsonStreamingOutput.isGzipAccepted( Arrays.asList("deflate") ) );
+        assertFalse( JsonStreamingOutput.isGzipAccepted( (List<String>) null ) );
+    }
+
+}
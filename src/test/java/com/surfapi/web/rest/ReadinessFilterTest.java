@@ -0,0 +1,97 @@
+package com.surfapi.web.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.surfapi.db.DBService;
+import com.surfapi.junit.CaptureSystemOutRule;
+
+/**
+ *
+ */
+public class ReadinessFilterTest extends JerseyTest {
+
+    /**
+     * Capture and suppress stdout unless the test fails.
+     */
+    @Rule
+    public CaptureSystemOutRule systemOutRule  = new CaptureSystemOutRule( );
+
+    /**
+     * Test endpoint.
+     */
+    @Path("readinessFilterTest")
+    public static class TestEndpoint {
+
+        @GET
+        public String get() {
+            return "ok";
+        }
+    }
+
+    private File origDataDir;
+
+    private File origSnapshotFile;
+
+    /**
+     * Install the test endpoint and the filter into the Jersey test container.
+     */
+    @Override
+    protected Application configure() {
+        return new ResourceConfig(TestEndpoint.class, ReadinessFilter.class);
+    }
+
+    @Before
+    public void beforeTest() {
+        origDataDir = DBService.dataDir;
+        origSnapshotFile = DBService.snapshotFile;
+
+        DBService.reset();
+        DBService.dataDir = new File("src/test/resources/com.surfapi_1.0.json");
+        DBService.snapshotFile = null;
+    }
+
+    @After
+    public void afterTest() {
+        DBService.reset();
+        DBService.dataDir = origDataDir;
+        DBService.snapshotFile = origSnapshotFile;
+    }
+
+    /**
+     * Requests get a 503 until the DB is loaded (the first request starts the load).
+     */
+    @Test
+    public void testNotReady() throws Exception {
+
+        Response response = target().path("readinessFilterTest").request().get();
+
+        assertEquals( 503, response.getStatus() );
+        assertEquals( String.valueOf(ReadinessFilter.RetryAfterSeconds), response.getHeaderString(HttpHeaders.RETRY_AFTER) );
+        assertTrue( response.readEntity(String.class).contains("loading") );
+
+        // Wait for the background load.
+        DBService.getDb();
+
+        response = target().path("readinessFilterTest").request().get();
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( "ok", response.readEntity(String.class) );
+    }
+
+}
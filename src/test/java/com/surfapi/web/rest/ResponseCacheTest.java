@@ -0,0 +1,129 @@
+package com.surfapi.web.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import com.surfapi.coll.MapBuilder;
+import com.surfapi.db.DB;
+import com.surfapi.db.DBImpl;
+import com.surfapi.db.DBLoader;
+
+/**
+ *
+ */
+public class ResponseCacheTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testBuildKey() {
+        Map<String, Integer> fields1 = new MapBuilder<String, Integer>().append("methods", 0).append("metaType", 0);
+        Map<String, Integer> fields2 = new MapBuilder<String, Integer>().append("metaType", 0).append("methods", 0);
+
+        assertEquals( ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", fields1),
+                      ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", fields2) );
+
+        assertFalse( ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", fields1)
+                        .equals( ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", new HashMap<String, Integer>()) ) );
+
+        // A new generation of the library gets a new key.
+        assertFalse( ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", fields1)
+                        .equals( ResponseCache.buildKey("/java/a/1.0", "2", "/java/a/1.0/a.B", fields1) ) );
+
+        assertTrue( ResponseCache.buildKey("/java/a/1.0", "1", "/java/a/1.0/a.B", fields1).startsWith("/java/a/1.0 ") );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMaxAge() {
+        ResponseCache cache = new ResponseCache( 1024 * 1024, 86400, 300, 0 );
+
+        assertEquals( 86400, cache.getMaxAgeSeconds("1.7") );
+        assertEquals( 86400, cache.getMaxAgeSeconds("2.4.1") );
+        assertEquals( 300, cache.getMaxAgeSeconds("1.0-SNAPSHOT") );
+        assertEquals( 300, cache.getMaxAgeSeconds("latest") );
+        assertEquals( 300, cache.getMaxAgeSeconds(null) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testGeneration() {
+        DB db = new DBImpl();
+
+        // Re-checked every time.
+        ResponseCache cache = new ResponseCache( 1024 * 1024, 60, 60, 0 );
+        assertNull( cache.getGeneration(db, "/java/a/1.0") );
+
+        db.save( DB.LibraryCollectionName, new MapBuilder().append("_id", "/java/a/1.0").append(DBLoader.UploadedAtFieldName, 1L) );
+        assertEquals( "1", cache.getGeneration(db, "/java/a/1.0") );
+
+        db.save( DB.LibraryCollectionName, new MapBuilder().append("_id", "/java/a/1.0").append(DBLoader.UploadedAtFieldName, 2L) );
+        assertEquals( "2", cache.getGeneration(db, "/java/a/1.0") );
+
+        // Not re-checked within the interval.
+        ResponseCache cache2 = new ResponseCache( 1024 * 1024, 60, 60, 60 * 1000 );
+        assertEquals( "2", cache2.getGeneration(db, "/java/a/1.0") );
+
+        db.save( DB.LibraryCollectionName, new MapBuilder().append("_id", "/java/a/1.0").append(DBLoader.UploadedAtFieldName, 3L) );
+        assertEquals( "2", cache2.getGeneration(db, "/java/a/1.0") );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testETag() {
+        ResponseCache.Entry entry1 = new ResponseCache.Entry("{\"name\":\"DemoJavadoc\"}");
+        ResponseCache.Entry entry2 = new ResponseCache.Entry("{\"name\":\"DemoJavadoc\"}");
+        ResponseCache.Entry entry3 = new ResponseCache.Entry("{\"name\":\"DemoInterface\"}");
+
+        assertEquals( entry1.getETag(), entry2.getETag() );
+        assertFalse( entry1.getETag().equals( entry3.getETag() ) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testEvictByBytes() {
+        String body = "0123456789";
+        long entrySize = new ResponseCache.Entry(body).getSize();
+
+        ResponseCache cache = new ResponseCache( entrySize * 3, 60 );
+
+        cache.put("/java/a/1.0 1", body);
+        cache.put("/java/a/1.0 2", body);
+        cache.put("/java/a/1.0 3", body);
+        assertEquals(3, cache.size());
+        assertEquals(entrySize * 3, cache.getCurrentBytes());
+
+        // Touch 1 so that 2 is the least-recently-used.
+        assertNotNull( cache.get("/java/a/1.0 1") );
+
+        cache.put("/java/a/1.0 4", body);
+        assertEquals(3, cache.size());
+        assertNull( cache.get("/java/a/1.0 2") );
+        assertNotNull( cache.get("/java/a/1.0 1") );
+        assertNotNull( cache.get("/java/a/1.0 4") );
+
+        // Too big to cache.
+        cache.put("/java/a/1.0 5", StringUtils.repeat(body, 100));
+        assertNull( cache.get("/java/a/1.0 5") );
+        assertEquals(3, cache.size());
+    }
+
+}
@@ -4,11 +4,12 @@
 #
 # ServerMain: start the server, use raw json files as DB
 # MongoMain: start the server, use mongo as DB
+# OffHeapMain: start the server, use memory-mapped segment files (-DOFFHEAP_DIR) as DB
 # 
 
 if [ -z $1 ]; then
     echo "usage: $0 <mainClass>"
-    echo "      <mainClass>: ServerMain, MongoMain"
+    echo "      <mainClass>: ServerMain, MongoMain, OffHeapMain"
     exit 1
 fi
 